@@ -0,0 +1,170 @@
+package no.difi.statistics.api;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.http.MockHttpOutputMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a list of points in each of the response formats. The payload sizes are printed when a
+ * trial is set up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class PointEncodingBenchmark {
+
+    private static final TypeReference<List<TimeSeriesPoint>> pointList = new TypeReference<>() {};
+    private static final Type pointListType = ResolvableType.forClassWithGenerics(List.class, TimeSeriesPoint.class).getType();
+
+    @Param({"1000", "100000"})
+    private int points;
+
+    @Param({"false", "true"})
+    private boolean withCategories;
+
+    @Param({"3"})
+    private int measurements;
+
+    private final ObjectMapper json = Jackson2ObjectMapperBuilder.json().build();
+    private final ObjectMapper smile = Jackson2ObjectMapperBuilder.smile().build();
+    private final ObjectMapper cbor = Jackson2ObjectMapperBuilder.cbor().build();
+    private final ColumnarPointConverter columnar = new ColumnarPointConverter();
+    private List<TimeSeriesPoint> values;
+    private byte[] jsonBytes;
+    private byte[] smileBytes;
+    private byte[] cborBytes;
+    private byte[] protobufBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        values = new ArrayList<>(points);
+        ZonedDateTime start = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        for (int i = 0; i < points; i++) {
+            TimeSeriesPoint.Builder point = TimeSeriesPoint.builder().timestamp(start.plusMinutes(i));
+            for (int m = 0; m < measurements; m++)
+                point.measurement("measurement" + m, (long) (i * 31 + m) % 100_000);
+            if (withCategories)
+                point.category("TE", "Min side").category("region", "region" + i % 10);
+            values.add(point.build());
+        }
+        jsonBytes = encodeJson();
+        smileBytes = encodeSmile();
+        cborBytes = encodeCbor();
+        protobufBytes = encodeProtobuf();
+        System.out.printf(
+                "%nPayload bytes: json=%d smile=%d cbor=%d protobuf=%d columnar=%d%n",
+                jsonBytes.length, smileBytes.length, cborBytes.length, protobufBytes.length, encodeColumnar().length
+        );
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws IOException {
+        return json.writeValueAsBytes(values);
+    }
+
+    @Benchmark
+    public byte[] encodeSmile() throws IOException {
+        return smile.writeValueAsBytes(values);
+    }
+
+    @Benchmark
+    public byte[] encodeCbor() throws IOException {
+        return cbor.writeValueAsBytes(values);
+    }
+
+    @Benchmark
+    public byte[] encodeProtobuf() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProtobufPointWriter writer = new ProtobufPointWriter(out);
+        for (TimeSeriesPoint point : values)
+            writer.write(point);
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeColumnar() throws IOException {
+        MockHttpOutputMessage message = new MockHttpOutputMessage();
+        columnar.write(values, pointListType, ColumnarPointConverter.APPLICATION_COLUMNAR, message);
+        return message.getBodyAsBytes();
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> decodeJson() throws IOException {
+        return reader(json).readValue(jsonBytes);
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> decodeSmile() throws IOException {
+        return reader(smile).readValue(smileBytes);
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> decodeCbor() throws IOException {
+        return reader(cbor).readValue(cborBytes);
+    }
+
+    /**
+     * Decodes the <code>TimeSeriesPoints</code> message as a client with generated classes would, into one object per
+     * point.
+     */
+    @Benchmark
+    public List<TimeSeriesPoint> decodeProtobuf() throws IOException {
+        List<TimeSeriesPoint> decoded = new ArrayList<>(points);
+        CodedInputStream input = CodedInputStream.newInstance(protobufBytes);
+        while (input.readTag() != 0) {
+            int limit = input.pushLimit(input.readRawVarint32());
+            TimeSeriesPoint.Builder point = TimeSeriesPoint.builder();
+            for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case 1 -> point.timestamp(ZonedDateTime.ofInstant(Instant.ofEpochMilli(input.readInt64()), ZoneOffset.UTC));
+                    case 2 -> {
+                        int entryLimit = input.pushLimit(input.readRawVarint32());
+                        input.readTag();
+                        String id = input.readString();
+                        input.readTag();
+                        point.measurement(id, input.readInt64());
+                        input.popLimit(entryLimit);
+                    }
+                    case 3 -> {
+                        int entryLimit = input.pushLimit(input.readRawVarint32());
+                        input.readTag();
+                        String key = input.readString();
+                        input.readTag();
+                        point.category(key, input.readString());
+                        input.popLimit(entryLimit);
+                    }
+                    default -> input.skipField(tag);
+                }
+            }
+            input.popLimit(limit);
+            decoded.add(point.build());
+        }
+        return decoded;
+    }
+
+    private static ObjectReader reader(ObjectMapper mapper) {
+        return mapper.readerFor(pointList);
+    }
+
+}
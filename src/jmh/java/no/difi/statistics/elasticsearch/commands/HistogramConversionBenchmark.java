@@ -0,0 +1,57 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.search.SearchResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.statistics.model.MeasurementDistance.hours;
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+
+/**
+ * Conversion of {@link SumHistogramQuery} and {@link LastHistogramQuery} responses to points.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class HistogramConversionBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int buckets;
+
+    @Param({"3"})
+    private int measurements;
+
+    private SearchResponse sumHistogramResponse;
+    private SearchResponse lastHistogramResponse;
+    private SumHistogramQuery sumHistogramQuery;
+    private LastHistogramQuery lastHistogramQuery;
+
+    @Setup
+    public void setup() {
+        sumHistogramResponse = SearchResponses.sumHistogram(hours.name(), buckets, measurements);
+        lastHistogramResponse = SearchResponses.lastHistogram(hours.name(), buckets, measurements);
+        TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("benchmark").minutes().owner("991825827");
+        sumHistogramQuery = SumHistogramQuery.builder()
+                .seriesDefinition(series).targetDistance(hours).queryFilter(queryFilter().build()).build();
+        lastHistogramQuery = LastHistogramQuery.builder()
+                .seriesDefinition(series).targetDistance(hours).queryFilter(queryFilter().build()).build();
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> sumHistogram() {
+        return sumHistogramQuery.result(sumHistogramResponse);
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> lastHistogram() {
+        return lastHistogramQuery.result(lastHistogramResponse);
+    }
+
+}
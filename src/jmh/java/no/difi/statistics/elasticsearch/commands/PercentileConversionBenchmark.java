@@ -0,0 +1,49 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of the hits of a {@link PercentileQuery} to points. A hit caches its source once parsed, so each
+ * invocation wraps the sources in new hits, as when a response is parsed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class PercentileConversionBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int hits;
+
+    @Param({"3"})
+    private int measurements;
+
+    @Param({"2"})
+    private int categories;
+
+    private BytesReference[] sources;
+
+    @Setup
+    public void setup() {
+        sources = new BytesReference[hits];
+        for (int i = 0; i < hits; i++)
+            sources[i] = SearchResponses.source(i, measurements, categories);
+    }
+
+    @Benchmark
+    public void points(Blackhole blackhole) {
+        for (int i = 0; i < sources.length; i++) {
+            TimeSeriesPoint point = PercentileQuery.point(new SearchHit(i).sourceRef(sources[i]));
+            blackhole.consume(point);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.elasticsearch.QueryBuilders.summarizeMeasurements;
+
+/**
+ * Building of the query filter from request parameters and of the search request from the query filter.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestBuildingBenchmark {
+
+    @Param({"3", "30"})
+    private int measurements;
+
+    private final ZonedDateTime from = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final ZonedDateTime to = from.plusYears(3);
+    private final String categories = "region=vest,kanal=web,tjeneste=skatt";
+    private List<String> indexNames;
+    private List<String> measurementIds;
+    private QueryFilter queryFilter;
+
+    @Setup
+    public void setup() {
+        indexNames = List.of("991825827@benchmark@minute2020", "991825827@benchmark@minute2021", "991825827@benchmark@minute2022");
+        measurementIds = IntStream.range(0, measurements).mapToObj(m -> "m" + m).collect(toList());
+        queryFilter = QueryFilter.queryFilter().range(from, to).categories(categories).perCategory("region").build();
+    }
+
+    @Benchmark
+    public QueryFilter parseQueryFilter() {
+        return QueryFilter.queryFilter().range(from, to).categories(categories).perCategory("region").build();
+    }
+
+    @Benchmark
+    public SearchRequest searchRequest() {
+        return Query.searchRequest(
+                indexNames,
+                queryFilter,
+                null,
+                0,
+                summarizeMeasurements("categoryAggregation", measurementIds, queryFilter.perCategory())
+        );
+    }
+
+}
@@ -0,0 +1,175 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import no.difi.statistics.elasticsearch.Timestamp;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.ParsedDateHistogram;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedLongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.ParsedStringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.elasticsearch.search.aggregations.metrics.ParsedSum;
+import org.elasticsearch.search.aggregations.metrics.SumAggregationBuilder;
+import org.elasticsearch.xcontent.ContextParser;
+import org.elasticsearch.xcontent.DeprecationHandler;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.ParseField;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.json.JsonXContent;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static org.elasticsearch.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Search responses shaped like those of the query commands, parsed the way the high level client does it (with typed
+ * keys), so that the conversion benchmarks work on the same aggregation classes as in production.
+ */
+final class SearchResponses {
+
+    private static final ZonedDateTime start = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private static final NamedXContentRegistry registry = new NamedXContentRegistry(List.of(
+            entry(DateHistogramAggregationBuilder.NAME, (p, c) -> ParsedDateHistogram.fromXContent(p, (String) c)),
+            entry(StringTerms.NAME, (p, c) -> ParsedStringTerms.fromXContent(p, (String) c)),
+            entry(LongTerms.NAME, (p, c) -> ParsedLongTerms.fromXContent(p, (String) c)),
+            entry(SumAggregationBuilder.NAME, (p, c) -> ParsedSum.fromXContent(p, (String) c))
+    ));
+
+    private SearchResponses() {
+    }
+
+    /**
+     * A response to {@link TimeSeriesQuery}: one bucket per timestamp, holding either the measurement sums or, per
+     * category, one sub-bucket per category value holding the sums.
+     */
+    static SearchResponse timeSeries(int buckets, int measurements, int categoryValues) {
+        return response(json -> {
+            json.startObject("date_histogram#categoryAggregation").startArray("buckets");
+            for (int i = 0; i < buckets; i++) {
+                timestampBucket(json, i);
+                if (categoryValues > 0) {
+                    json.startObject("sterms#perCategory");
+                    termsHeader(json).startArray("buckets");
+                    for (int c = 0; c < categoryValues; c++) {
+                        json.startObject().field("key", "value" + c).field("doc_count", 1);
+                        sums(json, measurements, i + c);
+                        json.endObject();
+                    }
+                    json.endArray().endObject();
+                } else {
+                    sums(json, measurements, i);
+                }
+                json.endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    /**
+     * A response to {@link SumHistogramQuery}, with the measurement sums in each histogram bucket.
+     */
+    static SearchResponse sumHistogram(String name, int buckets, int measurements) {
+        return response(json -> {
+            json.startObject("date_histogram#" + name).startArray("buckets");
+            for (int i = 0; i < buckets; i++) {
+                timestampBucket(json, i);
+                sums(json, measurements, i);
+                json.endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    /**
+     * A response to {@link LastHistogramQuery}, with the last timestamp and its sums in each histogram bucket.
+     */
+    static SearchResponse lastHistogram(String name, int buckets, int measurements) {
+        return response(json -> {
+            json.startObject("date_histogram#" + name).startArray("buckets");
+            for (int i = 0; i < buckets; i++) {
+                timestampBucket(json, i);
+                json.startObject("lterms#sumPerTimestamp");
+                termsHeader(json).startArray("buckets");
+                timestampBucket(json, i);
+                sums(json, measurements, i);
+                json.endObject();
+                json.endArray().endObject();
+                json.endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    /**
+     * The source of a document as hit by {@link PercentileQuery}.
+     */
+    static BytesReference source(int i, int measurements, int categories) {
+        try {
+            XContentBuilder json = jsonBuilder().startObject().field("timestamp", Timestamp.format(start.plusMinutes(i)));
+            for (int m = 0; m < measurements; m++)
+                json.field("m" + m, (long) (i + m) % 1000);
+            for (int c = 0; c < categories; c++)
+                json.field("category.c" + c, "value" + (i + c) % 10);
+            return BytesReference.bytes(json.endObject());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static XContentBuilder timestampBucket(XContentBuilder json, int i) throws IOException {
+        ZonedDateTime timestamp = start.plusMinutes(i);
+        return json.startObject()
+                .field("key_as_string", Timestamp.format(timestamp))
+                .field("key", timestamp.toInstant().toEpochMilli())
+                .field("doc_count", 1);
+    }
+
+    private static XContentBuilder termsHeader(XContentBuilder json) throws IOException {
+        return json.field("doc_count_error_upper_bound", 0).field("sum_other_doc_count", 0);
+    }
+
+    private static void sums(XContentBuilder json, int measurements, int seed) throws IOException {
+        for (int m = 0; m < measurements; m++)
+            json.startObject("sum#m" + m).field("value", (double) ((seed + m) % 1000)).endObject();
+    }
+
+    private static SearchResponse response(AggregationsWriter aggregations) {
+        try {
+            XContentBuilder json = jsonBuilder().startObject()
+                    .field("took", 1)
+                    .field("timed_out", false)
+                    .startObject("_shards").field("total", 1).field("successful", 1).field("skipped", 0).field("failed", 0).endObject()
+                    .startObject("hits").startArray("hits").endArray().endObject()
+                    .startObject("aggregations");
+            aggregations.write(json);
+            json.endObject().endObject();
+            try (XContentParser parser = JsonXContent.jsonXContent.createParser(
+                    registry,
+                    DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                    BytesReference.bytes(json).streamInput()
+            )) {
+                return SearchResponse.fromXContent(parser);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static NamedXContentRegistry.Entry entry(String type, ContextParser<Object, ? extends Aggregation> parser) {
+        return new NamedXContentRegistry.Entry(Aggregation.class, new ParseField(type), parser);
+    }
+
+    private interface AggregationsWriter {
+
+        void write(XContentBuilder json) throws IOException;
+
+    }
+
+}
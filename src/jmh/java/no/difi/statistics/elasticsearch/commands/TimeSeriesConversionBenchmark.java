@@ -0,0 +1,54 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import no.difi.statistics.model.QueryFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.search.SearchResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+
+/**
+ * Conversion of a {@link TimeSeriesQuery} response to points, with and without a point per category value.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class TimeSeriesConversionBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    private int buckets;
+
+    @Param({"false", "true"})
+    private boolean perCategory;
+
+    @Param({"3"})
+    private int measurements;
+
+    private SearchResponse response;
+    private TimeSeriesQuery query;
+
+    @Setup
+    public void setup() {
+        response = SearchResponses.timeSeries(buckets, measurements, perCategory ? 3 : 0);
+        QueryFilter.Builder filter = queryFilter().categories("owner=991825827");
+        if (perCategory)
+            filter.perCategory("region");
+        query = TimeSeriesQuery.builder()
+                .seriesDefinition(TimeSeriesDefinition.builder().name("benchmark").minutes().owner("991825827"))
+                .queryFilter(filter.build())
+                .build();
+    }
+
+    @Benchmark
+    public List<TimeSeriesPoint> points() {
+        return query.result(response);
+    }
+
+}
@@ -0,0 +1,333 @@
+package no.difi.statistics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import no.difi.statistics.model.*;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static no.difi.statistics.model.QueryOperation.*;
+
+/**
+ * Caches results of queries over closed periods. Data older than the ingestion horizon is considered final, so a
+ * query whose range ends before <code>now - ingestionHorizon</code> always gives the same result. Queries with an
+ * open or recent range end bypass the cache. The cache is bounded by an estimate of the heap size of the results.
+ * Empty results are not cached, as a series may still be backfilled. Neither are partial results of a request that
+ * ran out of time, see {@link Deadline}. Results are also kept in the {@link DiskResultStore}, if given, from which
+ * results missing from the heap are read back. Those are kept in the heap for the time to live, but no longer than the
+ * disk tier would keep them, so that reading a result back does not extend its life.
+ */
+public class CachingQueryService implements QueryService {
+
+    private final QueryService delegate;
+    private final Duration ingestionHorizon;
+    private final Clock clock;
+    private final Duration timeToLive;
+    private final Cache<QueryKey, Object> cache;
+    private final Policy.VarExpiration<QueryKey, Object> expiration;
+    private final DiskResultStore diskStore;
+
+    /**
+     * @param diskStore the disk tier, or <code>null</code> to keep results in the heap only
+     */
+    public CachingQueryService(
+            QueryService delegate,
+            Duration ingestionHorizon,
+            long maximumWeight,
+            Duration timeToLive,
+            DiskResultStore diskStore,
+            Clock clock,
+            MeterRegistry meterRegistry
+    ) {
+        this.delegate = delegate;
+        this.ingestionHorizon = ingestionHorizon;
+        this.diskStore = diskStore;
+        this.clock = clock;
+        this.timeToLive = timeToLive;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((QueryKey key, Object value) -> ResultWeigher.weight(value))
+                .expireAfter(new Expiry<QueryKey, Object>() {
+                    @Override
+                    public long expireAfterCreate(QueryKey key, Object value, long currentTime) {
+                        return timeToLive.toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(QueryKey key, Object value, long currentTime, long currentDuration) {
+                        return timeToLive.toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterRead(QueryKey key, Object value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        this.expiration = cache.policy().expireVariably().orElseThrow();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "queryResults");
+    }
+
+    @Override
+    public List<TimeSeriesDefinition> availableTimeSeries() {
+        return delegate.availableTimeSeries();
+    }
+
+    @Override
+    public Set<OwnerCategories> categories() throws IOException {
+        return delegate.categories();
+    }
+
+    @Override
+    public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return cached(
+                new QueryKey(last, seriesDefinition, queryFilter, null, null),
+                () -> delegate.last(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return cached(
+                new QueryKey(query, seriesDefinition, queryFilter, null, null),
+                () -> delegate.query(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return cached(
+                new QueryKey(percentile, seriesDefinition, queryFilter, null, filter),
+                () -> delegate.query(seriesDefinition, queryFilter, filter)
+        );
+    }
+
+    /**
+     * Replays a cached result, but does not cache streamed results, as they are not held in memory.
+     */
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, Consumer<TimeSeriesPoint> consumer) {
+        List<TimeSeriesPoint> result = cachedOnly(new QueryKey(query, seriesDefinition, queryFilter, null, null));
+        if (result != null)
+            result.forEach(consumer);
+        else
+            delegate.stream(seriesDefinition, queryFilter, consumer);
+    }
+
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter, Consumer<TimeSeriesPoint> consumer) {
+        List<TimeSeriesPoint> result = cachedOnly(new QueryKey(percentile, seriesDefinition, queryFilter, null, filter));
+        if (result != null)
+            result.forEach(consumer);
+        else
+            delegate.stream(seriesDefinition, queryFilter, filter, consumer);
+    }
+
+    @Override
+    public List<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return cached(
+                new QueryKey(lastHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.lastHistogram(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @Override
+    public TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return cached(
+                new QueryKey(sum, seriesDefinition, queryFilter, null, null),
+                () -> delegate.sum(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return cached(
+                new QueryKey(sumHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.sumHistogram(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    /**
+     * Answers the queries found in the cache, and sends the rest as a (smaller) batch to the underlying service.
+     * Malformed queries are sent on as well, so that they get an error result of their own.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, BatchQueryResult> batch(List<BatchQueryItem> queries) {
+        Map<String, BatchQueryResult> cachedResults = new LinkedHashMap<>();
+        List<BatchQueryItem> uncachedQueries = new ArrayList<>();
+        Map<String, QueryKey> keys = new LinkedHashMap<>();
+        for (BatchQueryItem query : queries) {
+            QueryKey key = key(query);
+            if (key != null)
+                keys.put(query.getId(), key);
+            Object result = key != null && query.getOperation() != percentile ? cachedOnly(key) : null;
+            if (result instanceof List)
+                cachedResults.put(query.getId(), BatchQueryResult.points((List<TimeSeriesPoint>) result));
+            else if (result instanceof TimeSeriesPoint)
+                cachedResults.put(query.getId(), BatchQueryResult.point((TimeSeriesPoint) result));
+            else
+                uncachedQueries.add(query);
+        }
+        Deadline deadline = Deadline.current();
+        Map<String, BatchQueryResult> uncachedResults = uncachedQueries.isEmpty() ? Map.of() : delegate.batch(uncachedQueries);
+        for (BatchQueryItem query : uncachedQueries) {
+            BatchQueryResult result = uncachedResults.get(query.getId());
+            QueryKey key = keys.get(query.getId());
+            if (key != null && result != null && result.getError() == null && isCacheable(key.queryFilter))
+                store(key, result.getPoints() != null ? result.getPoints() : result.getPoint(), deadline);
+        }
+        Map<String, BatchQueryResult> results = new LinkedHashMap<>();
+        for (BatchQueryItem query : queries)
+            results.put(query.getId(), cachedResults.containsKey(query.getId()) ? cachedResults.get(query.getId()) : uncachedResults.get(query.getId()));
+        return results;
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return cachedAsync(
+                new QueryKey(last, seriesDefinition, queryFilter, null, null),
+                () -> delegate.lastAsync(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return cachedAsync(
+                new QueryKey(query, seriesDefinition, queryFilter, null, null),
+                () -> delegate.queryAsync(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return cachedAsync(
+                new QueryKey(percentile, seriesDefinition, queryFilter, null, filter),
+                () -> delegate.queryAsync(seriesDefinition, queryFilter, filter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> lastHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return cachedAsync(
+                new QueryKey(lastHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.lastHistogramAsync(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> sumAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return cachedAsync(
+                new QueryKey(sum, seriesDefinition, queryFilter, null, null),
+                () -> delegate.sumAsync(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> sumHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return cachedAsync(
+                new QueryKey(sumHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.sumHistogramAsync(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    private <T> T cached(QueryKey key, Supplier<T> query) {
+        if (!isCacheable(key.queryFilter))
+            return query.get();
+        T result = cachedOnly(key);
+        if (result != null)
+            return result;
+        Deadline deadline = Deadline.current();
+        result = query.get();
+        store(key, result, deadline);
+        return result;
+    }
+
+    private <T> CompletableFuture<T> cachedAsync(QueryKey key, Supplier<CompletableFuture<T>> query) {
+        if (!isCacheable(key.queryFilter))
+            return query.get();
+        T result = cachedOnly(key);
+        if (result != null)
+            return CompletableFuture.completedFuture(result);
+        Deadline deadline = Deadline.current();
+        return query.get().thenApply(r -> {
+            store(key, r, deadline);
+            return r;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T cachedOnly(QueryKey key) {
+        if (!isCacheable(key.queryFilter))
+            return null;
+        Object result = cache.getIfPresent(key);
+        if (result == null && diskStore != null) {
+            DiskResultStore.Stored stored = diskStore.get(key);
+            if (stored != null) {
+                result = stored.result;
+                Duration remaining = Duration.between(clock.instant(), stored.expiresAt);
+                if (remaining.compareTo(timeToLive) > 0)
+                    remaining = timeToLive;
+                if (remaining.toNanos() > 0)
+                    expiration.put(key, result, remaining.toNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+        return (T) result;
+    }
+
+    /**
+     * @return how long the result of the query is kept in the heap, or <code>null</code> if it is not there
+     */
+    Duration expiresAfter(QueryKey key) {
+        OptionalLong nanos = expiration.getExpiresAfter(key, TimeUnit.NANOSECONDS);
+        return nanos.isPresent() ? Duration.ofNanos(nanos.getAsLong()) : null;
+    }
+
+    private void store(QueryKey key, Object result, Deadline deadline) {
+        if (result == null || (result instanceof List && ((List<?>) result).isEmpty()) || !Deadline.isComplete(deadline))
+            return;
+        cache.put(key, result);
+        if (diskStore != null)
+            diskStore.put(key, result);
+    }
+
+    /**
+     * A query is cacheable if its range ends before the ingestion horizon.
+     */
+    private boolean isCacheable(QueryFilter queryFilter) {
+        if (queryFilter.timeRange() == null || queryFilter.timeRange().to() == null)
+            return false;
+        return queryFilter.timeRange().to().isBefore(ZonedDateTime.now(clock).minus(ingestionHorizon));
+    }
+
+    /**
+     * @return the key of the query, or <code>null</code> if the query is malformed, e.g. has categories that cannot be
+     * parsed
+     */
+    private static QueryKey key(BatchQueryItem query) {
+        try {
+            return new QueryKey(query.getOperation(), query.seriesDefinition(), query.queryFilter(), query.getTargetDistance(), null);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,327 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.model.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static no.difi.statistics.model.QueryOperation.*;
+
+/**
+ * Lets concurrent identical queries share one execution on the underlying service. The first caller executes the
+ * query, callers arriving while it is in flight wait for and receive the same result (or failure). As a list of
+ * points is handed to several callers, it is shared as an unmodifiable view. A waiter gives up when its own deadline
+ * passes, without affecting the execution it waits for. A partial result marks the deadline of each request it is
+ * handed to as partial, so that none of them caches it or serves it as complete.
+ */
+public class CoalescingQueryService implements QueryService {
+
+    private final QueryService delegate;
+    private final ConcurrentMap<QueryKey, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Map<QueryOperation, Counter> coalesced = new EnumMap<>(QueryOperation.class);
+
+    public CoalescingQueryService(QueryService delegate, MeterRegistry meterRegistry) {
+        this.delegate = delegate;
+        for (QueryOperation operation : QueryOperation.values())
+            coalesced.put(operation, meterRegistry.counter("query.coalesced", "operation", operation.name()));
+        meterRegistry.gauge("query.coalescing.waiters", waiters);
+        meterRegistry.gaugeMapSize("query.in.flight", Tags.empty(), inFlight);
+    }
+
+    @Override
+    public List<TimeSeriesDefinition> availableTimeSeries() {
+        return delegate.availableTimeSeries();
+    }
+
+    @Override
+    public Set<OwnerCategories> categories() throws IOException {
+        return delegate.categories();
+    }
+
+    @Override
+    public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return coalesce(
+                new QueryKey(last, seriesDefinition, queryFilter, null, null),
+                () -> delegate.last(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return coalesce(
+                new QueryKey(query, seriesDefinition, queryFilter, null, null),
+                () -> delegate.query(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return coalesce(
+                new QueryKey(percentile, seriesDefinition, queryFilter, null, filter),
+                () -> delegate.query(seriesDefinition, queryFilter, filter)
+        );
+    }
+
+    /**
+     * Streamed results are consumed as they are produced, so they cannot be shared.
+     */
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, Consumer<TimeSeriesPoint> consumer) {
+        delegate.stream(seriesDefinition, queryFilter, consumer);
+    }
+
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter, Consumer<TimeSeriesPoint> consumer) {
+        delegate.stream(seriesDefinition, queryFilter, filter, consumer);
+    }
+
+    @Override
+    public List<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return coalesce(
+                new QueryKey(lastHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.lastHistogram(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @Override
+    public TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return coalesce(
+                new QueryKey(sum, seriesDefinition, queryFilter, null, null),
+                () -> delegate.sum(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return coalesce(
+                new QueryKey(sumHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.sumHistogram(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @Override
+    public Map<String, BatchQueryResult> batch(List<BatchQueryItem> queries) {
+        return delegate.batch(queries);
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return coalesceAsync(
+                new QueryKey(last, seriesDefinition, queryFilter, null, null),
+                () -> delegate.lastAsync(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return coalesceAsync(
+                new QueryKey(query, seriesDefinition, queryFilter, null, null),
+                () -> delegate.queryAsync(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return coalesceAsync(
+                new QueryKey(percentile, seriesDefinition, queryFilter, null, filter),
+                () -> delegate.queryAsync(seriesDefinition, queryFilter, filter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> lastHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return coalesceAsync(
+                new QueryKey(lastHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.lastHistogramAsync(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> sumAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return coalesceAsync(
+                new QueryKey(sum, seriesDefinition, queryFilter, null, null),
+                () -> delegate.sumAsync(seriesDefinition, queryFilter)
+        );
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> sumHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return coalesceAsync(
+                new QueryKey(sumHistogram, seriesDefinition, queryFilter, targetDistance, null),
+                () -> delegate.sumHistogramAsync(seriesDefinition, targetDistance, queryFilter)
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T coalesce(QueryKey key, Supplier<T> query) {
+        CompletableFuture<Shared<T>> future = new CompletableFuture<>();
+        CompletableFuture<?> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null)
+            return await(key, (CompletableFuture<Shared<T>>) existing, query);
+        Deadline deadline = Deadline.current();
+        T result;
+        // Removed from those in flight before it is completed, so that waiters running the query again do not find it
+        try {
+            result = shared(query.get());
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        inFlight.remove(key, future);
+        future.complete(new Shared<>(result, deadline));
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> coalesceAsync(QueryKey key, Supplier<CompletableFuture<T>> query) {
+        CompletableFuture<Shared<T>> future = new CompletableFuture<>();
+        CompletableFuture<?> existing = inFlight.putIfAbsent(key, future);
+        Deadline deadline = Deadline.current();
+        if (existing != null) {
+            coalesced.get(key.operation).increment();
+            waiters.incrementAndGet();
+            return withinDeadline(((CompletableFuture<Shared<T>>) existing).copy(), deadline)
+                    .handle((shared, e) -> {
+                        if (e == null)
+                            return CompletableFuture.completedFuture(shared.receivedWithin(deadline));
+                        if (leaderRanOutOfTime(e, deadline)) {
+                            inFlight.remove(key, existing);
+                            return retryAsync(key, query, deadline);
+                        }
+                        return CompletableFuture.<T>failedFuture(e);
+                    })
+                    .thenCompose(Function.identity())
+                    .whenComplete((result, e) -> waiters.decrementAndGet());
+        }
+        try {
+            query.get().whenComplete((result, e) -> {
+                inFlight.remove(key, future);
+                if (e != null)
+                    future.completeExceptionally(e);
+                else
+                    future.complete(new Shared<>(shared(result), deadline));
+            });
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future.thenApply(shared -> shared.result);
+    }
+
+    /**
+     * Waits for the result of an identical query in flight. Should that query fail because the request that started
+     * it ran out of time, while this one has time left, the query is run again rather than failing this request too.
+     */
+    private <T> T await(QueryKey key, CompletableFuture<Shared<T>> future, Supplier<T> query) {
+        coalesced.get(key.operation).increment();
+        waiters.incrementAndGet();
+        Deadline deadline = Deadline.current();
+        try {
+            Shared<T> shared = deadline != null ? future.get(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS) : future.get();
+            return shared.receivedWithin(deadline);
+        } catch (TimeoutException e) {
+            throw new Deadline.DeadlineExceededException();
+        } catch (ExecutionException e) {
+            if (leaderRanOutOfTime(e.getCause(), deadline)) {
+                inFlight.remove(key, future);
+                return coalesce(key, query);
+            }
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the query again from the thread that completed the one waited for, on behalf of the waiting request. The
+     * commands of the query pick up the deadline of that request from the thread.
+     */
+    private <T> CompletableFuture<T> retryAsync(QueryKey key, Supplier<CompletableFuture<T>> query, Deadline deadline) {
+        Deadline previous = Deadline.current();
+        Deadline.bind(deadline);
+        try {
+            return coalesceAsync(key, query);
+        } finally {
+            if (previous != null)
+                Deadline.bind(previous);
+            else
+                Deadline.unbind();
+        }
+    }
+
+    private static boolean leaderRanOutOfTime(Throwable e, Deadline deadline) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof Deadline.DeadlineExceededException && (deadline == null || !deadline.isExpired());
+    }
+
+    /**
+     * @return a future failing with {@link Deadline.DeadlineExceededException} if the given one is not done before the
+     * deadline. The given future must not be shared, as it is completed on timeout.
+     */
+    private static <T> CompletableFuture<T> withinDeadline(CompletableFuture<T> future, Deadline deadline) {
+        if (deadline == null)
+            return future;
+        return future.orTimeout(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS)
+                .exceptionallyCompose(e -> CompletableFuture.failedFuture(
+                        e instanceof TimeoutException ? new Deadline.DeadlineExceededException() : e
+                ));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T shared(T result) {
+        return result instanceof List ? (T) Collections.unmodifiableList((List<?>) result) : result;
+    }
+
+    /**
+     * A result along with whether it is partial, as that is recorded with the {@link Deadline} of the request that
+     * produced it, and not with those of the requests waiting for it.
+     */
+    private static class Shared<T> {
+
+        private final T result;
+        private final boolean partial;
+
+        private Shared(T result, Deadline deadline) {
+            this.result = result;
+            this.partial = !Deadline.isComplete(deadline);
+        }
+
+        /**
+         * @return the result, after marking the deadline of the receiving request as partial if the result is
+         */
+        private T receivedWithin(Deadline deadline) {
+            if (partial && deadline != null)
+                deadline.markPartial();
+            return result;
+        }
+
+    }
+
+}
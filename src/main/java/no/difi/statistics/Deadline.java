@@ -0,0 +1,83 @@
+package no.difi.statistics;
+
+import java.time.Duration;
+
+/**
+ * The time a request must be answered within. It is bound to the thread handling the request, and picked up from
+ * there when query commands are built, so that it follows the query to completion on other threads. Elasticsearch
+ * searches are given the remaining time as their timeout, and results of searches that timed out are marked as
+ * partial. A deadline that has passed fails the query with {@link DeadlineExceededException}.
+ */
+public class Deadline {
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+    private final long expiresAtNanos;
+    private volatile boolean partial;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline after(Duration timeout) {
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * @return the deadline of the request handled by this thread, or <code>null</code> if there is none (e.g. for
+     * background work)
+     */
+    public static Deadline current() {
+        return current.get();
+    }
+
+    public static void bind(Deadline deadline) {
+        current.set(deadline);
+    }
+
+    public static void unbind() {
+        current.remove();
+    }
+
+    /**
+     * @return whether results produced within the deadline are complete, and thereby may be kept for other requests
+     */
+    public static boolean isComplete(Deadline deadline) {
+        return deadline == null || !deadline.isPartial();
+    }
+
+    public Duration remaining() {
+        return Duration.ofNanos(Math.max(0, expiresAtNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /**
+     * @throws DeadlineExceededException if the deadline has passed
+     */
+    public void check() {
+        if (isExpired())
+            throw new DeadlineExceededException();
+    }
+
+    /**
+     * Records that a part of the result is missing, e.g. because a search timed out on some shards.
+     */
+    public void markPartial() {
+        partial = true;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public static class DeadlineExceededException extends RuntimeException {
+
+        public DeadlineExceededException() {
+            super("Request deadline exceeded");
+        }
+
+    }
+
+}
@@ -0,0 +1,392 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.model.Measurement;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Query results kept on disk, as a tier behind the in-heap {@link CachingQueryService}. It holds far more than the
+ * heap allows and survives restarts, so that a new instance does not have to fetch every result from Elasticsearch
+ * again. Only results of closed periods are given to it, so a stored result never changes. Results older than the time
+ * to live are dropped, should old data be corrected after all.
+ * <p>
+ * Each result is a file named by a hash of its query, written to a temporary file and moved into place so that a
+ * file is either complete or missing. A file is read whole and decoded into points. The layout, all big-endian:
+ * <pre>
+ * int magic, long writtenAt (epoch ms), int keyLength, byte[] key (UTF-8), byte kind (0: point, 1: list)
+ * int stringCount, per string: short length, byte[] string (UTF-8)
+ * int pointCount, per point: long timestamp (epoch ms), int offsetSeconds,
+ *     short measurementCount, per measurement: int idIndex, long value,
+ *     short categoryCount, per category: int keyIndex, int valueIndex
+ * int CRC32C of all the above
+ * </pre>
+ * Measurement ids and category keys and values are written once in the string table. A file failing the checksum or
+ * not matching its query is deleted. The least recently used files are deleted when the total size exceeds the
+ * quota. The order of use is kept in the modification time of the files, so that it is known after a restart.
+ */
+public class DiskResultStore {
+
+    private static final int MAGIC = 0x44525331; // DRS1
+    private static final byte POINT = 0;
+    private static final byte LIST = 1;
+    private static final String SUFFIX = ".res";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Path directory;
+    private final long maximumSize;
+    private final Duration timeToLive;
+    private final Clock clock;
+    private final Executor writer;
+    // File sizes by name in order of use, guarded by itself
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong size = new AtomicLong();
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * @param maximumSize the quota in bytes
+     * @param writer writes results to disk, away from the threads handling queries
+     */
+    public DiskResultStore(Path directory, long maximumSize, Duration timeToLive, Clock clock, Executor writer, MeterRegistry meterRegistry) {
+        this.directory = directory;
+        this.maximumSize = maximumSize;
+        this.timeToLive = timeToLive;
+        this.clock = clock;
+        this.writer = writer;
+        this.hits = meterRegistry.counter("query.results.disk.requests", "result", "hit");
+        this.misses = meterRegistry.counter("query.results.disk.requests", "result", "miss");
+        meterRegistry.gauge("query.results.disk.size", Tags.empty(), size);
+        load();
+    }
+
+    /**
+     * @return the stored result, or <code>null</code> if there is none
+     */
+    Stored get(QueryKey key) {
+        String name = fileName(key);
+        synchronized (files) {
+            if (files.get(name) == null) {
+                misses.increment();
+                return null;
+            }
+        }
+        Path file = directory.resolve(name);
+        Stored result;
+        try {
+            result = decode(ByteBuffer.wrap(Files.readAllBytes(file)), canonical(key));
+        } catch (NoSuchFileException e) {
+            result = null;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read stored result {}", file, e);
+            result = null;
+        }
+        if (result == null) {
+            delete(name);
+            misses.increment();
+            return null;
+        }
+        touch(file);
+        hits.increment();
+        return result;
+    }
+
+    /**
+     * Stores the result in the background, unless it is stored already.
+     */
+    void put(QueryKey key, Object result) {
+        if (!(result instanceof TimeSeriesPoint || result instanceof List))
+            return;
+        String name = fileName(key);
+        synchronized (files) {
+            if (files.containsKey(name))
+                return;
+        }
+        writer.execute(() -> write(name, canonical(key), result));
+    }
+
+    private void write(String name, String key, Object result) {
+        Path file = directory.resolve(name);
+        Path temporary = directory.resolve(name + TEMPORARY_SUFFIX);
+        try {
+            byte[] bytes = encode(key, result);
+            Files.write(temporary, bytes);
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            add(name, bytes.length);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to store result {}", file, e);
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                // Removed by the next restart
+            }
+        }
+    }
+
+    /**
+     * Indexes the files left by earlier runs, least recently used first, and removes unfinished writes.
+     */
+    private void load() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> found = new ArrayList<>();
+            try (Stream<Path> paths = Files.list(directory)) {
+                paths.forEach(found::add);
+            }
+            List<Map.Entry<Path, FileTime>> stored = new ArrayList<>();
+            for (Path path : found) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMPORARY_SUFFIX))
+                    Files.deleteIfExists(path);
+                else if (name.endsWith(SUFFIX))
+                    stored.add(Map.entry(path, Files.getLastModifiedTime(path)));
+            }
+            stored.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+            for (Map.Entry<Path, FileTime> entry : stored)
+                add(entry.getKey().getFileName().toString(), Files.size(entry.getKey()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load stored results from " + directory, e);
+        }
+    }
+
+    private void add(String name, long fileSize) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (files) {
+            Long previous = files.put(name, fileSize);
+            size.addAndGet(fileSize - (previous != null ? previous : 0));
+            Iterator<Map.Entry<String, Long>> eldest = files.entrySet().iterator();
+            while (size.get() > maximumSize && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                size.addAndGet(-entry.getValue());
+                evicted.add(entry.getKey());
+                eldest.remove();
+            }
+        }
+        for (String file : evicted)
+            deleteFile(file);
+    }
+
+    private void delete(String name) {
+        synchronized (files) {
+            Long fileSize = files.remove(name);
+            if (fileSize != null)
+                size.addAndGet(-fileSize);
+        }
+        deleteFile(name);
+    }
+
+    private void deleteFile(String name) {
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException e) {
+            logger.warn("Failed to delete stored result {}", name, e);
+        }
+    }
+
+    private void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.from(clock.instant()));
+        } catch (IOException e) {
+            // Only the order of eviction after a restart suffers
+        }
+    }
+
+    private byte[] encode(String key, Object result) throws IOException {
+        List<TimeSeriesPoint> points = result instanceof TimeSeriesPoint
+                ? List.of((TimeSeriesPoint) result)
+                : castToPoints(result);
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (TimeSeriesPoint point : points) {
+            for (Measurement measurement : point.getMeasurements())
+                strings.putIfAbsent(measurement.getId(), strings.size());
+            for (Map.Entry<String, String> category : categories(point).entrySet()) {
+                strings.putIfAbsent(category.getKey(), strings.size());
+                strings.putIfAbsent(category.getValue(), strings.size());
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(clock.millis());
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeByte(result instanceof TimeSeriesPoint ? POINT : LIST);
+        out.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+            byte[] stringBytes = string.getBytes(UTF_8);
+            if (stringBytes.length > 0xFFFF)
+                throw new IllegalArgumentException("String too long to store: " + string.substring(0, 100) + "...");
+            out.writeShort(stringBytes.length);
+            out.write(stringBytes);
+        }
+        out.writeInt(points.size());
+        for (TimeSeriesPoint point : points) {
+            out.writeLong(point.getTimestamp().toInstant().toEpochMilli());
+            out.writeInt(point.getTimestamp().getOffset().getTotalSeconds());
+            out.writeShort(point.getMeasurements().size());
+            for (Measurement measurement : point.getMeasurements()) {
+                out.writeInt(strings.get(measurement.getId()));
+                out.writeLong(measurement.getValue());
+            }
+            Map<String, String> categories = categories(point);
+            out.writeShort(categories.size());
+            for (Map.Entry<String, String> category : categories.entrySet()) {
+                out.writeInt(strings.get(category.getKey()));
+                out.writeInt(strings.get(category.getValue()));
+            }
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(bytes.toByteArray());
+        out.writeInt((int) checksum.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the result, or <code>null</code> if the file is corrupt, expired or holds the result of another query
+     */
+    private Stored decode(ByteBuffer buffer, String key) {
+        int length = buffer.limit();
+        if (length < 4)
+            return null;
+        CRC32C checksum = new CRC32C();
+        checksum.update(buffer.duplicate().limit(length - 4));
+        if ((int) checksum.getValue() != buffer.getInt(length - 4))
+            return null;
+        if (buffer.getInt() != MAGIC)
+            return null;
+        Instant expiresAt = Instant.ofEpochMilli(buffer.getLong()).plus(timeToLive);
+        if (expiresAt.isBefore(clock.instant()))
+            return null;
+        if (!key.equals(string(buffer, buffer.getInt())))
+            return null;
+        byte kind = buffer.get();
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = string(buffer, Short.toUnsignedInt(buffer.getShort()));
+        int pointCount = buffer.getInt();
+        List<TimeSeriesPoint> points = new ArrayList<>(pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            TimeSeriesPoint.Builder point = TimeSeriesPoint.builder().timestamp(ZonedDateTime.ofInstant(
+                    Instant.ofEpochMilli(buffer.getLong()),
+                    ZoneOffset.ofTotalSeconds(buffer.getInt())
+            ));
+            int measurementCount = Short.toUnsignedInt(buffer.getShort());
+            for (int m = 0; m < measurementCount; m++)
+                point.measurement(strings[buffer.getInt()], buffer.getLong());
+            int categoryCount = Short.toUnsignedInt(buffer.getShort());
+            for (int c = 0; c < categoryCount; c++)
+                point.category(strings[buffer.getInt()], strings[buffer.getInt()]);
+            points.add(point.build());
+        }
+        return new Stored(kind == POINT ? points.get(0) : points, expiresAt);
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return a description of the query that is the same across restarts, unlike its hash code
+     */
+    static String canonical(QueryKey key) {
+        StringBuilder builder = new StringBuilder()
+                .append(key.operation)
+                .append('|').append(key.seriesDefinition.getOwner())
+                .append('|').append(key.seriesDefinition.getName())
+                .append('|').append(key.seriesDefinition.getDistance());
+        if (key.queryFilter.timeRange() != null) {
+            builder.append('|').append(instant(key.queryFilter.timeRange().from()))
+                    .append('|').append(instant(key.queryFilter.timeRange().to()));
+        }
+        builder.append('|').append(new TreeMap<>(key.queryFilter.categories()))
+                .append('|').append(key.queryFilter.perCategory())
+                .append('|').append(key.targetDistance);
+        if (key.percentileFilter != null) {
+            builder.append('|').append(key.percentileFilter.getPercentile())
+                    .append('|').append(key.percentileFilter.getMeasurementId())
+                    .append('|').append(key.percentileFilter.getRelationalOperator());
+        }
+        return builder.toString();
+    }
+
+    private static Instant instant(ZonedDateTime timestamp) {
+        return timestamp != null ? timestamp.toInstant() : null;
+    }
+
+    private static String fileName(QueryKey key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(canonical(key).getBytes(UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16) + SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, String> categories(TimeSeriesPoint point) {
+        return point.getCategories().orElse(Collections.emptyMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<TimeSeriesPoint> castToPoints(Object result) {
+        return (List<TimeSeriesPoint>) result;
+    }
+
+    /**
+     * A result read back from disk.
+     */
+    static class Stored {
+
+        // A point or a list of points
+        final Object result;
+        // When the result is dropped by the time to live
+        final Instant expiresAt;
+
+        private Stored(Object result, Instant expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package no.difi.statistics;
+
+import no.difi.statistics.model.Measurement;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Thins out query results to a maximum number of points with Largest-Triangle-Three-Buckets, which keeps the shape of
+ * the series as it looks in a chart: peaks and dips are kept, flat stretches are thinned. The first and last points
+ * are always kept. A point is ranked by the sum of its measurements.
+ * <p>
+ * Points with different categories are separate series, and are downsampled separately, each to its share of the
+ * maximum. A series keeps at least {@link #minimumPoints} points, so the maximum is exceeded when there are more series
+ * than a third of it.
+ */
+public final class Downsampling {
+
+    public static final int minimumPoints = 3;
+
+    private Downsampling() {
+    }
+
+    /**
+     * @param maxPoints the maximum number of points, or <code>null</code> for all of them
+     * @throws IllegalArgumentException if the maximum is less than three points
+     */
+    public static List<TimeSeriesPoint> downsample(List<TimeSeriesPoint> points, Integer maxPoints) {
+        if (maxPoints == null)
+            return points;
+        if (maxPoints < minimumPoints)
+            throw new IllegalArgumentException("Maximum number of points must be at least " + minimumPoints);
+        if (points.size() <= maxPoints)
+            return points;
+        Map<Map<String, String>, List<TimeSeriesPoint>> series = new LinkedHashMap<>();
+        for (TimeSeriesPoint point : points)
+            series.computeIfAbsent(point.getCategories().orElse(Collections.emptyMap()), c -> new ArrayList<>()).add(point);
+        if (series.size() == 1)
+            return largestTriangleThreeBuckets(points, maxPoints);
+        int maxPointsPerSeries = Math.max(minimumPoints, maxPoints / series.size());
+        List<TimeSeriesPoint> downsampled = new ArrayList<>();
+        series.values().forEach(s -> downsampled.addAll(largestTriangleThreeBuckets(s, maxPointsPerSeries)));
+        downsampled.sort(Comparator.comparing(TimeSeriesPoint::getTimestamp));
+        return downsampled;
+    }
+
+    private static List<TimeSeriesPoint> largestTriangleThreeBuckets(List<TimeSeriesPoint> points, int maxPoints) {
+        int size = points.size();
+        if (size <= maxPoints)
+            return points;
+        double[] x = new double[size];
+        double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = points.get(i).getTimestamp().toInstant().toEpochMilli();
+            y[i] = points.get(i).getMeasurements().stream().mapToLong(Measurement::getValue).sum();
+        }
+        // The first and last points are buckets of their own, and the rest are split evenly between the other buckets
+        double bucketSize = (double) (size - 2) / (maxPoints - 2);
+        List<TimeSeriesPoint> downsampled = new ArrayList<>(maxPoints);
+        downsampled.add(points.get(0));
+        int selected = 0;
+        for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+            int from = (int) (bucket * bucketSize) + 1;
+            int to = Math.min((int) ((bucket + 1) * bucketSize) + 1, size - 1);
+            // The third corner of the triangles is the average of the next bucket
+            int nextFrom = to;
+            int nextTo = Math.min((int) ((bucket + 2) * bucketSize) + 1, size);
+            double averageX = 0;
+            double averageY = 0;
+            for (int i = nextFrom; i < nextTo; i++) {
+                averageX += x[i];
+                averageY += y[i];
+            }
+            averageX /= nextTo - nextFrom;
+            averageY /= nextTo - nextFrom;
+            double largestArea = -1;
+            int largest = from;
+            for (int i = from; i < to; i++) {
+                double area = Math.abs((x[selected] - averageX) * (y[i] - y[selected]) - (x[selected] - x[i]) * (averageY - y[selected]));
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest = i;
+                }
+            }
+            downsampled.add(points.get(largest));
+            selected = largest;
+        }
+        downsampled.add(points.get(size - 1));
+        return downsampled;
+    }
+
+}
@@ -0,0 +1,274 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static no.difi.statistics.model.QueryOperation.last;
+
+/**
+ * Keeps the last point of recently requested series in memory, so that requests for the last point without a range
+ * are answered without querying Elasticsearch. A background task refreshes the points incrementally, by only asking
+ * for points from the timestamp of the one held (the last point may still receive measurements), with a bounded
+ * number of asynchronous queries in flight at a time. A point older than
+ * the maximum staleness, e.g. because refreshing fails, is not served from memory. Series not requested within the
+ * idle timeout are dropped.
+ */
+public class LastPointQueryService implements QueryService {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final QueryService delegate;
+    private final Duration maximumStaleness;
+    private final Duration idleTimeout;
+    private final int maximumSize;
+    private final int refreshConcurrency;
+    private final Clock clock;
+    private final ConcurrentMap<QueryKey, Entry> entries = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * @param refreshConcurrency the maximum number of points refreshed at the same time
+     */
+    public LastPointQueryService(
+            QueryService delegate,
+            Duration refreshInterval,
+            Duration maximumStaleness,
+            Duration idleTimeout,
+            int maximumSize,
+            int refreshConcurrency,
+            Clock clock,
+            TaskScheduler scheduler,
+            MeterRegistry meterRegistry
+    ) {
+        this.delegate = delegate;
+        this.maximumStaleness = maximumStaleness;
+        this.idleTimeout = idleTimeout;
+        this.maximumSize = maximumSize;
+        this.refreshConcurrency = refreshConcurrency;
+        this.clock = clock;
+        this.hits = meterRegistry.counter("query.last.store.requests", "result", "hit");
+        this.misses = meterRegistry.counter("query.last.store.requests", "result", "miss");
+        meterRegistry.gaugeMapSize("query.last.store.size", Tags.empty(), entries);
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval);
+    }
+
+    @Override
+    public TimeSeriesPoint last(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        if (queryFilter.timeRange() != null)
+            return delegate.last(seriesDefinition, queryFilter);
+        QueryKey key = new QueryKey(last, seriesDefinition, queryFilter, null, null);
+        Entry entry = fresh(key);
+        if (entry != null)
+            return entry.point;
+        misses.increment();
+        Instant queried = clock.instant();
+        Deadline deadline = Deadline.current();
+        TimeSeriesPoint point = delegate.last(seriesDefinition, queryFilter);
+        if (Deadline.isComplete(deadline))
+            store(key, point, queried);
+        return point;
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        if (queryFilter.timeRange() != null)
+            return delegate.lastAsync(seriesDefinition, queryFilter);
+        QueryKey key = new QueryKey(last, seriesDefinition, queryFilter, null, null);
+        Entry entry = fresh(key);
+        if (entry != null)
+            return CompletableFuture.completedFuture(entry.point);
+        misses.increment();
+        Instant queried = clock.instant();
+        Deadline deadline = Deadline.current();
+        return delegate.lastAsync(seriesDefinition, queryFilter).thenApply(point -> {
+            if (Deadline.isComplete(deadline))
+                store(key, point, queried);
+            return point;
+        });
+    }
+
+    /**
+     * @return the entry for the key if it is fresh enough to be served, otherwise <code>null</code>
+     */
+    private Entry fresh(QueryKey key) {
+        Entry entry = entries.get(key);
+        if (entry == null)
+            return null;
+        entry.requested = clock.instant();
+        if (entry.refreshed.plus(maximumStaleness).isBefore(clock.instant()))
+            return null;
+        hits.increment();
+        return entry;
+    }
+
+    private void store(QueryKey key, TimeSeriesPoint point, Instant queried) {
+        if (point == null)
+            return;
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.update(point, queried);
+        } else if (entries.size() < maximumSize) {
+            entries.putIfAbsent(key, new Entry(point, queried));
+        }
+    }
+
+    /**
+     * Drops idle entries and refreshes the rest by querying from the timestamp of the point held. Returns when all
+     * entries are refreshed, so that refreshes do not overlap.
+     */
+    void refresh() {
+        Instant idleLimit = clock.instant().minus(idleTimeout);
+        entries.entrySet().removeIf(e -> e.getValue().requested.isBefore(idleLimit));
+        Semaphore permits = new Semaphore(refreshConcurrency);
+        List<CompletableFuture<Void>> refreshes = new ArrayList<>();
+        entries.forEach((key, entry) -> {
+            permits.acquireUninterruptibly();
+            refreshes.add(refresh(key, entry).whenComplete((ignored, e) -> permits.release()));
+        });
+        CompletableFuture.allOf(refreshes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    private CompletableFuture<Void> refresh(QueryKey key, Entry entry) {
+        Instant queried = clock.instant();
+        CompletableFuture<TimeSeriesPoint> refreshed;
+        try {
+            refreshed = delegate.lastAsync(
+                    key.seriesDefinition,
+                    queryFilter().range(entry.point.getTimestamp(), null).categories(key.queryFilter.categories()).build()
+            );
+        } catch (RuntimeException e) {
+            refreshed = CompletableFuture.failedFuture(e);
+        }
+        return refreshed.handle((point, e) -> {
+            if (e != null)
+                logger.warn("Failed to refresh last point of {}", key.seriesDefinition, e);
+            else if (point == null)
+                // No point from the timestamp held means the point was deleted, so let the next request query fully
+                entries.remove(key, entry);
+            else
+                entry.update(point, queried);
+            return null;
+        });
+    }
+
+    @Override
+    public List<TimeSeriesDefinition> availableTimeSeries() {
+        return delegate.availableTimeSeries();
+    }
+
+    @Override
+    public Set<OwnerCategories> categories() throws IOException {
+        return delegate.categories();
+    }
+
+    @Override
+    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return delegate.query(seriesDefinition, queryFilter);
+    }
+
+    @Override
+    public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return delegate.query(seriesDefinition, queryFilter, filter);
+    }
+
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, Consumer<TimeSeriesPoint> consumer) {
+        delegate.stream(seriesDefinition, queryFilter, consumer);
+    }
+
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter, Consumer<TimeSeriesPoint> consumer) {
+        delegate.stream(seriesDefinition, queryFilter, filter, consumer);
+    }
+
+    @Override
+    public List<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return delegate.lastHistogram(seriesDefinition, targetDistance, queryFilter);
+    }
+
+    @Override
+    public TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return delegate.sum(seriesDefinition, queryFilter);
+    }
+
+    @Override
+    public List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return delegate.sumHistogram(seriesDefinition, targetDistance, queryFilter);
+    }
+
+    @Override
+    public Map<String, BatchQueryResult> batch(List<BatchQueryItem> queries) {
+        return delegate.batch(queries);
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return delegate.queryAsync(seriesDefinition, queryFilter);
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return delegate.queryAsync(seriesDefinition, queryFilter, filter);
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> lastHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return delegate.lastHistogramAsync(seriesDefinition, targetDistance, queryFilter);
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> sumAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return delegate.sumAsync(seriesDefinition, queryFilter);
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> sumHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return delegate.sumHistogramAsync(seriesDefinition, targetDistance, queryFilter);
+    }
+
+    private static class Entry {
+
+        private volatile TimeSeriesPoint point;
+        private volatile Instant refreshed;
+        private volatile Instant requested;
+
+        private Entry(TimeSeriesPoint point, Instant refreshed) {
+            this.point = point;
+            this.refreshed = refreshed;
+            this.requested = refreshed;
+        }
+
+        /**
+         * Ignores points older than the one held, which may come from a query started before the last refresh.
+         */
+        private synchronized void update(TimeSeriesPoint point, Instant queried) {
+            if (point.getTimestamp().isBefore(this.point.getTimestamp()))
+                return;
+            this.point = point;
+            if (queried.isAfter(refreshed))
+                this.refreshed = queried;
+        }
+
+    }
+
+}
@@ -0,0 +1,77 @@
+package no.difi.statistics;
+
+import no.difi.statistics.model.*;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Objects;
+
+/**
+ * Identifies a query by everything that determines its result. The time range is normalized to UTC, so that the same
+ * instants given with different offsets give equal keys.
+ */
+final class QueryKey {
+
+    final QueryOperation operation;
+    final TimeSeriesDefinition seriesDefinition;
+    final QueryFilter queryFilter;
+    final MeasurementDistance targetDistance;
+    final PercentileFilter percentileFilter;
+
+    QueryKey(
+            QueryOperation operation,
+            TimeSeriesDefinition seriesDefinition,
+            QueryFilter queryFilter,
+            MeasurementDistance targetDistance,
+            PercentileFilter percentileFilter
+    ) {
+        this.operation = operation;
+        this.seriesDefinition = seriesDefinition;
+        this.queryFilter = normalized(queryFilter);
+        this.targetDistance = targetDistance;
+        this.percentileFilter = percentileFilter;
+    }
+
+    private static QueryFilter normalized(QueryFilter queryFilter) {
+        if (queryFilter.timeRange() == null)
+            return queryFilter;
+        return QueryFilter.queryFilter()
+                .range(utc(queryFilter.timeRange().from()), utc(queryFilter.timeRange().to()))
+                .categories(queryFilter.categories())
+                .perCategory(queryFilter.perCategory())
+                .build();
+    }
+
+    private static ZonedDateTime utc(ZonedDateTime timestamp) {
+        return timestamp != null ? timestamp.withZoneSameInstant(ZoneOffset.UTC) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        QueryKey that = (QueryKey) o;
+        return operation == that.operation &&
+                Objects.equals(seriesDefinition, that.seriesDefinition) &&
+                Objects.equals(queryFilter, that.queryFilter) &&
+                targetDistance == that.targetDistance &&
+                Objects.equals(percentileFilter, that.percentileFilter);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(operation, seriesDefinition, queryFilter, targetDistance, percentileFilter);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryKey{" +
+                "operation=" + operation +
+                ", seriesDefinition=" + seriesDefinition +
+                ", queryFilter=" + queryFilter +
+                ", targetDistance=" + targetDistance +
+                ", percentileFilter=" + percentileFilter +
+                '}';
+    }
+
+}
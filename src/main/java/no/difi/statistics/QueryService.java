@@ -4,7 +4,10 @@ import no.difi.statistics.model.*;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface QueryService {
 
@@ -18,9 +21,42 @@ public interface QueryService {
 
     List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter);
 
+    /**
+     * Same as {@link #query(TimeSeriesDefinition, QueryFilter)}, but hands each point to the consumer as it is
+     * produced instead of returning the complete result.
+     */
+    void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, Consumer<TimeSeriesPoint> consumer);
+
+    /**
+     * Same as {@link #query(TimeSeriesDefinition, QueryFilter, PercentileFilter)}, but hands each point to the
+     * consumer as it is produced instead of returning the complete result.
+     */
+    void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter, Consumer<TimeSeriesPoint> consumer);
+
     List<TimeSeriesPoint> lastHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
 
     TimeSeriesPoint sum(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
 
     List<TimeSeriesPoint> sumHistogram(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
+    /**
+     * Runs several queries at once. A failing query gives an error result for that query rather than failing the
+     * batch.
+     *
+     * @return results keyed by query id, in the order of the queries
+     */
+    Map<String, BatchQueryResult> batch(List<BatchQueryItem> queries);
+
+    CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter);
+
+    CompletableFuture<List<TimeSeriesPoint>> lastHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
+    CompletableFuture<TimeSeriesPoint> sumAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter);
+
+    CompletableFuture<List<TimeSeriesPoint>> sumHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter);
+
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package no.difi.statistics;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.util.List;
+
+/**
+ * Rough estimate of the heap size of query results, for bounding caches by bytes rather than entries. A point with
+ * a handful of measurements and no categories is a few hundred bytes.
+ */
+final class ResultWeigher {
+
+    private static final int listWeight = 64;
+    private static final int pointWeight = 128; // Point, timestamp and the measurement list
+    private static final int measurementWeight = 72; // Measurement, id string and boxed value
+    private static final int categoryWeight = 128; // Map entry, key and value strings
+
+    private ResultWeigher() {
+    }
+
+    static int weight(Object result) {
+        if (result instanceof List) {
+            long weight = listWeight;
+            for (Object point : (List<?>) result)
+                weight += weight(point);
+            return (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+        if (result instanceof TimeSeriesPoint) {
+            TimeSeriesPoint point = (TimeSeriesPoint) result;
+            return pointWeight
+                    + point.getMeasurements().size() * measurementWeight
+                    + point.getCategories().map(categories -> categories.size() * categoryWeight).orElse(0);
+        }
+        return listWeight;
+    }
+
+}
@@ -0,0 +1,152 @@
+package no.difi.statistics.api;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes lists of points column by column as JSON (<code>application/vnd.difi.columnar</code>), so that measurement
+ * ids, categories and timestamps are not repeated in every point:
+ * <pre>
+ * {"series": [{
+ *     "categories": {"TE": "Min side"},
+ *     "timestamps": {"start": 1577836800000, "step": 86400000},
+ *     "measurements": {"user": [12, 17, null], "system": [3, 4, 5]}
+ * }]}
+ * </pre>
+ * Points are grouped into one series per combination of categories. Timestamps are epoch milliseconds, given as start
+ * and step if they are evenly spaced and as an array otherwise (e.g. for months). A measurement missing from a point
+ * is <code>null</code>.
+ * <p>
+ * The media type has no <code>+json</code> suffix, as the JSON converter would then claim it.
+ */
+public class ColumnarPointConverter extends AbstractGenericHttpMessageConverter<List<TimeSeriesPoint>> {
+
+    public static final String APPLICATION_COLUMNAR_VALUE = "application/vnd.difi.columnar";
+    public static final MediaType APPLICATION_COLUMNAR = MediaType.parseMediaType(APPLICATION_COLUMNAR_VALUE);
+    private final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    public ColumnarPointConverter() {
+        super(APPLICATION_COLUMNAR);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        if (!canWrite(mediaType))
+            return false;
+        ResolvableType resolvableType = type != null ? ResolvableType.forType(type) : ResolvableType.forClass(clazz);
+        return List.class.isAssignableFrom(resolvableType.toClass())
+                && resolvableType.asCollection().getGeneric(0).toClass() == TimeSeriesPoint.class;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return List.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected void writeInternal(List<TimeSeriesPoint> points, Type type, HttpOutputMessage outputMessage) throws IOException {
+        Map<Map<String, String>, List<TimeSeriesPoint>> series = new LinkedHashMap<>();
+        for (TimeSeriesPoint point : points)
+            series.computeIfAbsent(point.getCategories().orElse(Collections.emptyMap()), c -> new ArrayList<>()).add(point);
+        try (JsonGenerator generator = jsonFactory.createGenerator(outputMessage.getBody(), JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("series");
+            for (Map.Entry<Map<String, String>, List<TimeSeriesPoint>> entry : series.entrySet())
+                writeSeries(generator, entry.getKey(), entry.getValue());
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeSeries(JsonGenerator generator, Map<String, String> categories, List<TimeSeriesPoint> points) throws IOException {
+        generator.writeStartObject();
+        if (!categories.isEmpty()) {
+            generator.writeObjectFieldStart("categories");
+            for (Map.Entry<String, String> category : categories.entrySet())
+                generator.writeStringField(category.getKey(), category.getValue());
+            generator.writeEndObject();
+        }
+        writeTimestamps(generator, points);
+        Set<String> measurementIds = new LinkedHashSet<>();
+        for (TimeSeriesPoint point : points)
+            point.getMeasurements().forEach(measurement -> measurementIds.add(measurement.getId()));
+        generator.writeObjectFieldStart("measurements");
+        for (String measurementId : measurementIds) {
+            generator.writeArrayFieldStart(measurementId);
+            for (TimeSeriesPoint point : points) {
+                Long value = point.getMeasurement(measurementId).orElse(null);
+                if (value != null)
+                    generator.writeNumber(value);
+                else
+                    generator.writeNull();
+            }
+            generator.writeEndArray();
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    private static void writeTimestamps(JsonGenerator generator, List<TimeSeriesPoint> points) throws IOException {
+        long[] timestamps = new long[points.size()];
+        for (int i = 0; i < timestamps.length; i++)
+            timestamps[i] = points.get(i).getTimestamp().toInstant().toEpochMilli();
+        Long step = step(timestamps);
+        if (step != null) {
+            generator.writeObjectFieldStart("timestamps");
+            generator.writeNumberField("start", timestamps[0]);
+            generator.writeNumberField("step", step);
+            generator.writeEndObject();
+        } else {
+            generator.writeFieldName("timestamps");
+            generator.writeArray(timestamps, 0, timestamps.length);
+        }
+    }
+
+    /**
+     * @return the distance between the timestamps if they are evenly spaced, otherwise <code>null</code>
+     */
+    private static Long step(long[] timestamps) {
+        if (timestamps.length < 2)
+            return timestamps.length == 1 ? 0L : null;
+        long step = timestamps[1] - timestamps[0];
+        for (int i = 2; i < timestamps.length; i++) {
+            if (timestamps[i] - timestamps[i - 1] != step)
+                return null;
+        }
+        return step;
+    }
+
+    @Override
+    public List<TimeSeriesPoint> read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Columnar points are not accepted as input", inputMessage);
+    }
+
+    @Override
+    protected List<TimeSeriesPoint> readInternal(Class<? extends List<TimeSeriesPoint>> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Columnar points are not accepted as input", inputMessage);
+    }
+
+}
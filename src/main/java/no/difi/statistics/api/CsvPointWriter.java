@@ -0,0 +1,80 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.model.Measurement;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes points as comma separated values (RFC 4180), one row per point. The columns are given by the first point:
+ * the timestamp, then its category keys and then its measurement identifiers, each in alphabetical order. All points
+ * of a result carry the same categories and measurements, so the header is known before the rest of the result is. An
+ * empty result has no point to take the columns from, and is written as a header with only the timestamp column.
+ */
+class CsvPointWriter implements TimeSeriesPointWriter {
+
+    static final String TEXT_CSV_VALUE = "text/csv";
+
+    private final Writer writer;
+    private List<String> categoryKeys;
+    private List<String> measurementIds;
+
+    CsvPointWriter(OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+    }
+
+    @Override
+    public void write(TimeSeriesPoint point) throws IOException {
+        if (measurementIds == null)
+            writeHeader(point);
+        writer.write(Timestamp.format(point.getTimestamp()));
+        Map<String, String> categories = point.getCategories().orElse(Collections.emptyMap());
+        for (String categoryKey : categoryKeys)
+            writeField(categories.getOrDefault(categoryKey, ""));
+        for (String measurementId : measurementIds)
+            writeField(point.getMeasurement(measurementId).map(String::valueOf).orElse(""));
+        writer.write("\r\n");
+    }
+
+    private void writeHeader(TimeSeriesPoint point) throws IOException {
+        categoryKeys = new ArrayList<>(new TreeSet<>(point.getCategories().orElse(Collections.emptyMap()).keySet()));
+        measurementIds = new ArrayList<>(new TreeSet<>(point.getMeasurements().stream().map(Measurement::getId).toList()));
+        writer.write("timestamp");
+        for (String categoryKey : categoryKeys)
+            writeField(categoryKey);
+        for (String measurementId : measurementIds)
+            writeField(measurementId);
+        writer.write("\r\n");
+    }
+
+    private void writeField(String value) throws IOException {
+        writer.write(',');
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (measurementIds == null)
+            writer.write("timestamp\r\n");
+        writer.flush();
+    }
+
+}
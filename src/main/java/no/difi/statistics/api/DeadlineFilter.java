@@ -0,0 +1,58 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.Deadline;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Gives each request a {@link Deadline}, bound to the request thread while the request is handled. A client may ask
+ * for a shorter deadline than the configured one with the header <code>X-Request-Timeout</code>, e.g.
+ * <code>5s</code> or <code>500ms</code>.
+ */
+public class DeadlineFilter extends OncePerRequestFilter {
+
+    public static final String REQUEST_TIMEOUT = "X-Request-Timeout";
+    static final String DEADLINE_ATTRIBUTE = Deadline.class.getName();
+    private final Duration maximumTimeout;
+
+    public DeadlineFilter(Duration maximumTimeout) {
+        this.maximumTimeout = maximumTimeout;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        Duration timeout;
+        try {
+            timeout = timeout(request.getHeader(REQUEST_TIMEOUT));
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        Deadline deadline = Deadline.after(timeout);
+        request.setAttribute(DEADLINE_ATTRIBUTE, deadline);
+        Deadline.bind(deadline);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            Deadline.unbind();
+        }
+    }
+
+    private Duration timeout(String requested) {
+        if (requested == null || requested.isBlank())
+            return maximumTimeout;
+        Duration timeout = DurationStyle.detectAndParse(requested.trim());
+        if (timeout.isNegative() || timeout.isZero())
+            throw new IllegalArgumentException("Invalid " + REQUEST_TIMEOUT + ": " + requested);
+        return timeout.compareTo(maximumTimeout) < 0 ? timeout : maximumTimeout;
+    }
+
+}
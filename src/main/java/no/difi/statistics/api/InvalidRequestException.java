@@ -0,0 +1,12 @@
+package no.difi.statistics.api;
+
+/**
+ * A request the API cannot answer as it stands, e.g. with invalid parameters. Answered with 400.
+ */
+class InvalidRequestException extends RuntimeException {
+
+    InvalidRequestException(String message) {
+        super(message);
+    }
+
+}
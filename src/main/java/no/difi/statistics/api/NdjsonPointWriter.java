@@ -0,0 +1,39 @@
+package no.difi.statistics.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes each point as a JSON object on a line of its own (<code>application/x-ndjson</code>). The points are
+ * serialized exactly as in the JSON responses.
+ */
+class NdjsonPointWriter implements TimeSeriesPointWriter {
+
+    private final ObjectWriter objectWriter;
+    private final JsonGenerator generator;
+
+    NdjsonPointWriter(ObjectMapper objectMapper, OutputStream out) throws IOException {
+        this.objectWriter = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        this.generator = objectMapper.getFactory().createGenerator(out)
+                .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .setRootValueSeparator(null);
+    }
+
+    @Override
+    public void write(TimeSeriesPoint point) throws IOException {
+        objectWriter.writeValue(generator, point);
+        generator.writeRaw('\n');
+    }
+
+    @Override
+    public void finish() throws IOException {
+        generator.close();
+    }
+
+}
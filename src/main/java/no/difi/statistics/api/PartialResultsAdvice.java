@@ -0,0 +1,53 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.Deadline;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Flags responses with the header <code>X-Partial-Results: true</code> when some of the searches behind them ran out
+ * of time and returned what they had, see {@link Deadline}. Such responses must not be cached, nor given an ETag.
+ * Streamed responses are not flagged, as their headers are sent before the searches complete.
+ */
+@ControllerAdvice
+public class PartialResultsAdvice implements ResponseBodyAdvice<Object> {
+
+    public static final String PARTIAL_RESULTS = "X-Partial-Results";
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(
+            Object body,
+            MethodParameter returnType,
+            MediaType selectedContentType,
+            Class<? extends HttpMessageConverter<?>> selectedConverterType,
+            ServerHttpRequest request,
+            ServerHttpResponse response
+    ) {
+        if (request instanceof ServletServerHttpRequest) {
+            Object deadline = ((ServletServerHttpRequest) request).getServletRequest().getAttribute(DeadlineFilter.DEADLINE_ATTRIBUTE);
+            if (deadline instanceof Deadline && ((Deadline) deadline).isPartial()) {
+                response.getHeaders().set(PARTIAL_RESULTS, "true");
+                // Replaces the header set by ResponseCaching, rather than adding one next to it
+                if (response instanceof ServletServerHttpResponse)
+                    ((ServletServerHttpResponse) response).getServletResponse()
+                            .setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+            }
+        }
+        return body;
+    }
+
+}
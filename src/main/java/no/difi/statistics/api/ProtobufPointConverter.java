@@ -0,0 +1,74 @@
+package no.difi.statistics.api;
+
+import com.google.protobuf.CodedOutputStream;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Writes points with the Protocol Buffers schema published as <code>/time-series.proto</code>: a single point as a
+ * <code>TimeSeriesPoint</code> message and a list of points as a <code>TimeSeriesPoints</code> message.
+ */
+public class ProtobufPointConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+    public static final MediaType APPLICATION_PROTOBUF = MediaType.parseMediaType(ProtobufPointWriter.APPLICATION_PROTOBUF_VALUE);
+
+    public ProtobufPointConverter() {
+        super(APPLICATION_PROTOBUF);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        if (!canWrite(mediaType))
+            return false;
+        ResolvableType resolvableType = type != null ? ResolvableType.forType(type) : ResolvableType.forClass(clazz);
+        if (resolvableType.toClass() == TimeSeriesPoint.class)
+            return true;
+        return List.class.isAssignableFrom(resolvableType.toClass())
+                && resolvableType.asCollection().getGeneric(0).toClass() == TimeSeriesPoint.class;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return clazz == TimeSeriesPoint.class || List.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void writeInternal(Object value, Type type, HttpOutputMessage outputMessage) throws IOException {
+        if (value instanceof TimeSeriesPoint) {
+            CodedOutputStream output = CodedOutputStream.newInstance(outputMessage.getBody());
+            ProtobufPointWriter.writePoint(output, (TimeSeriesPoint) value);
+            output.flush();
+        } else {
+            ProtobufPointWriter writer = new ProtobufPointWriter(outputMessage.getBody());
+            for (TimeSeriesPoint point : (List<TimeSeriesPoint>) value)
+                writer.write(point);
+            writer.finish();
+        }
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Protocol Buffers are not accepted as input", inputMessage);
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Protocol Buffers are not accepted as input", inputMessage);
+    }
+
+}
@@ -0,0 +1,93 @@
+package no.difi.statistics.api;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import no.difi.statistics.model.Measurement;
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Writes points as a <code>TimeSeriesPoints</code> message of the published schema (<code>/time-series.proto</code>).
+ * A repeated field is encoded as its elements one after another, so the message can be written point by point. The
+ * encoding is written by hand rather than through generated classes, which would copy every point once more.
+ */
+class ProtobufPointWriter implements TimeSeriesPointWriter {
+
+    static final String APPLICATION_PROTOBUF_VALUE = "application/x-protobuf";
+    // Field numbers of the schema
+    private static final int POINTS = 1;
+    private static final int TIMESTAMP = 1;
+    private static final int MEASUREMENTS = 2;
+    private static final int CATEGORIES = 3;
+    private static final int KEY = 1;
+    private static final int VALUE = 2;
+
+    private final CodedOutputStream output;
+
+    ProtobufPointWriter(OutputStream out) {
+        this.output = CodedOutputStream.newInstance(out);
+    }
+
+    @Override
+    public void write(TimeSeriesPoint point) throws IOException {
+        output.writeTag(POINTS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(pointSize(point));
+        writePoint(output, point);
+    }
+
+    @Override
+    public void finish() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Writes the fields of a <code>TimeSeriesPoint</code> message.
+     */
+    static void writePoint(CodedOutputStream output, TimeSeriesPoint point) throws IOException {
+        output.writeInt64(TIMESTAMP, point.getTimestamp().toInstant().toEpochMilli());
+        for (Measurement measurement : point.getMeasurements()) {
+            output.writeTag(MEASUREMENTS, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(measurementSize(measurement));
+            output.writeString(KEY, measurement.getId());
+            output.writeInt64(VALUE, measurement.getValue());
+        }
+        for (Map.Entry<String, String> category : categories(point).entrySet()) {
+            output.writeTag(CATEGORIES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            output.writeUInt32NoTag(categorySize(category));
+            output.writeString(KEY, category.getKey());
+            output.writeString(VALUE, category.getValue());
+        }
+    }
+
+    private static int pointSize(TimeSeriesPoint point) {
+        int size = CodedOutputStream.computeInt64Size(TIMESTAMP, point.getTimestamp().toInstant().toEpochMilli());
+        for (Measurement measurement : point.getMeasurements())
+            size += entrySize(MEASUREMENTS, measurementSize(measurement));
+        for (Map.Entry<String, String> category : categories(point).entrySet())
+            size += entrySize(CATEGORIES, categorySize(category));
+        return size;
+    }
+
+    private static int entrySize(int field, int size) {
+        return CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    private static int measurementSize(Measurement measurement) {
+        return CodedOutputStream.computeStringSize(KEY, measurement.getId())
+                + CodedOutputStream.computeInt64Size(VALUE, measurement.getValue());
+    }
+
+    private static int categorySize(Map.Entry<String, String> category) {
+        return CodedOutputStream.computeStringSize(KEY, category.getKey())
+                + CodedOutputStream.computeStringSize(VALUE, category.getValue());
+    }
+
+    private static Map<String, String> categories(TimeSeriesPoint point) {
+        return point.getCategories().orElse(Collections.emptyMap());
+    }
+
+}
@@ -1,44 +1,129 @@
 package no.difi.statistics.api;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.swagger.v3.oas.annotations.Hidden;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import no.difi.statistics.Deadline;
+import no.difi.statistics.Downsampling;
 import no.difi.statistics.QueryService;
 import no.difi.statistics.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.web.HttpMediaTypeNotAcceptableException;
+import org.springframework.web.accept.ContentNegotiationManager;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.view.RedirectView;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.api.CsvPointWriter.TEXT_CSV_VALUE;
+import static no.difi.statistics.api.ProtobufPointWriter.APPLICATION_PROTOBUF_VALUE;
 import static no.difi.statistics.model.QueryFilter.queryFilter;
 
 @Tag(name = "Statistics-query", description = "Hent ut data frå statistikk-databasen")
 @RestController
 public class QueryRestController {
 
+    private static final MediaType TEXT_CSV = MediaType.parseMediaType(TEXT_CSV_VALUE);
+    private static final String TOTAL_COUNT = "X-Total-Count";
+    private static final String MAX_POINTS_DESCRIPTION = "høgaste tal på datapunkt i svaret, minst " + Downsampling.minimumPoints
+            + ". Fleire datapunkt blir tynna ut med Largest-Triangle-Three-Buckets, slik at forma på tidsserien blir halden";
+
     private final QueryService service;
+    private final boolean async;
+    private final int batchMaxSize;
+    private final ContentNegotiationManager contentNegotiationManager;
+    private final ResponseCaching responseCaching;
+    // Configured like the mapper of the default JSON message converter, so that streamed points look the same
+    private final ObjectMapper streamingObjectMapper = Jackson2ObjectMapperBuilder.json().build();
 
-    public QueryRestController(QueryService service) {
+    /**
+     * @param async whether to use the non-blocking query execution of the service. The blocking variant is kept
+     *              for comparison, and still responds with completed futures.
+     * @param batchMaxSize the maximum number of queries in a batch
+     */
+    public QueryRestController(
+            QueryService service,
+            @Value("${no.difi.statistics.api.async}") boolean async,
+            @Value("${no.difi.statistics.api.batch-max-size}") int batchMaxSize,
+            ContentNegotiationManager contentNegotiationManager,
+            ResponseCaching responseCaching) {
         this.service = service;
+        this.async = async;
+        this.batchMaxSize = batchMaxSize;
+        this.contentNegotiationManager = contentNegotiationManager;
+        this.responseCaching = responseCaching;
     }
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @ExceptionHandler
     @ResponseStatus
-    public String handle(Exception e) {
+    public String handle(Exception e, HttpServletResponse response) {
+        ResponseCaching.notCached(response);
         logger.error("Query failed", e);
         return e.getMessage();
     }
 
+    /**
+     * Elasticsearch is failing or overloaded, and the query was rejected without being sent, or there is no thread
+     * free to stream the response.
+     */
+    @ExceptionHandler({CallNotPermittedException.class, BulkheadFullException.class, TaskRejectedException.class})
+    @ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+    public String unavailable(RuntimeException e, HttpServletResponse response) {
+        ResponseCaching.notCached(response);
+        logger.warn("Query rejected: {}", e.getMessage());
+        return e.getMessage();
+    }
+
+    @ExceptionHandler(InvalidRequestException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String invalid(InvalidRequestException e, HttpServletResponse response) {
+        ResponseCaching.notCached(response);
+        return e.getMessage();
+    }
+
+    /**
+     * The request deadline passed before Elasticsearch had anything to answer with.
+     */
+    @ExceptionHandler(Deadline.DeadlineExceededException.class)
+    @ResponseStatus(HttpStatus.GATEWAY_TIMEOUT)
+    public String deadlineExceeded(Deadline.DeadlineExceededException e, HttpServletResponse response) {
+        ResponseCaching.notCached(response);
+        logger.warn("Query timed out: {}", e.getMessage());
+        return e.getMessage();
+    }
+
     @Hidden
     @GetMapping("/")
     public RedirectView index() {
@@ -47,8 +132,30 @@ public class QueryRestController {
 
     @Operation(summary = "Hent ut liste over tilgjengelege tidsseriar")
     @GetMapping("/meta")
-    public List<TimeSeriesDefinition> available() {
-        return service.availableTimeSeries();
+    public ResponseEntity<List<TimeSeriesDefinition>> available(
+            @Parameter(name = "owner", example = "991825827", description = "berre tidsseriar med denne eigaren")
+            @RequestParam(required = false) String owner,
+            @Parameter(name = "name", example = "idporten-innlogging", description = "berre tidsseriar med dette namnet")
+            @RequestParam(required = false) String name,
+            @Parameter(name = "distance", description = "berre tidsseriar med denne måleavstanden")
+            @RequestParam(required = false) MeasurementDistance distance,
+            @Parameter(name = "page", example = "0", description = "sidenummer, frå 0. Utan dette kjem alle tidsseriane")
+            @RequestParam(required = false) Integer page,
+            @Parameter(name = "size", example = "100", description = "tal på tidsseriar per side")
+            @RequestParam(defaultValue = "100") int size
+    ) {
+        List<TimeSeriesDefinition> matching = service.availableTimeSeries().stream()
+                .filter(definition -> owner == null || owner.equals(definition.getOwner()))
+                .filter(definition -> name == null || name.equals(definition.getName()))
+                .filter(definition -> distance == null || distance == definition.getDistance())
+                .collect(toList());
+        if (page == null)
+            return ResponseEntity.ok().header(TOTAL_COUNT, String.valueOf(matching.size())).body(matching);
+        if (page < 0 || size < 1)
+            throw new InvalidRequestException(format("Invalid page %d of size %d", page, size));
+        int from = (int) Math.min((long) page * size, matching.size());
+        int to = Math.min(from + size, matching.size());
+        return ResponseEntity.ok().header(TOTAL_COUNT, String.valueOf(matching.size())).body(matching.subList(from, to));
     }
 
     @Operation(summary = "Hent ut liste over tilgjengelege kategorier")
@@ -57,9 +164,13 @@ public class QueryRestController {
         return service.categories();
     }
 
-    @Operation(summary = "Hent data frå ein tidsserie")
+    @Operation(
+            summary = "Hent data frå ein tidsserie",
+            description = "Svaret er JSON, eller Smile, CBOR, Protocol Buffers (skjema i /time-series.proto) eller kolonnevis JSON "
+                    + "når klienten ber om det med Accept eller parameteren format (smile, cbor, protobuf eller columnar)."
+    )
     @GetMapping("/{owner}/{seriesName}/{distance}")
-    public List<TimeSeriesPoint> query(
+    public CompletableFuture<List<TimeSeriesPoint>> query(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
@@ -69,15 +180,47 @@ public class QueryRestController {
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
             @RequestParam(required = false) String categories,
-            @RequestParam(required = false) String perCategory
+            @RequestParam(required = false) String perCategory,
+            @Parameter(name = "maxPoints", example = "1000", description = MAX_POINTS_DESCRIPTION)
+            @RequestParam(required = false) Integer maxPoints,
+            NativeWebRequest request
     ) {
+        validateMaxPoints(maxPoints);
+        if (responseCaching.notModified(request, to))
+            return null;
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).perCategory(perCategory).build();
+        return downsampled(
+                execute(() -> service.query(seriesDefinition, queryFilter), () -> service.queryAsync(seriesDefinition, queryFilter)),
+                maxPoints
+        );
+    }
+
+    @Operation(summary = "Hent data frå ein tidsserie som ein straum av datapunkt (NDJSON, CSV eller Protocol Buffers)")
+    @GetMapping(value = "/{owner}/{seriesName}/{distance}", produces = {MediaType.APPLICATION_NDJSON_VALUE, TEXT_CSV_VALUE, APPLICATION_PROTOBUF_VALUE})
+    public ResponseEntity<StreamingResponseBody> queryStreaming(
+            @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
+            @PathVariable String owner,
+            @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
+            @PathVariable String seriesName,
+            @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
+            @PathVariable MeasurementDistance distance,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
+            @RequestParam(required = false) String categories,
+            @RequestParam(required = false) String perCategory,
+            NativeWebRequest request
+    ) throws HttpMediaTypeNotAcceptableException {
+        if (responseCaching.notModified(request, to))
+            return null;
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.query(seriesDefinition, queryFilter().range(from, to).categories(categories).perCategory(perCategory).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).perCategory(perCategory).build();
+        return streamingResponse(request, consumer -> service.stream(seriesDefinition, queryFilter, consumer));
     }
 
     @Operation(summary = "Hent nyaste datapunkt frå ein tidsserie")
     @GetMapping("/{owner}/{seriesName}/{distance}/last")
-    public TimeSeriesPoint last(
+    public CompletableFuture<TimeSeriesPoint> last(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
@@ -86,15 +229,19 @@ public class QueryRestController {
             @PathVariable MeasurementDistance distance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            NativeWebRequest request
     ) {
+        if (responseCaching.notModified(request, to))
+            return null;
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.last(seriesDefinition, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).build();
+        return execute(() -> service.last(seriesDefinition, queryFilter), () -> service.lastAsync(seriesDefinition, queryFilter));
     }
 
     @Operation(summary = "Hent nyaste datapunkt frå ein tidsserie")
     @GetMapping("{owner}/{seriesName}/{distance}/last/{targetDistance}")
-    public List<TimeSeriesPoint> lastHistogram(
+    public CompletableFuture<List<TimeSeriesPoint>> lastHistogram(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
@@ -104,17 +251,30 @@ public class QueryRestController {
             @PathVariable MeasurementDistance targetDistance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @Parameter(name = "maxPoints", example = "1000", description = MAX_POINTS_DESCRIPTION)
+            @RequestParam(required = false) Integer maxPoints,
+            NativeWebRequest request
     ) {
         validateMeasurementDistance(distance, targetDistance);
+        validateMaxPoints(maxPoints);
+        if (responseCaching.notModified(request, to))
+            return null;
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.lastHistogram(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).build();
+        return downsampled(
+                execute(
+                        () -> service.lastHistogram(seriesDefinition, targetDistance, queryFilter),
+                        () -> service.lastHistogramAsync(seriesDefinition, targetDistance, queryFilter)
+                ),
+                maxPoints
+        );
     }
 
     @Operation(summary = "Hent eit datapunkt med sum av målingar",
         description = "Returnerer eitt datapunkt")
     @GetMapping("{owner}/{seriesName}/{distance}/sum")
-    public TimeSeriesPoint sum(
+    public CompletableFuture<TimeSeriesPoint> sum(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
@@ -123,16 +283,20 @@ public class QueryRestController {
             @PathVariable MeasurementDistance distance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            NativeWebRequest request
     ) {
+        if (responseCaching.notModified(request, to))
+            return null;
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.sum(seriesDefinition, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).build();
+        return execute(() -> service.sum(seriesDefinition, queryFilter), () -> service.sumAsync(seriesDefinition, queryFilter));
     }
 
     @Operation(summary = "Hent datapunkter med summar av målingar, omforma til ny måleavstand",
         description = "Ein tidsserie med måleavstand på timar kan for eksempel summerast opp på dag, månad eller årsnivå.")
     @GetMapping("{owner}/{seriesName}/{distance}/sum/{targetDistance}")
-    public List<TimeSeriesPoint> sumHistogram(
+    public CompletableFuture<List<TimeSeriesPoint>> sumHistogram(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
@@ -142,16 +306,29 @@ public class QueryRestController {
             @PathVariable MeasurementDistance targetDistance,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
-            @RequestParam(required = false) String categories
+            @RequestParam(required = false) String categories,
+            @Parameter(name = "maxPoints", example = "1000", description = MAX_POINTS_DESCRIPTION)
+            @RequestParam(required = false) Integer maxPoints,
+            NativeWebRequest request
     ) {
         validateMeasurementDistance(distance, targetDistance);
+        validateMaxPoints(maxPoints);
+        if (responseCaching.notModified(request, to))
+            return null;
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.sumHistogram(seriesDefinition, targetDistance, queryFilter().range(from, to).categories(categories).build());
+        QueryFilter queryFilter = queryFilter().range(from, to).categories(categories).build();
+        return downsampled(
+                execute(
+                        () -> service.sumHistogram(seriesDefinition, targetDistance, queryFilter),
+                        () -> service.sumHistogramAsync(seriesDefinition, targetDistance, queryFilter)
+                ),
+                maxPoints
+        );
     }
 
     @GetMapping(path = "{owner}/{seriesName}/{distance}/percentile", params = {"percentile", "measurementId", "operator"})
     @Operation(summary = "", description = "<b>Experimental feature -- use at your own risk. Categorized series are not supported.</b>")
-    public List<TimeSeriesPoint> relationalToPercentile(
+    public CompletableFuture<List<TimeSeriesPoint>> relationalToPercentile(
             @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
             @PathVariable String owner,
             @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
@@ -163,10 +340,147 @@ public class QueryRestController {
             @RequestParam(required = false) String categories,
             @RequestParam int percentile,
             @RequestParam String measurementId,
-            @RequestParam RelationalOperator operator
+            @RequestParam RelationalOperator operator,
+            @Parameter(name = "maxPoints", example = "1000", description = MAX_POINTS_DESCRIPTION)
+            @RequestParam(required = false) Integer maxPoints,
+            NativeWebRequest request
     ) {
+        validateMaxPoints(maxPoints);
+        if (responseCaching.notModified(request, to))
+            return null;
+        TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+        QueryFilter queryFilter = queryFilter().range(from, to).build();
+        PercentileFilter percentileFilter = new PercentileFilter(percentile, measurementId, operator);
+        return downsampled(
+                execute(
+                        () -> service.query(seriesDefinition, queryFilter, percentileFilter),
+                        () -> service.queryAsync(seriesDefinition, queryFilter, percentileFilter)
+                ),
+                maxPoints
+        );
+    }
+
+    @GetMapping(
+            path = "{owner}/{seriesName}/{distance}/percentile",
+            params = {"percentile", "measurementId", "operator"},
+            produces = {MediaType.APPLICATION_NDJSON_VALUE, TEXT_CSV_VALUE, APPLICATION_PROTOBUF_VALUE}
+    )
+    @Operation(summary = "", description = "<b>Experimental feature -- use at your own risk. Categorized series are not supported.</b> Datapunkta blir strøyma som NDJSON, CSV eller Protocol Buffers.")
+    public ResponseEntity<StreamingResponseBody> relationalToPercentileStreaming(
+            @Parameter(name = "owner", example = "991825827", required = true, description = "eigar av tidsserien i form av eit organisasjonsnummer")
+            @PathVariable String owner,
+            @Parameter(name = "seriesName", example = "idporten-innlogging", required = true, description = "namn på tidsserie")
+            @PathVariable String seriesName,
+            @Parameter(name = "distance", required = true, description = "tidsserien sin måleavstand")
+            @PathVariable MeasurementDistance distance,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime to,
+            @RequestParam int percentile,
+            @RequestParam String measurementId,
+            @RequestParam RelationalOperator operator,
+            NativeWebRequest request
+    ) throws HttpMediaTypeNotAcceptableException {
+        if (responseCaching.notModified(request, to))
+            return null;
         TimeSeriesDefinition seriesDefinition = TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
-        return service.query(seriesDefinition, queryFilter().range(from, to).build(), new PercentileFilter(percentile, measurementId, operator));
+        QueryFilter queryFilter = queryFilter().range(from, to).build();
+        PercentileFilter percentileFilter = new PercentileFilter(percentile, measurementId, operator);
+        return streamingResponse(request, consumer -> service.stream(seriesDefinition, queryFilter, percentileFilter, consumer));
+    }
+
+    @Operation(
+            summary = "Hent data frå fleire tidsseriar i ein førespurnad",
+            description = "Kvar spørring har ein id vald av klienten, og resultata blir returnerte med denne id-en som nøkkel. "
+                    + "Moglege operasjonar er 'query', 'last', 'sum', 'lastHistogram' og 'sumHistogram'. Dei to siste krev 'targetDistance'. "
+                    + "Ei spørring som feilar gjev ein feilmelding for den spørringa, utan at dei andre feilar."
+    )
+    @PostMapping("/batch")
+    public Map<String, BatchQueryResult> batch(@RequestBody List<BatchQueryItem> queries) {
+        if (queries.size() > batchMaxSize)
+            throw new InvalidRequestException(format("Batch size %d exceeds maximum of %d", queries.size(), batchMaxSize));
+        Set<String> ids = new HashSet<>();
+        for (BatchQueryItem query : queries) {
+            if (query.getId() == null)
+                throw new InvalidRequestException("Every query in a batch must have an id");
+            if (!ids.add(query.getId()))
+                throw new InvalidRequestException("Duplicate query id in batch: " + query.getId());
+        }
+        return service.batch(queries);
+    }
+
+    /**
+     * Writes the points produced by the query to the response body as they arrive, in the format preferred by the
+     * client.
+     */
+    private ResponseEntity<StreamingResponseBody> streamingResponse(
+            NativeWebRequest request,
+            Consumer<Consumer<TimeSeriesPoint>> query
+    ) throws HttpMediaTypeNotAcceptableException {
+        MediaType mediaType = streamingMediaType(contentNegotiationManager.resolveMediaTypes(request));
+        // The ETag filter would hold the whole stream in memory to hash it
+        ShallowEtagHeaderFilter.disableContentCaching(request.getNativeRequest(ServletRequest.class));
+        Deadline deadline = Deadline.current();
+        return ResponseEntity.ok().contentType(mediaType).body(out -> {
+            TimeSeriesPointWriter writer = TEXT_CSV.equalsTypeAndSubtype(mediaType)
+                    ? new CsvPointWriter(out)
+                    : ProtobufPointConverter.APPLICATION_PROTOBUF.equalsTypeAndSubtype(mediaType)
+                    ? new ProtobufPointWriter(out)
+                    : new NdjsonPointWriter(streamingObjectMapper, out);
+            Deadline.bind(deadline);
+            try {
+                query.accept(point -> {
+                    try {
+                        writer.write(point);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                Deadline.unbind();
+            }
+            writer.finish();
+        });
+    }
+
+    /**
+     * @param acceptedMediaTypes the media types accepted by the client, from the Accept header or the format parameter
+     * @return the streaming media type preferred by the client
+     */
+    private static MediaType streamingMediaType(List<MediaType> acceptedMediaTypes) {
+        acceptedMediaTypes = new ArrayList<>(acceptedMediaTypes);
+        MediaType.sortBySpecificityAndQuality(acceptedMediaTypes);
+        for (MediaType acceptedMediaType : acceptedMediaTypes) {
+            if (acceptedMediaType.isCompatibleWith(MediaType.APPLICATION_NDJSON))
+                return MediaType.APPLICATION_NDJSON;
+            if (acceptedMediaType.isCompatibleWith(TEXT_CSV))
+                return new MediaType(TEXT_CSV, UTF_8);
+            if (acceptedMediaType.isCompatibleWith(ProtobufPointConverter.APPLICATION_PROTOBUF))
+                return ProtobufPointConverter.APPLICATION_PROTOBUF;
+        }
+        return MediaType.APPLICATION_NDJSON;
+    }
+
+    private <T> CompletableFuture<T> execute(Supplier<T> query, Supplier<CompletableFuture<T>> asyncQuery) {
+        if (async)
+            return asyncQuery.get();
+        return CompletableFuture.completedFuture(query.get());
+    }
+
+    /**
+     * Downsampling is done here rather than in the service, so that cached results are complete and can serve any
+     * maximum.
+     */
+    private static CompletableFuture<List<TimeSeriesPoint>> downsampled(CompletableFuture<List<TimeSeriesPoint>> points, Integer maxPoints) {
+        if (maxPoints == null)
+            return points;
+        return points.thenApply(p -> Downsampling.downsample(p, maxPoints));
+    }
+
+    private static void validateMaxPoints(Integer maxPoints) {
+        if (maxPoints != null && maxPoints < Downsampling.minimumPoints)
+            throw new InvalidRequestException(format("Maximum number of points must be at least %d", Downsampling.minimumPoints));
     }
 
     private void validateMeasurementDistance(MeasurementDistance distance, MeasurementDistance targetDistance) {
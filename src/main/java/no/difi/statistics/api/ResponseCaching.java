@@ -0,0 +1,79 @@
+package no.difi.statistics.api;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.context.request.NativeWebRequest;
+
+import javax.servlet.http.HttpServletResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+/**
+ * Conditional requests and caching headers for responses with points. A range ending before the ingestion horizon is
+ * closed, as its points are final: its responses get the time it closed as <code>Last-Modified</code> and may be kept
+ * by shared caches, and a request with an <code>If-Modified-Since</code> at or after that time is answered with 304
+ * without searching. Responses for open ranges must be revalidated, against the strong ETag set by
+ * {@link org.springframework.web.filter.ShallowEtagHeaderFilter}. That still runs the query, but saves the transfer.
+ * Error responses are never cached.
+ */
+public class ResponseCaching {
+
+    private final boolean enabled;
+    private final Duration ingestionHorizon;
+    private final Duration closedMaxAge;
+    private final Clock clock;
+
+    /**
+     * @param ingestionHorizon data older than this is considered final
+     * @param closedMaxAge how long caches may serve responses for closed ranges without revalidating them
+     */
+    public ResponseCaching(boolean enabled, Duration ingestionHorizon, Duration closedMaxAge, Clock clock) {
+        this.enabled = enabled;
+        this.ingestionHorizon = ingestionHorizon;
+        this.closedMaxAge = closedMaxAge;
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the caching headers of a response with the points of a range.
+     *
+     * @param to the end of the range, or <code>null</code> if it is open-ended
+     * @return whether the copy held by the client is current. The response is then a 304, and the query need not run.
+     */
+    public boolean notModified(NativeWebRequest request, ZonedDateTime to) {
+        if (!enabled)
+            return false;
+        HttpServletResponse response = request.getNativeResponse(HttpServletResponse.class);
+        if (response != null) {
+            response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl(to).getHeaderValue());
+        }
+        ZonedDateTime closedAt = closedAt(to);
+        return closedAt != null && request.checkNotModified(closedAt.toInstant().toEpochMilli());
+    }
+
+    /**
+     * Replaces the caching headers set by {@link #notModified(NativeWebRequest, ZonedDateTime)}, for responses that
+     * turn out to be errors. Those must not be kept by caches even if the range is closed.
+     */
+    static void notCached(HttpServletResponse response) {
+        if (!response.isCommitted())
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CacheControl.noStore().getHeaderValue());
+    }
+
+    private CacheControl cacheControl(ZonedDateTime to) {
+        return closedAt(to) != null ? CacheControl.maxAge(closedMaxAge).cachePublic() : CacheControl.noCache();
+    }
+
+    /**
+     * @return the time the range was closed, or <code>null</code> if it is still open
+     */
+    ZonedDateTime closedAt(ZonedDateTime to) {
+        if (to == null)
+            return null;
+        ZonedDateTime closedAt = to.plus(ingestionHorizon);
+        return closedAt.toInstant().isAfter(clock.instant()) ? null : closedAt;
+    }
+
+}
@@ -0,0 +1,20 @@
+package no.difi.statistics.api;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+
+import java.io.IOException;
+
+/**
+ * Writes time series points one by one to a response body, so that a result never has to be held in memory as a
+ * whole.
+ */
+interface TimeSeriesPointWriter {
+
+    void write(TimeSeriesPoint point) throws IOException;
+
+    /**
+     * Writes out anything buffered. The underlying stream is left open.
+     */
+    void finish() throws IOException;
+
+}
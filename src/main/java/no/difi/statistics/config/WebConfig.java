@@ -0,0 +1,118 @@
+package no.difi.statistics.config;
+
+import no.difi.statistics.api.ColumnarPointConverter;
+import no.difi.statistics.api.DeadlineFilter;
+import no.difi.statistics.api.ProtobufPointConverter;
+import no.difi.statistics.api.ResponseCaching;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.ContentNegotiationConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    private final Duration asyncTimeout;
+    private final int streamingThreads;
+    private final int streamingQueueCapacity;
+    private final Duration deadline;
+    private final boolean cachingEnabled;
+    private final Duration cachingIngestionHorizon;
+    private final Duration cachingClosedMaxAge;
+
+    public WebConfig(
+            @Value("${no.difi.statistics.api.async-timeout}") Duration asyncTimeout,
+            @Value("${no.difi.statistics.api.streaming-threads}") int streamingThreads,
+            @Value("${no.difi.statistics.api.streaming-queue-capacity}") int streamingQueueCapacity,
+            @Value("${no.difi.statistics.api.deadline}") Duration deadline,
+            @Value("${no.difi.statistics.api.caching.enabled}") boolean cachingEnabled,
+            @Value("${no.difi.statistics.api.caching.ingestion-horizon}") Duration cachingIngestionHorizon,
+            @Value("${no.difi.statistics.api.caching.closed-max-age}") Duration cachingClosedMaxAge) {
+        this.asyncTimeout = asyncTimeout;
+        this.streamingThreads = streamingThreads;
+        this.streamingQueueCapacity = streamingQueueCapacity;
+        this.deadline = deadline;
+        this.cachingEnabled = cachingEnabled;
+        this.cachingIngestionHorizon = cachingIngestionHorizon;
+        this.cachingClosedMaxAge = cachingClosedMaxAge;
+    }
+
+    /**
+     * Query endpoints respond with futures. The timeout must be long enough to cover the slowest queries (percentile
+     * queries over long ranges), as the container default is considerably shorter. Streamed responses are written by
+     * a bounded pool with a bounded queue rather than the default executor, which starts a new thread per response.
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(asyncTimeout.toMillis());
+        configurer.setTaskExecutor(streamingExecutor());
+    }
+
+    /**
+     * Formats other than JSON are chosen with the Accept header, or with the parameter <code>format</code> for clients
+     * that cannot set headers. The Smile and CBOR converters are among the defaults when their Jackson modules are on
+     * the class path. The point converters go last, so that JSON stays the default.
+     */
+    @Override
+    public void configureContentNegotiation(ContentNegotiationConfigurer configurer) {
+        configurer.favorParameter(true)
+                .parameterName("format")
+                .mediaType("json", MediaType.APPLICATION_JSON)
+                .mediaType("columnar", ColumnarPointConverter.APPLICATION_COLUMNAR)
+                .mediaType("smile", new MediaType("application", "x-jackson-smile"))
+                .mediaType("cbor", MediaType.APPLICATION_CBOR)
+                .mediaType("protobuf", ProtobufPointConverter.APPLICATION_PROTOBUF);
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.add(new ColumnarPointConverter());
+        converters.add(new ProtobufPointConverter());
+    }
+
+    /**
+     * Streamed responses arriving when all threads are busy and the queue is full are rejected, and answered with 503
+     * (see {@link org.springframework.core.task.TaskRejectedException}).
+     */
+    @Bean
+    public ThreadPoolTaskExecutor streamingExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("streaming-");
+        executor.setCorePoolSize(streamingThreads);
+        executor.setMaxPoolSize(streamingThreads);
+        executor.setQueueCapacity(streamingQueueCapacity);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        return executor;
+    }
+
+    @Bean
+    public DeadlineFilter deadlineFilter() {
+        return new DeadlineFilter(deadline);
+    }
+
+    @Bean
+    public ResponseCaching responseCaching() {
+        return new ResponseCaching(cachingEnabled, cachingIngestionHorizon, cachingClosedMaxAge, Clock.systemUTC());
+    }
+
+    /**
+     * Gives responses a strong ETag from a hash of their body, and answers requests with a matching
+     * <code>If-None-Match</code> with 304. Streamed responses are left out.
+     */
+    @Bean
+    public ShallowEtagHeaderFilter etagFilter() {
+        return new ShallowEtagHeaderFilter();
+    }
+
+}
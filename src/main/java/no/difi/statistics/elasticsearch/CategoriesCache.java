@@ -0,0 +1,57 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.OwnerCategories;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Set;
+
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Holds the categories of all series, refreshed in the background, so that requests for them are answered from
+ * memory. Until the first refresh has completed, they are loaded on request. A failed refresh keeps the categories
+ * from the previous one.
+ */
+public class CategoriesCache {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Loader loader;
+    private volatile Set<OwnerCategories> categories;
+
+    public CategoriesCache(Loader loader, Duration refreshInterval, TaskScheduler scheduler) {
+        this.loader = loader;
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval);
+    }
+
+    public Set<OwnerCategories> get() throws IOException {
+        Set<OwnerCategories> current = categories;
+        if (current != null)
+            return current;
+        return load();
+    }
+
+    void refresh() {
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to refresh categories", e);
+        }
+    }
+
+    private Set<OwnerCategories> load() throws IOException {
+        Set<OwnerCategories> loaded = unmodifiableSet(loader.load());
+        categories = loaded;
+        return loaded;
+    }
+
+    public interface Loader {
+
+        Set<OwnerCategories> load() throws IOException;
+
+    }
+
+}
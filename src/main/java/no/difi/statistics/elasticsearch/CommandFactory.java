@@ -38,6 +38,10 @@ public class CommandFactory implements ApplicationContextAware {
         return applicationContext.getBean(PercentileQuery.Builder.class);
     }
 
+    public MultiSearchQuery.Builder multiSearch() {
+        return applicationContext.getBean(MultiSearchQuery.Builder.class);
+    }
+
     public GetMeasurementIdentifiers.Builder measurementIdentifiers() {
         return applicationContext.getBean(GetMeasurementIdentifiers.Builder.class);
     }
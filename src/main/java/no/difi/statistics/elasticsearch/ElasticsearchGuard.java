@@ -0,0 +1,136 @@
+package no.difi.statistics.elasticsearch;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Guards the calls to Elasticsearch with a circuit breaker and a bulkhead per {@link Pool}. When the cluster fails or
+ * slows down, the breaker opens and calls fail fast with {@link CallNotPermittedException} instead of holding on to
+ * request threads. The bulkheads bound the number of concurrent calls, so that expensive queries cannot take all
+ * connections from cheap ones. Calls beyond the bound fail with {@link BulkheadFullException}. Blocking and
+ * asynchronous calls share the permits of a pool, so that together they stay within the connections of the client.
+ * Asynchronous calls are made from threads that must not block (the I/O reactor of the client and the scheduler), so
+ * the bulkheads reject without waiting, and a blocking call polls for a free slot for up to the maximum wait duration.
+ */
+public class ElasticsearchGuard {
+
+    /**
+     * Cheap calls are those of single points and lookups, expensive ones those of histograms and percentiles.
+     */
+    public enum Pool {cheap, expensive}
+
+    private static final ElasticsearchGuard disabled = new ElasticsearchGuard(null, null, null, Duration.ZERO);
+    private static final long pollIntervalNanos = Duration.ofMillis(1).toNanos();
+    private final CircuitBreaker circuitBreaker;
+    private final Map<Pool, Bulkhead> bulkheads = new EnumMap<>(Pool.class);
+    private final Duration maxWaitDuration;
+
+    /**
+     * @param cheap the bulkhead of cheap calls, which must not wait for permission
+     * @param expensive the bulkhead of expensive calls, which must not wait for permission
+     * @param maxWaitDuration how long a blocking call waits for a free slot
+     */
+    public ElasticsearchGuard(CircuitBreaker circuitBreaker, Bulkhead cheap, Bulkhead expensive, Duration maxWaitDuration) {
+        this.circuitBreaker = circuitBreaker;
+        bulkheads.put(Pool.cheap, cheap);
+        bulkheads.put(Pool.expensive, expensive);
+        this.maxWaitDuration = maxWaitDuration;
+    }
+
+    /**
+     * A guard letting all calls through, for commands built without one.
+     */
+    public static ElasticsearchGuard disabled() {
+        return disabled;
+    }
+
+    public CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public Bulkhead bulkhead(Pool pool) {
+        return bulkheads.get(pool);
+    }
+
+    public <T> T call(Pool pool, Call<T> call) throws IOException {
+        if (circuitBreaker == null)
+            return call.call();
+        Bulkhead bulkhead = bulkheads.get(pool);
+        acquirePermission(bulkhead);
+        try {
+            circuitBreaker.acquirePermission();
+            long start = System.nanoTime();
+            try {
+                T result = call.call();
+                circuitBreaker.onSuccess(System.nanoTime() - start, NANOSECONDS);
+                return result;
+            } catch (IOException | RuntimeException e) {
+                circuitBreaker.onError(System.nanoTime() - start, NANOSECONDS, e);
+                throw e;
+            }
+        } finally {
+            bulkhead.onComplete();
+        }
+    }
+
+    public <T> CompletableFuture<T> callAsync(Pool pool, Supplier<CompletableFuture<T>> call) {
+        if (circuitBreaker == null)
+            return call.get();
+        Bulkhead bulkhead = bulkheads.get(pool);
+        if (!bulkhead.tryAcquirePermission())
+            return CompletableFuture.failedFuture(BulkheadFullException.createBulkheadFullException(bulkhead));
+        if (!circuitBreaker.tryAcquirePermission()) {
+            bulkhead.onComplete();
+            return CompletableFuture.failedFuture(CallNotPermittedException.createCallNotPermittedException(circuitBreaker));
+        }
+        long start = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            circuitBreaker.onError(System.nanoTime() - start, NANOSECONDS, e);
+            bulkhead.onComplete();
+            return CompletableFuture.failedFuture(e);
+        }
+        return result.whenComplete((value, e) -> {
+            bulkhead.onComplete();
+            if (e != null)
+                circuitBreaker.onError(System.nanoTime() - start, NANOSECONDS, unwrap(e));
+            else
+                circuitBreaker.onSuccess(System.nanoTime() - start, NANOSECONDS);
+        });
+    }
+
+    private void acquirePermission(Bulkhead bulkhead) {
+        long deadline = System.nanoTime() + maxWaitDuration.toNanos();
+        while (!bulkhead.tryAcquirePermission()) {
+            if (System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted())
+                throw BulkheadFullException.createBulkheadFullException(bulkhead);
+            LockSupport.parkNanos(pollIntervalNanos);
+        }
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    public interface Call<T> {
+
+        T call() throws IOException;
+
+    }
+
+}
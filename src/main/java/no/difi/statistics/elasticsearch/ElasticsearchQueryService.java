@@ -1,27 +1,45 @@
 package no.difi.statistics.elasticsearch;
 
 import no.difi.statistics.QueryService;
+import no.difi.statistics.elasticsearch.commands.MultiSearchQuery;
 import no.difi.statistics.model.*;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
 
 public class ElasticsearchQueryService implements QueryService {
 
     private final CommandFactory commandFactory;
+    private final CategoriesCache categoriesCache;
+    private final SeriesCatalog seriesCatalog;
 
-    public ElasticsearchQueryService(CommandFactory commandFactory) {
+    /**
+     * @param categoriesCache answers requests for categories, or <code>null</code> to query them on every request
+     * @param seriesCatalog answers requests for available series, or <code>null</code> to query them on every request
+     */
+    public ElasticsearchQueryService(CommandFactory commandFactory, CategoriesCache categoriesCache, SeriesCatalog seriesCatalog) {
         this.commandFactory = commandFactory;
+        this.categoriesCache = categoriesCache;
+        this.seriesCatalog = seriesCatalog;
     }
 
     @Override
     public List<TimeSeriesDefinition> availableTimeSeries() {
+        if (seriesCatalog != null)
+            return seriesCatalog.seriesDefinitions();
         return commandFactory.availableTimeSeries().build().execute();
     }
 
     @Override
     public Set<OwnerCategories> categories() throws IOException {
+        if (categoriesCache != null)
+            return categoriesCache.get();
         return commandFactory.categories().build().execute();
     }
 
@@ -32,12 +50,25 @@ public class ElasticsearchQueryService implements QueryService {
                 .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
     }
 
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, Consumer<TimeSeriesPoint> consumer) {
+        commandFactory.query()
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute(consumer);
+    }
+
     @Override
     public List<TimeSeriesPoint> query(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
         return commandFactory.percentile()
                 .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter).build().execute();
     }
 
+    @Override
+    public void stream(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter, Consumer<TimeSeriesPoint> consumer) {
+        commandFactory.percentile()
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter).build().execute(consumer);
+    }
+
     @Override
     public List<TimeSeriesPoint> lastHistogram(
             TimeSeriesDefinition seriesDefinition,
@@ -70,4 +101,105 @@ public class ElasticsearchQueryService implements QueryService {
                 .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().execute();
     }
 
+    @Override
+    public Map<String, BatchQueryResult> batch(List<BatchQueryItem> queries) {
+        MultiSearchQuery.Builder command = commandFactory.multiSearch();
+        for (BatchQueryItem query : queries) {
+            try {
+                add(command, query);
+            } catch (RuntimeException e) {
+                command.failed(query.getId(), e);
+            }
+        }
+        return command.build().execute();
+    }
+
+    private void add(MultiSearchQuery.Builder command, BatchQueryItem query) {
+        TimeSeriesDefinition seriesDefinition = query.seriesDefinition();
+        QueryFilter queryFilter = query.queryFilter();
+        switch (query.getOperation()) {
+            case query:
+                command.query(query.getId(), commandFactory.query()
+                        .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                break;
+            case last:
+                command.last(query.getId(), commandFactory.last()
+                        .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                break;
+            case sum:
+                command.sum(query.getId(), commandFactory.sum()
+                        .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                break;
+            case lastHistogram:
+                validateTargetDistance(query);
+                command.lastHistogram(query.getId(), commandFactory.lastHistogram()
+                        .seriesDefinition(seriesDefinition).targetDistance(query.getTargetDistance()).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                break;
+            case sumHistogram:
+                validateTargetDistance(query);
+                command.sumHistogram(query.getId(), commandFactory.sumHistogram()
+                        .seriesDefinition(seriesDefinition).targetDistance(query.getTargetDistance()).queryFilter(queryFilter)
+                        .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build());
+                break;
+            default:
+                throw new IllegalArgumentException(format("Operation %s is not supported in batches", query.getOperation()));
+        }
+    }
+
+    private static void validateTargetDistance(BatchQueryItem query) {
+        if (query.getTargetDistance() == null)
+            throw new IllegalArgumentException(format("Operation %s requires a target distance", query.getOperation()));
+        if (query.getDistance().ordinal() >= query.getTargetDistance().ordinal())
+            throw new IllegalArgumentException(format("Distance %s is greater than or equal to target distance %s", query.getDistance(), query.getTargetDistance()));
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return commandFactory.query()
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync();
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> queryAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter, PercentileFilter filter) {
+        return commandFactory.percentile()
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter).percentileFilter(filter).build().executeAsync();
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> lastHistogramAsync(
+            TimeSeriesDefinition seriesDefinition,
+            MeasurementDistance targetDistance,
+            QueryFilter queryFilter
+    ) {
+        return commandFactory.lastHistogram()
+                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(queryFilter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync();
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> sumAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return commandFactory.sum()
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync();
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> sumHistogramAsync(TimeSeriesDefinition seriesDefinition, MeasurementDistance targetDistance, QueryFilter queryFilter) {
+        return commandFactory.sumHistogram()
+                .seriesDefinition(seriesDefinition).targetDistance(targetDistance).queryFilter(queryFilter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync();
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> lastAsync(TimeSeriesDefinition seriesDefinition, QueryFilter queryFilter) {
+        return commandFactory.last()
+                .seriesDefinition(seriesDefinition).queryFilter(queryFilter)
+                .measurementIdentifiersCommand(commandFactory.measurementIdentifiers()).build().executeAsync();
+    }
+
 }
@@ -0,0 +1,59 @@
+package no.difi.statistics.elasticsearch;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of measurement identifiers per series, keyed by generic index name (e.g.
+ * <code>991825827@idporten-innlogging@hour*</code>). Saves the <code>_mappings</code> round trip that would otherwise
+ * precede every search. Empty results are not cached, so a series that has just been created is picked up on the
+ * next query.
+ */
+public class MeasurementIdentifiersCache {
+
+    private final Cache<String, List<String>> cache;
+
+    public MeasurementIdentifiersCache(Duration timeToLive, long maximumSize, MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .expireAfterWrite(timeToLive)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "measurementIdentifiers");
+    }
+
+    /**
+     * Loads the measurement identifiers of a series unless they are cached. Concurrent callers for the same series
+     * share one load.
+     */
+    public List<String> get(String genericIndexName, Function<String, List<String>> loader) {
+        List<String> measurementIds = cache.get(genericIndexName, name -> nonEmptyCopy(loader.apply(name)));
+        return measurementIds != null ? measurementIds : List.of();
+    }
+
+    /**
+     * @return the cached measurement identifiers, or <code>null</code> if there are none
+     */
+    public List<String> cached(String genericIndexName) {
+        return cache.getIfPresent(genericIndexName);
+    }
+
+    public List<String> store(String genericIndexName, List<String> measurementIds) {
+        List<String> copy = nonEmptyCopy(measurementIds);
+        if (copy == null)
+            return List.of();
+        cache.put(genericIndexName, copy);
+        return copy;
+    }
+
+    private static List<String> nonEmptyCopy(List<String> measurementIds) {
+        return measurementIds.isEmpty() ? null : List.copyOf(measurementIds);
+    }
+
+}
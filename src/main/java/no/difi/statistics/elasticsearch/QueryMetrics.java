@@ -0,0 +1,152 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import no.difi.statistics.model.MeasurementDistance;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Records where the time of a query command goes: the round trip of each request to Elasticsearch (the lookup of
+ * measurement identifiers is tagged as operation <code>mappings</code>), the part of a search spent in Elasticsearch
+ * (<code>took</code>), and the execution of the command as a whole, which includes converting responses to points.
+ * Along with these go the number of indices searched, buckets returned, points produced, retries performed and hedges
+ * sent, the indices and searches left out by pruning, and the path taken by day and month series. Meters are tagged
+ * with operation and distance only, as owner and series name would give unbounded cardinality. They are looked up
+ * once per name and tags, and kept.
+ */
+public class QueryMetrics {
+
+    private static final String none = "none";
+    private static final QueryMetrics disabled = new QueryMetrics(new CompositeMeterRegistry());
+    private final MeterRegistry meterRegistry;
+    private final ConcurrentMap<String, ConcurrentMap<Tags, Meter>> meters = new ConcurrentHashMap<>();
+
+    public QueryMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * Metrics recorded nowhere, for commands built without a registry.
+     */
+    public static QueryMetrics disabled() {
+        return disabled;
+    }
+
+    public static Tags tags(String operation, MeasurementDistance distance) {
+        return Tags.of("operation", operation, "distance", distance != null ? distance.name() : none);
+    }
+
+    public static Tags tags(String operation) {
+        return tags(operation, null);
+    }
+
+    public void searched(Tags tags, int indexCount, long roundTripNanos, SearchResponse response) {
+        timer("elasticsearch.search.round.trip", tags).record(roundTripNanos, TimeUnit.NANOSECONDS);
+        if (indexCount > 0)
+            summary("elasticsearch.search.indices", tags).record(indexCount);
+        if (response.getTook() != null)
+            timer("elasticsearch.search.took", tags).record(response.getTook().millis(), TimeUnit.MILLISECONDS);
+        if (response.getAggregations() != null)
+            summary("elasticsearch.search.buckets", tags).record(bucketCount(response.getAggregations()));
+    }
+
+    /**
+     * For requests other than searches, e.g. getting mappings.
+     */
+    public void requested(Tags tags, long roundTripNanos) {
+        timer("elasticsearch.search.round.trip", tags).record(roundTripNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * For indices left out of a search because they do not exist.
+     */
+    public void pruned(Tags tags, int indexCount) {
+        if (indexCount > 0)
+            counter("elasticsearch.search.indices.pruned", tags).increment(indexCount);
+    }
+
+    /**
+     * For searches not sent because none of their indices exist.
+     */
+    public void skipped(Tags tags) {
+        counter("elasticsearch.search.skipped", tags).increment();
+    }
+
+    /**
+     * For duplicates sent of searches that were slow to return.
+     */
+    public void hedged(Tags tags) {
+        counter("elasticsearch.search.hedges", tags.and("outcome", "fired")).increment();
+    }
+
+    /**
+     * For duplicates that returned before the search they were sent for.
+     */
+    public void hedgeWon(Tags tags) {
+        counter("elasticsearch.search.hedges", tags.and("outcome", "won")).increment();
+    }
+
+    /**
+     * For day and month series, which are derived from their minute series if they have no data of their own.
+     *
+     * @param strategy how the path was chosen
+     * @param path <code>native</code> or <code>derived</code>, the path whose result was used
+     */
+    public void path(Tags tags, String strategy, String path) {
+        counter("elasticsearch.query.path", tags.and("strategy", strategy, "path", path)).increment();
+    }
+
+    public void retried(Tags tags) {
+        counter("elasticsearch.search.retries", tags).increment();
+    }
+
+    public void executed(Tags tags, long nanos, int pointCount) {
+        timer("elasticsearch.query", tags).record(nanos, TimeUnit.NANOSECONDS);
+        summary("elasticsearch.query.points", tags).record(pointCount);
+    }
+
+    private Timer timer(String name, Tags tags) {
+        return meter(name, tags, t -> Timer.builder(name).tags(t).publishPercentileHistogram().register(meterRegistry));
+    }
+
+    private DistributionSummary summary(String name, Tags tags) {
+        return meter(name, tags, t -> DistributionSummary.builder(name).tags(t).register(meterRegistry));
+    }
+
+    private Counter counter(String name, Tags tags) {
+        return meter(name, tags, t -> meterRegistry.counter(name, t));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <M extends Meter> M meter(String name, Tags tags, Function<Tags, M> register) {
+        return (M) meters.computeIfAbsent(name, n -> new ConcurrentHashMap<>()).computeIfAbsent(tags, register);
+    }
+
+    private static long bucketCount(Aggregations aggregations) {
+        long count = 0;
+        for (Aggregation aggregation : aggregations) {
+            if (!(aggregation instanceof MultiBucketsAggregation))
+                continue;
+            for (MultiBucketsAggregation.Bucket bucket : ((MultiBucketsAggregation) aggregation).getBuckets()) {
+                count++;
+                if (bucket.getAggregations() != null)
+                    count += bucketCount(bucket.getAggregations());
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,238 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Day and month sums of minute series, kept in memory so that day and month series derived from their minute series
+ * only need to aggregate the minutes of periods that are still open. A period is closed when it ends before the
+ * ingestion horizon, after which its minutes are considered final. A background task rolls up the periods closed since
+ * its last run, so that the minutes of a period are aggregated once. Only sums over all categories are rolled up.
+ * <p>
+ * A rollup is registered when first asked for and built in the background, and is dropped when not asked for within
+ * the idle timeout. A failed run keeps the rollup as it was, and the periods are rolled up by the next run.
+ */
+public class RollupStore {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Roller roller;
+    private final Duration ingestionHorizon;
+    private final Duration idleTimeout;
+    private final int maximumSize;
+    private final Clock clock;
+    private final TaskScheduler scheduler;
+    private final ConcurrentMap<Key, Rollup> rollups = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+
+    public RollupStore(
+            Roller roller,
+            Duration ingestionHorizon,
+            Duration refreshInterval,
+            Duration idleTimeout,
+            int maximumSize,
+            Clock clock,
+            TaskScheduler scheduler,
+            MeterRegistry meterRegistry
+    ) {
+        this.roller = roller;
+        this.ingestionHorizon = ingestionHorizon;
+        this.idleTimeout = idleTimeout;
+        this.maximumSize = maximumSize;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.hits = meterRegistry.counter("query.rollups.requests", "result", "hit");
+        this.misses = meterRegistry.counter("query.rollups.requests", "result", "miss");
+        meterRegistry.gaugeMapSize("query.rollups.size", Tags.empty(), rollups);
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval);
+    }
+
+    /**
+     * @param minuteSeries the minute series to sum
+     * @param targetDistance days or months
+     * @return the rollup, or <code>null</code> if it has not been built yet. It is then registered to be built.
+     */
+    public Rollup rollup(TimeSeriesDefinition minuteSeries, MeasurementDistance targetDistance) {
+        Key key = new Key(minuteSeries, targetDistance);
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            misses.increment();
+            if (rollups.size() < maximumSize) {
+                Rollup registered = new Rollup(targetDistance, clock.instant());
+                if (rollups.putIfAbsent(key, registered) == null)
+                    scheduler.schedule(() -> roll(key, registered), clock.instant());
+            }
+            return null;
+        }
+        rollup.requested = clock.instant();
+        if (rollup.snapshot == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return rollup;
+    }
+
+    /**
+     * Like {@link #rollup(TimeSeriesDefinition, MeasurementDistance)}, but without asking for the rollup: it is neither
+     * registered nor kept from going idle, and no hit or miss is counted. For queries whose result may not be used.
+     *
+     * @return the rollup, or <code>null</code> if it has not been built
+     */
+    public Rollup built(TimeSeriesDefinition minuteSeries, MeasurementDistance targetDistance) {
+        Rollup rollup = rollups.get(new Key(minuteSeries, targetDistance));
+        return rollup != null && rollup.snapshot != null ? rollup : null;
+    }
+
+    /**
+     * Drops idle rollups and rolls up the periods closed since the last run for the rest.
+     */
+    void refresh() {
+        Instant idleLimit = clock.instant().minus(idleTimeout);
+        rollups.entrySet().removeIf(e -> e.getValue().requested.isBefore(idleLimit));
+        rollups.forEach(this::roll);
+    }
+
+    private void roll(Key key, Rollup rollup) {
+        try {
+            rollup.roll(key, periodStart(ZonedDateTime.now(clock).minus(ingestionHorizon), key.targetDistance), roller);
+        } catch (RuntimeException e) {
+            logger.warn("Failed to roll up {} of {}", key.targetDistance, key.minuteSeries, e);
+        }
+    }
+
+    /**
+     * @return the start (in UTC, like the buckets of date histograms) of the period of the given distance that the
+     * timestamp is in
+     */
+    static ZonedDateTime periodStart(ZonedDateTime timestamp, MeasurementDistance distance) {
+        ZonedDateTime day = timestamp.withZoneSameInstant(ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS);
+        switch (distance) {
+            case days: return day;
+            case months: return day.withDayOfMonth(1);
+            default: throw new IllegalArgumentException("Rollups are not supported for " + distance);
+        }
+    }
+
+    public interface Roller {
+
+        /**
+         * @param from the start of the first period, or <code>null</code> for all periods before <code>to</code>
+         * @param to the end of the last period
+         * @return the sums of the minute series per period of the target distance
+         */
+        List<TimeSeriesPoint> roll(TimeSeriesDefinition minuteSeries, MeasurementDistance targetDistance, ZonedDateTime from, ZonedDateTime to);
+
+    }
+
+    public static class Rollup {
+
+        private final MeasurementDistance distance;
+        private volatile Instant requested;
+        private volatile Snapshot snapshot;
+
+        private Rollup(MeasurementDistance distance, Instant requested) {
+            this.distance = distance;
+            this.requested = requested;
+        }
+
+        /**
+         * @return the end of the closed periods within the range, or <code>null</code> if there are none or the range
+         * does not start at the start of a period
+         */
+        public ZonedDateTime end(ZonedDateTime from, ZonedDateTime to) {
+            ZonedDateTime end = snapshot.closedUntil;
+            if (to != null && periodStart(to, distance).isBefore(end))
+                end = periodStart(to, distance);
+            if (from == null)
+                return end;
+            if (!from.isEqual(periodStart(from, distance)) || !from.isBefore(end))
+                return null;
+            return end;
+        }
+
+        /**
+         * @param from the start of the first period, or <code>null</code> for all periods before <code>end</code>
+         * @param end the end of the last period, as given by {@link #end(ZonedDateTime, ZonedDateTime)}
+         */
+        public List<TimeSeriesPoint> points(ZonedDateTime from, ZonedDateTime end) {
+            NavigableMap<Instant, TimeSeriesPoint> sums = snapshot.sums;
+            return new ArrayList<>(
+                    (from == null ? sums.headMap(end.toInstant(), false) : sums.subMap(from.toInstant(), true, end.toInstant(), false)).values()
+            );
+        }
+
+        private synchronized void roll(Key key, ZonedDateTime closedUntil, Roller roller) {
+            Snapshot current = snapshot;
+            ZonedDateTime from = current != null ? current.closedUntil : null;
+            if (from != null && !closedUntil.isAfter(from))
+                return;
+            TreeMap<Instant, TimeSeriesPoint> sums = current != null ? new TreeMap<>(current.sums) : new TreeMap<>();
+            roller.roll(key.minuteSeries, key.targetDistance, from, closedUntil).stream()
+                    .filter(point -> point.getTimestamp().isBefore(closedUntil))
+                    .forEach(point -> sums.put(point.getTimestamp().toInstant(), point));
+            snapshot = new Snapshot(Collections.unmodifiableNavigableMap(sums), closedUntil);
+        }
+
+    }
+
+    private static class Snapshot {
+
+        private final NavigableMap<Instant, TimeSeriesPoint> sums;
+        private final ZonedDateTime closedUntil;
+
+        private Snapshot(NavigableMap<Instant, TimeSeriesPoint> sums, ZonedDateTime closedUntil) {
+            this.sums = sums;
+            this.closedUntil = closedUntil;
+        }
+
+    }
+
+    private static final class Key {
+
+        private final TimeSeriesDefinition minuteSeries;
+        private final MeasurementDistance targetDistance;
+
+        private Key(TimeSeriesDefinition minuteSeries, MeasurementDistance targetDistance) {
+            this.minuteSeries = minuteSeries;
+            this.targetDistance = targetDistance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return minuteSeries.equals(key.minuteSeries) && targetDistance == key.targetDistance;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(minuteSeries, targetDistance);
+        }
+
+    }
+
+}
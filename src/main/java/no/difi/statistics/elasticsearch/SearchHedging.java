@@ -0,0 +1,221 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.Tags;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Sends a duplicate of a search that has not returned within the given percentile of the recent round trips of its
+ * operation, and answers with whichever response comes first. The other search is cancelled. The duplicate has a
+ * random <code>preference</code>, so that it is likely to reach other shard copies than the slow one. Searches with a
+ * point in time are not hedged, as they are bound to the shard copies of the point in time.
+ * <p>
+ * Each search earns a fraction of a hedge, and a hedge is only sent if a whole one has been earned. This caps the
+ * extra load at that fraction. Until an operation has a few round trips recorded, its searches are not hedged. A hedge
+ * that fails at once, as when it is refused a connection of its own, is given up and its credit is returned.
+ * <p>
+ * A search cancelled because its hedge won is recorded with the time it had taken when it was cancelled. That is less
+ * than its round trip would have been, but leaving the slowest searches out altogether would pull the percentile down,
+ * and with it the delay before hedging.
+ */
+public class SearchHedging {
+
+    private static final SearchHedging disabled = new SearchHedging();
+    private static final int windowSize = 1000;
+    private static final double maximumCredit = 10;
+    private final double percentile;
+    private final Duration minimumDelay;
+    private final double budget;
+    private final TaskScheduler scheduler;
+    private final QueryMetrics metrics;
+    private final Map<Tags, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private double credit;
+
+    /**
+     * @param percentile the percentile of recent round trips to wait before hedging, e.g. 95
+     * @param minimumDelay the shortest time to wait before hedging
+     * @param budget the fraction of searches that may be hedged, e.g. 0.05
+     */
+    public SearchHedging(double percentile, Duration minimumDelay, double budget, TaskScheduler scheduler, QueryMetrics metrics) {
+        this.percentile = percentile;
+        this.minimumDelay = minimumDelay;
+        this.budget = budget;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+
+    private SearchHedging() {
+        this(0, Duration.ZERO, 0, null, QueryMetrics.disabled());
+    }
+
+    /**
+     * Hedging that sends every search once, for commands built without it.
+     */
+    public static SearchHedging disabled() {
+        return disabled;
+    }
+
+    public boolean applies(SearchRequest request) {
+        return scheduler != null && (request.source() == null || request.source().pointInTimeBuilder() == null);
+    }
+
+    /**
+     * @param search sends a search, each one guarded on its own. Cancelling the returned future should abort the
+     *               search.
+     */
+    public CompletableFuture<SearchResponse> search(
+            Tags tags,
+            SearchRequest request,
+            Function<SearchRequest, CompletableFuture<SearchResponse>> search
+    ) {
+        if (!applies(request))
+            return search.apply(request);
+        LatencyWindow window = latencies.computeIfAbsent(tags, t -> new LatencyWindow());
+        earn();
+        CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+        AtomicInteger outstanding = new AtomicInteger(1);
+        AtomicReference<CompletableFuture<SearchResponse>> hedge = new AtomicReference<>();
+        long start = System.nanoTime();
+        CompletableFuture<SearchResponse> primary = search.apply(request);
+        long delayNanos = window.percentile(percentile);
+        ScheduledFuture<?> timer = delayNanos < 0 ? null : scheduler.schedule(
+                () -> {
+                    if (result.isDone() || !spend())
+                        return;
+                    CompletableFuture<SearchResponse> attempt = search.apply(hedgeRequest(request));
+                    if (attempt.isCompletedExceptionally()) {
+                        refund();
+                        return;
+                    }
+                    outstanding.incrementAndGet();
+                    metrics.hedged(tags);
+                    hedge.set(attempt);
+                    attempt.whenComplete((response, e) -> complete(result, outstanding, response, e, primary, tags));
+                    if (result.isDone())
+                        attempt.cancel(true);
+                },
+                Instant.now().plusNanos(Math.max(delayNanos, minimumDelay.toNanos()))
+        );
+        primary.whenComplete((response, e) -> {
+            if (timer != null)
+                timer.cancel(false);
+            if (e == null || lostToHedge(primary, hedge.get(), result))
+                window.record(System.nanoTime() - start);
+            complete(result, outstanding, response, e, hedge.get(), null);
+        });
+        return result;
+    }
+
+    /**
+     * The first response wins and the other search is cancelled. A failure is only passed on when all searches sent
+     * have failed.
+     */
+    private void complete(
+            CompletableFuture<SearchResponse> result,
+            AtomicInteger outstanding,
+            SearchResponse response,
+            Throwable e,
+            CompletableFuture<SearchResponse> other,
+            Tags wonTags
+    ) {
+        if (e == null) {
+            if (!result.complete(response))
+                return;
+            if (other != null)
+                other.cancel(true);
+            if (wonTags != null)
+                metrics.hedgeWon(wonTags);
+        } else if (outstanding.decrementAndGet() == 0) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private static boolean lostToHedge(
+            CompletableFuture<SearchResponse> primary,
+            CompletableFuture<SearchResponse> hedge,
+            CompletableFuture<SearchResponse> result
+    ) {
+        return primary.isCancelled() && hedge != null && result.isDone() && !result.isCompletedExceptionally();
+    }
+
+    /**
+     * @return the number of round trips held for the operation
+     */
+    int recordedRoundTrips(Tags tags) {
+        LatencyWindow window = latencies.get(tags);
+        return window != null ? window.size() : 0;
+    }
+
+    private static SearchRequest hedgeRequest(SearchRequest request) {
+        return new SearchRequest(request).preference("hedge-" + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    }
+
+    private synchronized void earn() {
+        credit = Math.min(credit + budget, maximumCredit);
+    }
+
+    private synchronized boolean spend() {
+        if (credit < 1)
+            return false;
+        credit -= 1;
+        return true;
+    }
+
+    private synchronized void refund() {
+        credit = Math.min(credit + 1, maximumCredit);
+    }
+
+    /**
+     * The most recent round trips of an operation. The percentile is recomputed after every tenth of the window.
+     */
+    private static class LatencyWindow {
+
+        private final long[] samples = new long[windowSize];
+        private int size;
+        private int next;
+        private int sinceComputed;
+        private long computed = -1;
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % windowSize;
+            size = Math.min(size + 1, windowSize);
+            sinceComputed++;
+        }
+
+        /**
+         * @return the percentile in nanoseconds, or -1 if there are too few round trips recorded
+         */
+        synchronized long percentile(double percentile) {
+            if (size < windowSize / 10)
+                return -1;
+            if (computed < 0 || sinceComputed >= windowSize / 10) {
+                long[] sorted = Arrays.copyOf(samples, size);
+                Arrays.sort(sorted);
+                int index = (int) Math.ceil(percentile / 100 * size) - 1;
+                computed = sorted[Math.max(0, Math.min(size - 1, index))];
+                sinceComputed = 0;
+            }
+            return computed;
+        }
+
+    }
+
+}
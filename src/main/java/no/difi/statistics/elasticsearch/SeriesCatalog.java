@@ -0,0 +1,159 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.elasticsearch.commands.AvailableSeriesQuery;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Catalog of the available series and the indices they are stored in, refreshed in the background so that requests
+ * for them are answered from memory. Each refresh is diffed against the previous one: only indices that have been
+ * added are parsed, and the catalog is left untouched if nothing has changed. Until the first refresh has completed,
+ * the catalog is loaded on request. A failed refresh keeps the catalog from the previous one.
+ * <p>
+ * The index names are also used to prune indices that do not exist from searches, see {@link #existing(List)}.
+ */
+public class SeriesCatalog {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final Pattern yearSuffix = Pattern.compile("(\\d{4})$");
+    private final Loader loader;
+    private final Clock clock;
+    private volatile Snapshot snapshot;
+
+    public SeriesCatalog(Loader loader, Duration refreshInterval, Clock clock, TaskScheduler scheduler) {
+        this.loader = loader;
+        this.clock = clock;
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval);
+    }
+
+    /**
+     * @return the available series, sorted and without duplicates
+     */
+    public List<TimeSeriesDefinition> seriesDefinitions() {
+        return current().seriesDefinitions;
+    }
+
+    /**
+     * @return whether the series existed at the last refresh, or <code>null</code> if the catalog has not been loaded
+     * yet. Unlike the other methods, this does not load the catalog.
+     */
+    public Boolean contains(TimeSeriesDefinition seriesDefinition) {
+        Snapshot current = snapshot;
+        if (current == null)
+            return null;
+        return current.series.contains(seriesDefinition);
+    }
+
+    /**
+     * @return the names of all indices in the cluster
+     */
+    public Set<String> indexNames() {
+        return current().indexNames;
+    }
+
+    /**
+     * Leaves out the indices that did not exist at the last refresh. As an index may have been created since then,
+     * indices of the current and later years are always kept, and so are wildcard names and names without a year.
+     * Nothing is left out until the catalog has been loaded.
+     *
+     * @return the given index names, in the same order, without those known not to exist
+     */
+    public List<String> existing(List<String> indexNames) {
+        Snapshot current = snapshot;
+        if (current == null)
+            return indexNames;
+        int currentYear = ZonedDateTime.now(clock).getYear();
+        return indexNames.stream()
+                .filter(indexName -> current.indexNames.contains(indexName) || !prunable(indexName, currentYear))
+                .collect(toList());
+    }
+
+    private static boolean prunable(String indexName, int currentYear) {
+        if (indexName.contains("*"))
+            return false;
+        Matcher matcher = yearSuffix.matcher(indexName);
+        return matcher.find() && Integer.parseInt(matcher.group(1)) < currentYear;
+    }
+
+    void refresh() {
+        try {
+            load();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to refresh series catalog", e);
+        }
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current != null)
+            return current;
+        return load();
+    }
+
+    private synchronized Snapshot load() {
+        Set<String> indexNames = Set.copyOf(loader.load());
+        Snapshot previous = snapshot;
+        if (previous != null && previous.indexNames.equals(indexNames))
+            return previous;
+        Map<String, TimeSeriesDefinition> definitions = new HashMap<>();
+        int added = 0;
+        for (String indexName : indexNames) {
+            TimeSeriesDefinition definition;
+            if (previous != null && previous.indexNames.contains(indexName)) {
+                definition = previous.definitions.get(indexName);
+            } else {
+                definition = AvailableSeriesQuery.seriesDefinition(indexName);
+                added++;
+            }
+            if (definition != null)
+                definitions.put(indexName, definition);
+        }
+        Snapshot loaded = new Snapshot(indexNames, definitions);
+        if (previous != null)
+            logger.info(
+                    "Series catalog changed: {} indices added, {} removed, {} series available",
+                    added,
+                    previous.indexNames.size() + added - indexNames.size(),
+                    loaded.seriesDefinitions.size()
+            );
+        snapshot = loaded;
+        return loaded;
+    }
+
+    private static class Snapshot {
+
+        private final Set<String> indexNames;
+        private final Map<String, TimeSeriesDefinition> definitions;
+        private final List<TimeSeriesDefinition> seriesDefinitions;
+        private final Set<TimeSeriesDefinition> series;
+
+        Snapshot(Set<String> indexNames, Map<String, TimeSeriesDefinition> definitions) {
+            this.indexNames = indexNames;
+            this.definitions = definitions;
+            this.seriesDefinitions = List.copyOf(definitions.values().stream().distinct().sorted().collect(toList()));
+            this.series = Set.copyOf(seriesDefinitions);
+        }
+
+    }
+
+    public interface Loader {
+
+        List<String> load();
+
+    }
+
+}
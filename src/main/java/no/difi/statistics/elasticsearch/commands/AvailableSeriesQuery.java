@@ -1,6 +1,8 @@
 package no.difi.statistics.elasticsearch.commands;
 
 import no.difi.statistics.elasticsearch.IndexNameResolver;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import org.elasticsearch.client.Request;
@@ -10,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 
@@ -19,34 +22,57 @@ import static no.difi.statistics.model.MeasurementDistance.*;
 public class AvailableSeriesQuery {
 
     private RestClient elasticSearchClient;
+    private QueryMetrics metrics = QueryMetrics.disabled();
+    private ElasticsearchGuard guard = ElasticsearchGuard.disabled();
 
     private AvailableSeriesQuery() {
         // Use builder
     }
 
     public List<TimeSeriesDefinition> execute() {
+        long start = System.nanoTime();
+        List<TimeSeriesDefinition> result = indexNames().stream()
+                .map(AvailableSeriesQuery::seriesDefinition)
+                .filter(Objects::nonNull)
+                .distinct()
+                .sorted()
+                .collect(toList());
+        metrics.executed(QueryMetrics.tags("availableSeries"), System.nanoTime() - start, result.size());
+        return result;
+    }
+
+    /**
+     * @return the names of all indices in the cluster
+     */
+    public List<String> indexNames() {
+        long start = System.nanoTime();
         List<String> indices = new ArrayList<>();
         Request request = new Request("GET", "/_cat/indices?h=index");
-        try (InputStream response = elasticSearchClient.performRequest(request).getEntity().getContent();
+        try (InputStream response = guard.call(ElasticsearchGuard.Pool.cheap, () -> elasticSearchClient.performRequest(request))
+                .getEntity().getContent();
             Scanner scanner = new Scanner(response)) {
             scanner.forEachRemaining(indices::add);
         } catch (IOException e) {
             throw new RuntimeException("Failed to list available time series", e);
         }
-        return indices.stream()
-                .map(IndexNameResolver.pattern()::matcher)
-                .filter(Matcher::find)
-                .map(matcher -> TimeSeriesDefinition.builder()
-                        .name(matcher.group(2))
-                        .distance(distanceFrom(matcher.group(3)))
-                        .owner(matcher.group(1))
-                )
-                .distinct()
-                .sorted()
-                .collect(toList());
+        metrics.requested(QueryMetrics.tags("availableSeries"), System.nanoTime() - start);
+        return indices;
     }
 
-    private MeasurementDistance distanceFrom(String indexNamePatternGroup3) {
+    /**
+     * @return the definition of the series stored in the index, or <code>null</code> if it is not a series index
+     */
+    public static TimeSeriesDefinition seriesDefinition(String indexName) {
+        Matcher matcher = IndexNameResolver.pattern().matcher(indexName);
+        if (!matcher.find())
+            return null;
+        return TimeSeriesDefinition.builder()
+                .name(matcher.group(2))
+                .distance(distanceFrom(matcher.group(3)))
+                .owner(matcher.group(1));
+    }
+
+    private static MeasurementDistance distanceFrom(String indexNamePatternGroup3) {
         switch (indexNamePatternGroup3) {
             case "minute": return minutes;
             case "hour": return hours;
@@ -70,6 +96,16 @@ public class AvailableSeriesQuery {
             return this;
         }
 
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
         public AvailableSeriesQuery build() {
             return instance;
         }
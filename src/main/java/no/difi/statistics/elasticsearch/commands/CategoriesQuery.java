@@ -1,13 +1,18 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
 import no.difi.statistics.model.OwnerCategories;
-import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -15,25 +20,94 @@ import java.util.regex.Pattern;
 public class CategoriesQuery {
 
     private RestClient elasticSearchClient;
+    private QueryMetrics metrics = QueryMetrics.disabled();
+    private ElasticsearchGuard guard = ElasticsearchGuard.disabled();
 
     // Search for year in index-name (to remove it).
     private static final String yearRegex = "\\d{4}$";
     private static final Pattern yearPattern = Pattern.compile(yearRegex);
 
     private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String filterPath = "*.mappings.properties.category.properties.*.type,*.mappings.properties.timestamp.type";
 
     public CategoriesQuery() {
     }
 
+    /**
+     * The client buffers the whole response, so Elasticsearch is asked to filter the mappings down to the category
+     * names. The timestamp field is kept so that indices without categories are still listed. The buffered response
+     * is then parsed token by token, without building a tree of it.
+     */
     public Set<OwnerCategories> execute() throws IOException {
-        // Put index-name and categories in Map, and copy to a Set before returning.
+        long start = System.nanoTime();
 
         Request request = new Request("GET", "/*@*@*/_mapping");
-        String mappings = EntityUtils.toString(elasticSearchClient.performRequest(request).getEntity());
+        request.addParameter("filter_path", filterPath);
+        Response response = guard.call(ElasticsearchGuard.Pool.cheap, () -> elasticSearchClient.performRequest(request));
+        metrics.requested(QueryMetrics.tags("categories"), System.nanoTime() - start);
+
+        Set<OwnerCategories> result;
+        try (InputStream mappings = response.getEntity().getContent()) {
+            result = new HashSet<>(parseMappings(mappings).values());
+        }
+        metrics.executed(QueryMetrics.tags("categories"), System.nanoTime() - start, result.size());
+        return result;
+    }
+
+    /**
+     * Same result as {@link #traverseJsonNode(JsonNode)}, but read token by token with everything but the category
+     * names skipped.
+     */
+    public Map<String, OwnerCategories> parseMappings(InputStream mappings) throws IOException {
+        Map<String, OwnerCategories> ownerCategoriesMap = new HashMap<>();
+        try (JsonParser parser = mapper.getFactory().createParser(mappings)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new IOException("Expected mappings to be an object, but got " + parser.currentToken());
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String indexName = parser.getCurrentName();
+                Set<String> categories = new HashSet<>();
+                parser.nextToken();
+                inField(parser, "mappings", () -> inField(parser, "properties", () -> inField(parser, "category", () -> {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        if (parser.nextToken() != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            categories.add(parser.getCurrentName());
+                            parser.nextToken();
+                            parser.skipChildren();
+                        }
+                    }
+                })));
+                add(ownerCategoriesMap, indexName, categories);
+            }
+        }
+        return ownerCategoriesMap;
+    }
+
+    /**
+     * Runs the body with the parser at the start of the object value of the named field, skipping all other fields of
+     * the current object. The body must consume the object value.
+     */
+    private static void inField(JsonParser parser, String fieldName, ParserBody body) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT && name.equals(fieldName))
+                body.parse();
+            else
+                parser.skipChildren();
+        }
+    }
 
-        JsonNode jsonNode = mapper.readTree(mappings);
+    private interface ParserBody {
+
+        void parse() throws IOException;
 
-        return new HashSet<>(traverseJsonNode(jsonNode).values());
     }
 
     public Map<String, OwnerCategories> traverseJsonNode(JsonNode jsonNode) {
@@ -42,27 +116,30 @@ public class CategoriesQuery {
         Iterator<String> index = jsonNode.fieldNames();
 
         for (JsonNode mappingsOfIndex : jsonNode) {
-            // Example of an index-name: 991825827@idporten-innlogging@hour2022
-            String[] indexNameTokens = index.next().split("@", 3);
-            String owner = indexNameTokens[0];
-            String name = indexNameTokens[1];
-            String distance = determineDistance(indexNameTokens[2]);
-            String key = owner + ":" +  name + ":" + distance;
-
-            OwnerCategories ownerCategories = new OwnerCategories(owner, name, distance);
-            Set<String> uniqueCategories = getUniqueCategories(mappingsOfIndex);
-            ownerCategories.getCategories().addAll(uniqueCategories);
-
-            if (ownerCategoriesMap.containsKey(key)) {
-                ownerCategoriesMap.get(key).getCategories().addAll(ownerCategories.getCategories());
-            } else {
-                ownerCategoriesMap.put(key, ownerCategories);
-            }
+            add(ownerCategoriesMap, index.next(), getUniqueCategories(mappingsOfIndex));
         }
 
         return ownerCategoriesMap;
     }
 
+    private void add(Map<String, OwnerCategories> ownerCategoriesMap, String indexName, Set<String> uniqueCategories) {
+        // Example of an index-name: 991825827@idporten-innlogging@hour2022
+        String[] indexNameTokens = indexName.split("@", 3);
+        String owner = indexNameTokens[0];
+        String name = indexNameTokens[1];
+        String distance = determineDistance(indexNameTokens[2]);
+        String key = owner + ":" +  name + ":" + distance;
+
+        OwnerCategories ownerCategories = new OwnerCategories(owner, name, distance);
+        ownerCategories.getCategories().addAll(uniqueCategories);
+
+        if (ownerCategoriesMap.containsKey(key)) {
+            ownerCategoriesMap.get(key).getCategories().addAll(ownerCategories.getCategories());
+        } else {
+            ownerCategoriesMap.put(key, ownerCategories);
+        }
+    }
+
     public String determineDistance(String distanceToken) {
         Matcher matcher = yearPattern.matcher(distanceToken);
         String distance = "hour";
@@ -108,6 +185,16 @@ public class CategoriesQuery {
             return this;
         }
 
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
         public CategoriesQuery build() {
             return instance;
         }
@@ -1,7 +1,13 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import no.difi.statistics.Deadline;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
 import no.difi.statistics.elasticsearch.IndexNameResolver;
+import no.difi.statistics.elasticsearch.MeasurementIdentifiersCache;
+import no.difi.statistics.elasticsearch.QueryMetrics;
 import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 
 import javax.json.Json;
@@ -12,6 +18,7 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static java.util.stream.Collectors.toSet;
 
@@ -19,29 +26,80 @@ public class GetMeasurementIdentifiers {
 
     private static final String timeFieldName = "timestamp";
     private RestClient elasticsearchClient;
+    private MeasurementIdentifiersCache cache;
+    private QueryMetrics metrics = QueryMetrics.disabled();
+    private ElasticsearchGuard guard = ElasticsearchGuard.disabled();
     private List<String> indexNames;
+    private final Deadline deadline = Deadline.current();
 
     private List<String> doExecute() {
         String genericIndexName = IndexNameResolver.generic(indexNames.get(0));
-        Set<String> result = new HashSet<>();
-        Request request = new Request("GET", "/" + genericIndexName + "/_mappings?ignore_unavailable=true");
-        try (InputStream response = elasticsearchClient
-                .performRequest(request)
+        if (cache == null)
+            return fetch(genericIndexName);
+        return cache.get(genericIndexName, this::fetch);
+    }
+
+    private CompletableFuture<List<String>> doExecuteAsync() {
+        String genericIndexName = IndexNameResolver.generic(indexNames.get(0));
+        List<String> cached = cache != null ? cache.cached(genericIndexName) : null;
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        return guard.callAsync(ElasticsearchGuard.Pool.cheap, () -> fetchAsync(genericIndexName));
+    }
+
+    private CompletableFuture<List<String>> fetchAsync(String genericIndexName) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+        elasticsearchClient.performRequestAsync(request(genericIndexName), new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                metrics.requested(QueryMetrics.tags("mappings"), System.nanoTime() - start);
+                try (InputStream content = response.getEntity().getContent()) {
+                    List<String> measurementIds = measurementIds(content);
+                    result.complete(cache != null ? cache.store(genericIndexName, measurementIds) : measurementIds);
+                } catch (IOException | RuntimeException e) {
+                    onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(new RuntimeException("Failed to get available measurement ids", e));
+            }
+        });
+        return result;
+    }
+
+    private List<String> fetch(String genericIndexName) {
+        long start = System.nanoTime();
+        try (InputStream response = guard.call(ElasticsearchGuard.Pool.cheap, () -> elasticsearchClient.performRequest(request(genericIndexName)))
                 .getEntity().getContent()) {
-            JsonReader reader = Json.createReader(response);
-            reader.readObject().forEach(
-                    (key, value) -> result.addAll(
-                            value.asJsonObject().getJsonObject("mappings")
-                                    .getJsonObject("properties").keySet().stream()
-                                    .filter(p -> !p.startsWith("category."))
-                                    .filter(p -> !p.equals("category"))
-                                    .filter(p -> !p.equals(timeFieldName))
-                                    .collect(toSet())
-                    )
-            );
+            metrics.requested(QueryMetrics.tags("mappings"), System.nanoTime() - start);
+            return measurementIds(response);
         } catch (IOException e) {
             throw new RuntimeException("Failed to get available measurement ids", e);
         }
+    }
+
+    private Request request(String genericIndexName) {
+        Request request = new Request("GET", "/" + genericIndexName + "/_mappings?ignore_unavailable=true");
+        request.setOptions(Query.requestOptions(deadline));
+        return request;
+    }
+
+    private static List<String> measurementIds(InputStream response) {
+        Set<String> result = new HashSet<>();
+        JsonReader reader = Json.createReader(response);
+        reader.readObject().forEach(
+                (key, value) -> result.addAll(
+                        value.asJsonObject().getJsonObject("mappings")
+                                .getJsonObject("properties").keySet().stream()
+                                .filter(p -> !p.startsWith("category."))
+                                .filter(p -> !p.equals("category"))
+                                .filter(p -> !p.equals(timeFieldName))
+                                .collect(toSet())
+                )
+        );
         return new ArrayList<>(result);
     }
 
@@ -58,6 +116,21 @@ public class GetMeasurementIdentifiers {
             return this;
         }
 
+        public Builder cache(MeasurementIdentifiersCache cache) {
+            instance.cache = cache;
+            return this;
+        }
+
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
         Builder indexNames(List<String> indexNames) {
             instance.indexNames = indexNames;
             return this;
@@ -67,5 +140,9 @@ public class GetMeasurementIdentifiers {
             return instance.doExecute();
         }
 
+        CompletableFuture<List<String>> executeAsync() {
+            return instance.doExecuteAsync();
+        }
+
     }
 }
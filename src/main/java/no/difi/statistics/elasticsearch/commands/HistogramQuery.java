@@ -7,6 +7,7 @@ import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInter
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 abstract class HistogramQuery extends Query {
 
@@ -14,6 +15,8 @@ abstract class HistogramQuery extends Query {
 
     public abstract List<TimeSeriesPoint> execute();
 
+    public abstract CompletableFuture<List<TimeSeriesPoint>> executeAsync();
+
     DateHistogramAggregationBuilder dateHistogram(MeasurementDistance targetDistance) {
         return AggregationBuilders
                 .dateHistogram(targetDistance.name())
@@ -1,9 +1,15 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.aggregations.Aggregation;
@@ -16,6 +22,8 @@ import java.time.ZonedDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
@@ -23,29 +31,66 @@ import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexNam
 import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
 
-public class LastHistogramQuery extends HistogramQuery {
+public class LastHistogramQuery extends HistogramQuery implements MultiSearchable<List<TimeSeriesPoint>> {
 
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private MeasurementDistance targetDistance;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
 
+    @Override
     public List<TimeSeriesPoint> execute() {
-        return lastPerDistance(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                targetDistance,
-                queryFilter
-        );
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return executed(start, points(search(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)));
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> executeAsync() {
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return searchAsync(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)
+                .thenApplyAsync(this::points, converter)
+                .thenApply(points -> executed(start, points));
+    }
+
+    @Override
+    Tags tags() {
+        return QueryMetrics.tags("lastHistogram", seriesDefinition.getDistance());
+    }
+
+    @Override
+    ElasticsearchGuard.Pool pool() {
+        return ElasticsearchGuard.Pool.expensive;
+    }
+
+    @Override
+    public List<String> indexNames() {
+        return existing(resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list());
+    }
+
+    @Override
+    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommand() {
+        return getMeasurementIdentifiersCommand;
+    }
+
+    @Override
+    public List<TimeSeriesPoint> result(SearchResponse response) {
+        return points(response);
     }
 
-    private List<TimeSeriesPoint> lastPerDistance(List<String> indexNames, MeasurementDistance targetDistance, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+    @Override
+    public SearchRequest searchRequest(List<String> indexNames, List<String> measurementIds) {
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                lastPerDistanceAggregation(targetDistance, getMeasurementIdentifiersCommand.indexNames(indexNames).execute())
-        ));
+                lastPerDistanceAggregation(targetDistance, measurementIds)
+        );
+    }
+
+    private List<TimeSeriesPoint> points(SearchResponse response) {
         if (response.getAggregations() != null)
             return points(response.getAggregations().get(targetDistance.name()), queryFilter.categories());
         else
@@ -118,6 +163,34 @@ public class LastHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder indexCatalog(SeriesCatalog indexCatalog) {
+            instance.indexCatalog = indexCatalog;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder hedging(SearchHedging hedging) {
+            instance.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * @param converter the executor converting responses of asynchronous searches to points
+         */
+        public Builder converter(Executor converter) {
+            instance.converter = converter;
+            return this;
+        }
+
         public LastHistogramQuery build() {
             return instance;
         }
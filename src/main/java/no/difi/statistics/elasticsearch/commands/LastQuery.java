@@ -1,21 +1,29 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggregation;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
 
-public class LastQuery extends SinglePointQuery {
+public class LastQuery extends SinglePointQuery implements MultiSearchable<TimeSeriesPoint> {
 
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
@@ -23,25 +31,53 @@ public class LastQuery extends SinglePointQuery {
 
     @Override
     public TimeSeriesPoint execute() {
-        return last(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return executed(start, pointFromLastAggregation(search(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)));
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> executeAsync() {
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return searchAsync(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)
+                .thenApplyAsync(this::pointFromLastAggregation, converter)
+                .thenApply(point -> executed(start, point));
+    }
+
+    @Override
+    Tags tags() {
+        return QueryMetrics.tags("last", seriesDefinition.getDistance());
+    }
+
+    @Override
+    public List<String> indexNames() {
+        return existing(resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list());
     }
 
-    private TimeSeriesPoint last(List<String> indexNames, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+    @Override
+    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommand() {
+        return getMeasurementIdentifiersCommand;
+    }
+
+    @Override
+    public TimeSeriesPoint result(SearchResponse response) {
+        return pointFromLastAggregation(response);
+    }
+
+    @Override
+    public SearchRequest searchRequest(List<String> indexNames, List<String> measurementIds) {
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                sumPerTimestampAggregation("last", measurementIds(indexNames)).order(key(false)).size(1)
-        ));
-        return pointFromLastAggregation(response, queryFilter.categories());
+                sumPerTimestampAggregation("last", measurementIds).order(key(false)).size(1)
+        );
     }
 
-    private List<String> measurementIds(List<String> indexNames) {
-        return getMeasurementIdentifiersCommand.indexNames(indexNames).execute();
+    private TimeSeriesPoint pointFromLastAggregation(SearchResponse response) {
+        return pointFromLastAggregation(response, queryFilter.categories());
     }
 
     private TimeSeriesPoint pointFromLastAggregation(SearchResponse response, Map<String, String> categories) {
@@ -90,6 +126,34 @@ public class LastQuery extends SinglePointQuery {
             return this;
         }
 
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder indexCatalog(SeriesCatalog indexCatalog) {
+            instance.indexCatalog = indexCatalog;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder hedging(SearchHedging hedging) {
+            instance.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * @param converter the executor converting responses of asynchronous searches to points
+         */
+        public Builder converter(Executor converter) {
+            instance.converter = converter;
+            return this;
+        }
+
         public LastQuery build() {
             return instance;
         }
@@ -0,0 +1,305 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.Deadline;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.model.BatchQueryResult;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Runs a batch of queries with one <code>_msearch</code> request. Measurement identifiers are looked up first (usually
+ * from cache), a limited number of queries at a time. Queries whose result calls for a fallback (an empty day or month series
+ * derived from its minute series) are run in a second multi search. A failing query gives an error result for that
+ * query only. Queries left without indices after pruning get an empty result without being searched. Metrics are
+ * recorded with operation <code>batch</code>, each multi search as a round trip and each of its searches with the
+ * time Elasticsearch took.
+ */
+public class MultiSearchQuery {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private RestHighLevelClient elasticsearchClient;
+    private ElasticsearchGuard guard = ElasticsearchGuard.disabled();
+    private QueryMetrics metrics = QueryMetrics.disabled();
+    private int lookupConcurrency = 8;
+    private static final Tags tags = QueryMetrics.tags("batch");
+    private final Deadline deadline = Deadline.current();
+    private final Map<String, BatchQueryResult> failed = new LinkedHashMap<>();
+    private final Map<String, Part<?>> parts = new LinkedHashMap<>();
+    private final Set<String> ids = new LinkedHashSet<>();
+
+    public Map<String, BatchQueryResult> execute() {
+        long start = System.nanoTime();
+        Map<String, BatchQueryResult> results = new LinkedHashMap<>(failed);
+        Map<String, Part<?>> pending = parts;
+        while (!pending.isEmpty())
+            pending = search(pending, results);
+        Map<String, BatchQueryResult> orderedResults = new LinkedHashMap<>();
+        for (String id : ids)
+            orderedResults.put(id, results.get(id));
+        metrics.executed(tags, System.nanoTime() - start, pointCount(orderedResults));
+        return orderedResults;
+    }
+
+    private static int pointCount(Map<String, BatchQueryResult> results) {
+        int count = 0;
+        for (BatchQueryResult result : results.values()) {
+            if (result.getPoints() != null)
+                count += result.getPoints().size();
+            else if (result.getPoint() != null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the parts to search for in the next round
+     */
+    private Map<String, Part<?>> search(Map<String, Part<?>> parts, Map<String, BatchQueryResult> results) {
+        Map<String, CompletableFuture<PreparedPart<?>>> preparations = prepare(parts);
+        List<PreparedPart<?>> prepared = new ArrayList<>();
+        List<String> preparedIds = new ArrayList<>();
+        Map<String, Part<?>> nextRound = new LinkedHashMap<>();
+        preparations.forEach((id, preparation) -> {
+            PreparedPart<?> part;
+            try {
+                part = preparation.join();
+            } catch (CompletionException e) {
+                results.put(id, error(id, e.getCause()));
+                return;
+            }
+            if (part.request == null) {
+                metrics.skipped(tags);
+                complete(part, Query.emptyResponse(), id, results, nextRound);
+                return;
+            }
+            prepared.add(part);
+            preparedIds.add(id);
+        });
+        if (prepared.isEmpty())
+            return nextRound;
+        MultiSearchRequest request = new MultiSearchRequest();
+        MultiSearchResponse.Item[] responses;
+        long roundTripStart = System.nanoTime();
+        try {
+            prepared.forEach(part -> request.add(Query.withDeadline(part.request, deadline)));
+            responses = multiSearch(request).getResponses();
+        } catch (RuntimeException e) {
+            preparedIds.forEach(id -> results.put(id, error(id, e)));
+            return nextRound;
+        }
+        long roundTripNanos = System.nanoTime() - roundTripStart;
+        for (int i = 0; i < responses.length; i++) {
+            String id = preparedIds.get(i);
+            if (responses[i].isFailure()) {
+                results.put(id, error(id, responses[i].getFailure()));
+                continue;
+            }
+            metrics.searched(tags, prepared.get(i).request.indices().length, roundTripNanos, responses[i].getResponse());
+            complete(prepared.get(i), Query.checked(responses[i].getResponse(), deadline), id, results, nextRound);
+        }
+        return nextRound;
+    }
+
+    /**
+     * Starts at most {@link #lookupConcurrency} lookups of measurement identifiers at a time. Asynchronous lookups are
+     * rejected rather than waiting for a permit of the cheap pool, so a batch of queries missing the cache must not take
+     * more permits than the pool has. Lookups answered from cache are not counted.
+     */
+    private Map<String, CompletableFuture<PreparedPart<?>>> prepare(Map<String, Part<?>> parts) {
+        Map<String, CompletableFuture<PreparedPart<?>>> preparations = new LinkedHashMap<>();
+        List<CompletableFuture<PreparedPart<?>>> running = new ArrayList<>();
+        for (Map.Entry<String, Part<?>> part : parts.entrySet()) {
+            if (running.size() >= lookupConcurrency) {
+                CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).exceptionally(e -> null).join();
+                running.clear();
+            }
+            CompletableFuture<PreparedPart<?>> preparation = part.getValue().prepare();
+            preparations.put(part.getKey(), preparation);
+            if (!preparation.isDone())
+                running.add(preparation);
+        }
+        return preparations;
+    }
+
+    private void complete(PreparedPart<?> part, SearchResponse response, String id, Map<String, BatchQueryResult> results, Map<String, Part<?>> nextRound) {
+        try {
+            Part<?> fallback = part.complete(response, results, id);
+            if (fallback != null)
+                nextRound.put(id, fallback);
+        } catch (RuntimeException e) {
+            results.put(id, error(id, e));
+        }
+    }
+
+    private MultiSearchResponse multiSearch(MultiSearchRequest request) {
+        try {
+            return guard.call(ElasticsearchGuard.Pool.expensive, () -> elasticsearchClient.msearch(request, Query.requestOptions(deadline)));
+        } catch (IOException e) {
+            if (deadline != null && deadline.isExpired())
+                throw new Deadline.DeadlineExceededException();
+            metrics.retried(tags);
+            try {
+                return guard.call(ElasticsearchGuard.Pool.expensive, () -> elasticsearchClient.msearch(request, Query.requestOptions(deadline)));
+            } catch (IOException ee) {
+                throw new RuntimeException("Multi search failed (performed a retry after IOException)", ee);
+            }
+        }
+    }
+
+    private BatchQueryResult error(String id, Throwable e) {
+        logger.warn("Query {} in batch failed", id, e);
+        return BatchQueryResult.error(e.getMessage());
+    }
+
+    private static class Part<T> {
+
+        private final MultiSearchable<T> query;
+        private final Function<T, BatchQueryResult> result;
+
+        private Part(MultiSearchable<T> query, Function<T, BatchQueryResult> result) {
+            this.query = query;
+            this.result = result;
+        }
+
+        private CompletableFuture<PreparedPart<?>> prepare() {
+            try {
+                List<String> indexNames = query.indexNames();
+                if (indexNames.isEmpty())
+                    return CompletableFuture.completedFuture(new PreparedPart<>(this, null));
+                return query.measurementIdentifiersCommand().indexNames(indexNames).executeAsync()
+                        .thenApply(measurementIds -> new PreparedPart<>(this, query.searchRequest(indexNames, measurementIds)));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+    }
+
+    private static class PreparedPart<T> {
+
+        private final Part<T> part;
+        // Null if there are no indices to search
+        private final SearchRequest request;
+
+        private PreparedPart(Part<T> part, SearchRequest request) {
+            this.part = part;
+            this.request = request;
+        }
+
+        /**
+         * @return the fallback part to run in the next round, or <code>null</code> if the result was stored
+         */
+        private Part<T> complete(SearchResponse response, Map<String, BatchQueryResult> results, String id) {
+            T result = part.query.result(response);
+            MultiSearchable<T> fallback = part.query.fallback(result);
+            if (fallback != null)
+                return new Part<>(fallback, part.result);
+            results.put(id, part.result.apply(result));
+            return null;
+        }
+
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private MultiSearchQuery instance = new MultiSearchQuery();
+
+        public Builder elasticsearchClient(RestHighLevelClient client) {
+            instance.elasticsearchClient = client;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * @param lookupConcurrency the maximum number of measurement identifier lookups running at a time, kept well
+         *                          below the size of the cheap pool of the guard
+         */
+        public Builder lookupConcurrency(int lookupConcurrency) {
+            instance.lookupConcurrency = lookupConcurrency;
+            return this;
+        }
+
+        public Builder query(String id, TimeSeriesQuery query) {
+            return add(id, new Part<>(query, BatchQueryResult::points));
+        }
+
+        public Builder lastHistogram(String id, LastHistogramQuery query) {
+            return add(id, new Part<>(query, BatchQueryResult::points));
+        }
+
+        public Builder sumHistogram(String id, SumHistogramQuery query) {
+            return add(id, new Part<>(query, BatchQueryResult::points));
+        }
+
+        public Builder last(String id, LastQuery query) {
+            return add(id, new Part<>(query, BatchQueryResult::point));
+        }
+
+        public Builder sum(String id, SumQuery query) {
+            return add(id, new Part<>(query, BatchQueryResult::point));
+        }
+
+        /**
+         * Records a query that could not be set up, so that the batch result still contains an error for it.
+         */
+        public Builder failed(String id, Exception e) {
+            Objects.requireNonNull(id, "Query id in batch is missing");
+            instance.ids.add(id);
+            instance.failed.put(id, instance.error(id, e));
+            return this;
+        }
+
+        private Builder add(String id, Part<?> part) {
+            addId(id);
+            instance.parts.put(id, part);
+            return this;
+        }
+
+        /**
+         * Ids are validated by the API, so a missing or duplicate id here is a programming error.
+         */
+        private void addId(String id) {
+            Objects.requireNonNull(id, "Query id in batch is missing");
+            if (!instance.ids.add(id))
+                throw new IllegalArgumentException("Duplicate query id in batch: " + id);
+        }
+
+        public MultiSearchQuery build() {
+            return instance;
+        }
+
+    }
+
+}
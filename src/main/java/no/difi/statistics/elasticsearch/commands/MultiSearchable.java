@@ -0,0 +1,29 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+
+import java.util.List;
+
+/**
+ * A query that can be run as part of a multi search, split into its steps: resolving indices, looking up
+ * measurement identifiers, building the search request and converting the response.
+ */
+interface MultiSearchable<T> {
+
+    List<String> indexNames();
+
+    GetMeasurementIdentifiers.Builder measurementIdentifiersCommand();
+
+    SearchRequest searchRequest(List<String> indexNames, List<String> measurementIds);
+
+    T result(SearchResponse response);
+
+    /**
+     * @return a query to run instead, given the result of this one, or <code>null</code> if the result stands
+     */
+    default MultiSearchable<T> fallback(T result) {
+        return null;
+    }
+
+}
@@ -1,79 +1,229 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
+import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.RelationalOperator;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.PercentileFilter;
 import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClosePointInTimeRequest;
+import org.elasticsearch.action.search.OpenPointInTimeRequest;
+import org.elasticsearch.action.search.OpenPointInTimeResponse;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.index.query.RangeQueryBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.metrics.Percentiles;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-import static java.lang.String.format;
-import static java.util.stream.Collectors.joining;
-import static java.util.stream.Collectors.toMap;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.percentiles;
 
+/**
+ * Finds the points of a series having a measurement above or below a percentile. The matching documents are paged
+ * through with a point in time and <code>search_after</code>, so results are complete regardless of size, and only
+ * one page of hits is held at a time.
+ */
 public class PercentileQuery extends Query {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private static final String timeFieldName = "timestamp";
-    private static final String indexType = "default";
+    private static final String categoryPrefix = "category.";
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private PercentileFilter percentileFilter;
+    private int pageSize = 1000;
+    private Duration pointInTimeKeepAlive = Duration.ofMinutes(1);
 
     public List<TimeSeriesPoint> execute() {
-        return searchWithPercentileFilter(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter, percentileFilter
-        );
+        List<TimeSeriesPoint> result = new ArrayList<>();
+        execute(result::add);
+        return result;
     }
 
-    private List<TimeSeriesPoint> searchWithPercentileFilter(List<String> indexNames, QueryFilter queryFilter, PercentileFilter filter) {
-        double percentileValue = percentileValue(indexNames, filter.getMeasurementId(), filter.getPercentile(), queryFilter);
-        logger.info(filter.getPercentile() + ". percentile value: " + percentileValue);
-        SearchResponse response = search(searchRequest(
-                indexNames,
+    /**
+     * Hands each point to the consumer as its page arrives.
+     */
+    public void execute(Consumer<TimeSeriesPoint> consumer) {
+        long start = System.nanoTime();
+        AtomicInteger count = new AtomicInteger();
+        List<String> indexNames = indexNames();
+        if (indexNames.isEmpty()) {
+            metrics.skipped(tags());
+            executed(start, 0);
+            return;
+        }
+        double percentileValue = percentileValue(search(percentileValueRequest(indexNames)));
+        String pointInTimeId = openPointInTime(indexNames);
+        try {
+            Object[] searchAfter = null;
+            do {
+                SearchResponse response = search(pageRequest(pointInTimeId, percentileValue, searchAfter));
+                pointInTimeId = response.pointInTimeId();
+                searchAfter = consume(response, point -> {
+                    count.incrementAndGet();
+                    consumer.accept(point);
+                });
+            } while (searchAfter != null);
+        } finally {
+            closePointInTime(pointInTimeId);
+        }
+        executed(start, count.get());
+    }
+
+    public CompletableFuture<List<TimeSeriesPoint>> executeAsync() {
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        List<TimeSeriesPoint> result = new ArrayList<>();
+        if (indexNames.isEmpty()) {
+            metrics.skipped(tags());
+            return CompletableFuture.completedFuture(executed(start, result));
+        }
+        return searchAsync(percentileValueRequest(indexNames))
+                .thenApply(this::percentileValue)
+                .thenCompose(percentileValue -> openPointInTimeAsync(indexNames)
+                        .thenCompose(pointInTimeId -> pagesAsync(pointInTimeId, percentileValue, null, result::add)
+                                .whenComplete((lastPointInTimeId, e) -> closePointInTimeAsync(lastPointInTimeId != null ? lastPointInTimeId : pointInTimeId))))
+                .thenApply(ignored -> executed(start, result));
+    }
+
+    @Override
+    Tags tags() {
+        return QueryMetrics.tags("percentile", seriesDefinition.getDistance());
+    }
+
+    @Override
+    ElasticsearchGuard.Pool pool() {
+        return ElasticsearchGuard.Pool.expensive;
+    }
+
+    private List<String> indexNames() {
+        return existing(resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list());
+    }
+
+    /**
+     * @return the point in time id of the last page
+     */
+    private CompletableFuture<String> pagesAsync(String pointInTimeId, double percentileValue, Object[] searchAfter, Consumer<TimeSeriesPoint> consumer) {
+        return searchAsync(pageRequest(pointInTimeId, percentileValue, searchAfter))
+                .thenComposeAsync(response -> {
+                    Object[] nextSearchAfter = consume(response, consumer);
+                    if (nextSearchAfter == null)
+                        return CompletableFuture.completedFuture(response.pointInTimeId());
+                    return pagesAsync(response.pointInTimeId(), percentileValue, nextSearchAfter, consumer);
+                }, converter);
+    }
+
+    /**
+     * @return the sort values to search after for the next page, or <code>null</code> if this was the last page
+     */
+    private Object[] consume(SearchResponse response, Consumer<TimeSeriesPoint> consumer) {
+        SearchHit[] hits = response.getHits().getHits();
+        for (SearchHit hit : hits)
+            consumer.accept(point(hit));
+        return hits.length < pageSize ? null : hits[hits.length - 1].getSortValues();
+    }
+
+    private SearchRequest pageRequest(String pointInTimeId, double percentileValue, Object[] searchAfter) {
+        return pointInTimeSearchRequest(
+                new PointInTimeBuilder(pointInTimeId).setKeepAlive(keepAlive()),
                 queryFilter,
-                range(filter.getMeasurementId(), filter.getRelationalOperator(), percentileValue),
-                10_000
-        ));
-        List<TimeSeriesPoint> series = new ArrayList<>();
-        for (SearchHit hit : response.getHits()) {
-            series.add(point(hit).build());
+                range(percentileFilter.getMeasurementId(), percentileFilter.getRelationalOperator(), percentileValue),
+                pageSize,
+                searchAfter
+        );
+    }
+
+    private OpenPointInTimeRequest openPointInTimeRequest(List<String> indexNames) {
+        return new OpenPointInTimeRequest(indexNames.toArray(new String[0]))
+                .indicesOptions(IndicesOptions.fromOptions(true, true, true, false))
+                .keepAlive(keepAlive());
+    }
+
+    private String openPointInTime(List<String> indexNames) {
+        try {
+            return guard.call(pool(), () -> elasticsearchClient.openPointInTime(openPointInTimeRequest(indexNames), requestOptions(deadline)))
+                    .getPointInTimeId();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open point in time", e);
         }
-        return series;
     }
 
-    private static TimeSeriesPoint.Builder point(SearchHit hit) {
-        return TimeSeriesPoint.builder()
-                .timestamp(timestamp(hit))
-                .measurements(measurements(hit))
-                .categories(categories(hit));
+    private CompletableFuture<String> openPointInTimeAsync(List<String> indexNames) {
+        return guard.callAsync(pool(), () -> {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            elasticsearchClient.openPointInTimeAsync(openPointInTimeRequest(indexNames), requestOptions(deadline), ActionListener.wrap(
+                    response -> result.complete(response.getPointInTimeId()),
+                    e -> result.completeExceptionally(new RuntimeException("Failed to open point in time", e))
+            ));
+            return result;
+        });
     }
 
-    private static Map<String, Long> measurements(SearchHit hit) {
-        return hit.getSourceAsMap().entrySet().stream()
-                .filter(entry -> !entry.getKey().equals(timeFieldName) && !entry.getKey().startsWith("category."))
-                .collect(toMap(Map.Entry::getKey, e -> Long.valueOf(e.getValue().toString())));
+    /**
+     * Not guarded, as closing releases resources in the cluster. Failing to close is not fatal, as the point in time
+     * expires by its keep-alive anyway.
+     */
+    private void closePointInTime(String pointInTimeId) {
+        try {
+            elasticsearchClient.closePointInTime(new ClosePointInTimeRequest(pointInTimeId), RequestOptions.DEFAULT);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to close point in time", e);
+        }
+    }
+
+    private void closePointInTimeAsync(String pointInTimeId) {
+        elasticsearchClient.closePointInTimeAsync(new ClosePointInTimeRequest(pointInTimeId), RequestOptions.DEFAULT, ActionListener.wrap(
+                response -> {},
+                e -> logger.warn("Failed to close point in time", e)
+        ));
     }
 
-    private static Map<String, String> categories(SearchHit hit) {
-        return hit.getSourceAsMap().entrySet().stream()
-                .filter(entry -> entry.getKey().startsWith("category."))
-                .collect(toMap(entry -> entry.getKey().substring(9), entry -> entry.getValue().toString()));
+    private TimeValue keepAlive() {
+        return TimeValue.timeValueMillis(pointInTimeKeepAlive.toMillis());
+    }
+
+    /**
+     * Converts the hit with a single pass over its source.
+     */
+    static TimeSeriesPoint point(SearchHit hit) {
+        TimeSeriesPoint.Builder point = TimeSeriesPoint.builder();
+        Map<String, Long> measurements = new HashMap<>();
+        Map<String, String> categories = new HashMap<>();
+        for (Map.Entry<String, Object> entry : hit.getSourceAsMap().entrySet()) {
+            if (entry.getKey().equals(timeFieldName))
+                point.timestamp(Timestamp.parse(entry.getValue().toString()));
+            else if (entry.getKey().startsWith(categoryPrefix))
+                categories.put(entry.getKey().substring(categoryPrefix.length()), entry.getValue().toString());
+            else
+                measurements.put(entry.getKey(), Long.valueOf(entry.getValue().toString()));
+        }
+        return point.measurements(measurements).categories(categories).build();
     }
 
     private RangeQueryBuilder range(String measurementId, RelationalOperator operator, double percentileValue) {
@@ -93,17 +243,22 @@ public class PercentileQuery extends Query {
         return builder;
     }
 
-    private double percentileValue(List<String> indexNames, String measurementId, int percentile, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+    private SearchRequest percentileValueRequest(List<String> indexNames) {
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                percentiles("p").field(measurementId).percentiles(percentile).compression(10000)
-        ));
-        if (response.getAggregations() == null)
-            return 0.0;
-        return ((Percentiles) response.getAggregations().get("p")).percentile(percentile);
+                percentiles("p").field(percentileFilter.getMeasurementId()).percentiles(percentileFilter.getPercentile()).compression(10000)
+        );
+    }
+
+    private double percentileValue(SearchResponse response) {
+        double percentileValue = 0.0;
+        if (response.getAggregations() != null)
+            percentileValue = ((Percentiles) response.getAggregations().get("p")).percentile(percentileFilter.getPercentile());
+        logger.info(percentileFilter.getPercentile() + ". percentile value: " + percentileValue);
+        return percentileValue;
     }
 
     public static Builder builder() {
@@ -134,6 +289,44 @@ public class PercentileQuery extends Query {
             return this;
         }
 
+        public Builder pageSize(int pageSize) {
+            instance.pageSize = pageSize;
+            return this;
+        }
+
+        public Builder pointInTimeKeepAlive(Duration keepAlive) {
+            instance.pointInTimeKeepAlive = keepAlive;
+            return this;
+        }
+
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder indexCatalog(SeriesCatalog indexCatalog) {
+            instance.indexCatalog = indexCatalog;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder hedging(SearchHedging hedging) {
+            instance.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * @param converter the executor converting responses of asynchronous searches to points
+         */
+        public Builder converter(Executor converter) {
+            instance.converter = converter;
+            return this;
+        }
+
         public PercentileQuery build() {
             return instance;
         }
@@ -1,26 +1,50 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.Deadline;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.QueryFilter;
 import no.difi.statistics.model.TimeRange;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.apache.http.client.config.RequestConfig;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
 import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Cancellable;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.index.query.*;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.metrics.Sum;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.internal.InternalSearchResponse;
 
 import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 import static org.elasticsearch.index.query.QueryBuilders.*;
 import static org.elasticsearch.search.sort.SortOrder.ASC;
@@ -29,19 +53,308 @@ public abstract class Query {
 
     private static final String timeFieldName = "timestamp";
     RestHighLevelClient elasticsearchClient;
+    QueryMetrics metrics = QueryMetrics.disabled();
+    SeriesCatalog indexCatalog;
+    ElasticsearchGuard guard = ElasticsearchGuard.disabled();
+    SearchHedging hedging = SearchHedging.disabled();
+    // Responses of asynchronous searches are completed on the I/O reactor of the client, which must not be held up
+    // converting them to points
+    Executor converter = Runnable::run;
+    // Commands are built on the thread handling the request
+    final Deadline deadline = Deadline.current();
+    private final Set<CompletableFuture<SearchResponse>> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    // Set for commands run on behalf of another, which records the execution of both
+    boolean nested;
+
+    /**
+     * @return the tags of the metrics recorded for this query
+     */
+    abstract Tags tags();
+
+    /**
+     * @return the bulkhead pool the searches of this query are counted against
+     */
+    ElasticsearchGuard.Pool pool() {
+        return ElasticsearchGuard.Pool.cheap;
+    }
+
+    /**
+     * @return the given indices, without those the index catalog knows do not exist. All of them if there is no
+     * catalog.
+     */
+    List<String> existing(List<String> indexNames) {
+        if (indexCatalog == null)
+            return indexNames;
+        List<String> existing = indexCatalog.existing(indexNames);
+        metrics.pruned(tags(), indexNames.size() - existing.size());
+        return existing;
+    }
+
+    /**
+     * Looks up the measurement identifiers of the indices and searches them with the request built from both. If
+     * there are no indices, nothing is sent to Elasticsearch and the response is empty.
+     */
+    SearchResponse search(
+            List<String> indexNames,
+            GetMeasurementIdentifiers.Builder measurementIdentifiersCommand,
+            BiFunction<List<String>, List<String>, SearchRequest> request
+    ) {
+        if (indexNames.isEmpty()) {
+            metrics.skipped(tags());
+            return emptyResponse();
+        }
+        List<String> measurementIds = measurementIdentifiersCommand.indexNames(indexNames).execute();
+        check(deadline);
+        return search(request.apply(indexNames, measurementIds));
+    }
+
+    CompletableFuture<SearchResponse> searchAsync(
+            List<String> indexNames,
+            GetMeasurementIdentifiers.Builder measurementIdentifiersCommand,
+            BiFunction<List<String>, List<String>, SearchRequest> request
+    ) {
+        if (indexNames.isEmpty()) {
+            metrics.skipped(tags());
+            return CompletableFuture.completedFuture(emptyResponse());
+        }
+        return measurementIdentifiersCommand.indexNames(indexNames).executeAsync()
+                .thenCompose(measurementIds -> {
+                    check(deadline);
+                    return searchAsync(request.apply(indexNames, measurementIds));
+                });
+    }
+
+    /**
+     * Searches the indices one at a time, in order of their names (and so of their years), handing each response to
+     * the consumer before the next search is sent. Only the response of one index is held at a time. Measurement
+     * identifiers are looked up once for all of them.
+     */
+    void searchPerIndex(
+            List<String> indexNames,
+            GetMeasurementIdentifiers.Builder measurementIdentifiersCommand,
+            BiFunction<List<String>, List<String>, SearchRequest> request,
+            Consumer<SearchResponse> consumer
+    ) {
+        if (indexNames.isEmpty()) {
+            metrics.skipped(tags());
+            return;
+        }
+        List<String> measurementIds = measurementIdentifiersCommand.indexNames(indexNames).execute();
+        for (String indexName : indexNames.stream().sorted().collect(toList())) {
+            check(deadline);
+            consumer.accept(search(request.apply(List.of(indexName), measurementIds)));
+        }
+    }
+
+    /**
+     * A response without hits or aggregations, for searches there is no point in sending.
+     */
+    static SearchResponse emptyResponse() {
+        return new SearchResponse(
+                InternalSearchResponse.empty(),
+                null,
+                0,
+                0,
+                0,
+                0,
+                ShardSearchFailure.EMPTY_ARRAY,
+                SearchResponse.Clusters.EMPTY
+        );
+    }
 
     SearchResponse search(SearchRequest request) {
         try {
-            return elasticsearchClient.search(request, RequestOptions.DEFAULT);
+            return doSearch(request);
         } catch (IOException e) {
+            if (deadline != null && deadline.isExpired())
+                throw new Deadline.DeadlineExceededException();
+            metrics.retried(tags());
             try {
-                return elasticsearchClient.search(request, RequestOptions.DEFAULT);
+                return doSearch(request);
             } catch (IOException ee) {
                 throw new RuntimeException("Search failed (performed a retry after IOException)", ee);
             }
         }
     }
 
+    private SearchResponse doSearch(SearchRequest request) throws IOException {
+        if (hedging.applies(request))
+            return await(doSearchAsync(request));
+        long start = System.nanoTime();
+        SearchResponse response = guard.call(
+                pool(),
+                () -> elasticsearchClient.search(withDeadline(request, deadline), requestOptions(deadline))
+        );
+        metrics.searched(tags(), request.indices().length, System.nanoTime() - start, response);
+        return checked(response, deadline);
+    }
+
+    CompletableFuture<SearchResponse> searchAsync(SearchRequest request) {
+        return doSearchAsync(request).exceptionallyCompose(e -> {
+            if (!(unwrap(e) instanceof IOException))
+                return CompletableFuture.failedFuture(e);
+            if (deadline != null && deadline.isExpired())
+                return CompletableFuture.failedFuture(new Deadline.DeadlineExceededException());
+            metrics.retried(tags());
+            return doSearchAsync(request).exceptionally(ee -> {
+                throw new RuntimeException("Search failed (performed a retry after IOException)", unwrap(ee));
+            });
+        });
+    }
+
+    /**
+     * A hedge holds a connection of its own, so it takes a permit of its own, and is not sent if there is none.
+     */
+    private CompletableFuture<SearchResponse> doSearchAsync(SearchRequest request) {
+        return hedging.search(tags(), request, this::guardedSearchAsync);
+    }
+
+    /**
+     * Cancelling the returned future aborts the search, and so frees its permit.
+     */
+    private CompletableFuture<SearchResponse> guardedSearchAsync(SearchRequest request) {
+        AtomicReference<CompletableFuture<SearchResponse>> sent = new AtomicReference<>();
+        CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+        guard.callAsync(pool(), () -> {
+            sent.set(doSearchAsyncUnguarded(request));
+            return sent.get();
+        }).whenComplete((response, e) -> {
+            if (e != null)
+                result.completeExceptionally(unwrap(e));
+            else
+                result.complete(response);
+        });
+        result.whenComplete((response, e) -> {
+            if (result.isCancelled() && sent.get() != null)
+                sent.get().cancel(true);
+        });
+        return result;
+    }
+
+    /**
+     * Aborts the asynchronous searches of the query in flight, and fails those not yet sent, when their result is no
+     * longer needed.
+     */
+    void cancel() {
+        cancelled = true;
+        inFlight.forEach(search -> search.cancel(true));
+    }
+
+    /**
+     * Cancelling the returned future aborts the search.
+     */
+    private CompletableFuture<SearchResponse> doSearchAsyncUnguarded(SearchRequest request) {
+        if (cancelled)
+            return CompletableFuture.failedFuture(new CancellationException());
+        CompletableFuture<SearchResponse> result = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            withDeadline(request, deadline);
+        } catch (Deadline.DeadlineExceededException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Cancellable search = elasticsearchClient.searchAsync(request, requestOptions(deadline), new ActionListener<>() {
+            @Override
+            public void onResponse(SearchResponse response) {
+                metrics.searched(tags(), request.indices().length, System.nanoTime() - start, response);
+                result.complete(checked(response, deadline));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        inFlight.add(result);
+        result.whenComplete((response, e) -> {
+            inFlight.remove(result);
+            if (result.isCancelled())
+                search.cancel();
+        });
+        if (cancelled)
+            result.cancel(true);
+        return result;
+    }
+
+    /**
+     * Gives the search the time remaining of the deadline, less a margin for transferring and processing the
+     * response. Shards that have not finished by then return what they have, and the response is marked as timed
+     * out rather than failed.
+     *
+     * @throws Deadline.DeadlineExceededException if the deadline has already passed
+     */
+    static SearchRequest withDeadline(SearchRequest request, Deadline deadline) {
+        if (deadline == null)
+            return request;
+        check(deadline);
+        request.allowPartialSearchResults(true);
+        if (request.source() != null)
+            request.source().timeout(TimeValue.timeValueMillis(Math.max(1, deadline.remaining().toMillis() * 4 / 5)));
+        return request;
+    }
+
+    /**
+     * @return options that abort the request if Elasticsearch has not answered when the deadline passes
+     */
+    static RequestOptions requestOptions(Deadline deadline) {
+        if (deadline == null)
+            return RequestOptions.DEFAULT;
+        int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remaining().toMillis()));
+        return RequestOptions.DEFAULT.toBuilder()
+                .setRequestConfig(RequestConfig.custom().setConnectTimeout(remaining).setSocketTimeout(remaining).build())
+                .build();
+    }
+
+    /**
+     * Marks the result of the request as partial if some shards timed out or failed.
+     */
+    static SearchResponse checked(SearchResponse response, Deadline deadline) {
+        if (deadline != null && (response.isTimedOut() || response.getFailedShards() > 0))
+            deadline.markPartial();
+        return response;
+    }
+
+    static void check(Deadline deadline) {
+        if (deadline != null)
+            deadline.check();
+    }
+
+    private static SearchResponse await(CompletableFuture<SearchResponse> search) throws IOException {
+        try {
+            return search.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Records the execution of the query, started at the given {@link System#nanoTime()}.
+     */
+    List<TimeSeriesPoint> executed(long start, List<TimeSeriesPoint> points) {
+        executed(start, points.size());
+        return points;
+    }
+
+    TimeSeriesPoint executed(long start, TimeSeriesPoint point) {
+        executed(start, point != null ? 1 : 0);
+        return point;
+    }
+
+    void executed(long start, int pointCount) {
+        if (!nested)
+            metrics.executed(tags(), System.nanoTime() - start, pointCount);
+    }
+
+    static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
     Map<String, Long> measurementsFromSumAggregations(Aggregations aggregations) {
         return aggregations.asList().stream().filter(a -> a instanceof Sum).map(a -> (Sum)a).collect(toMap(Aggregation::getName, a -> (long)a.getValue()));
     }
@@ -62,6 +375,24 @@ public abstract class Query {
                 .source(searchSource);
     }
 
+    /**
+     * A request for one page of hits from a point in time, sorted by time with the shard document as tiebreaker.
+     * Pass the sort values of the last hit of the previous page as <code>searchAfter</code>, or <code>null</code> for
+     * the first page.
+     */
+    static SearchRequest pointInTimeSearchRequest(PointInTimeBuilder pointInTime, QueryFilter queryFilter, QueryBuilder postFilter, int pageSize, Object[] searchAfter) {
+        SearchSourceBuilder searchSource = searchSource(queryFilter)
+                .postFilter(postFilter)
+                .size(pageSize)
+                .sort(timeFieldName, ASC)
+                .sort("_shard_doc", ASC)
+                .trackTotalHits(false)
+                .pointInTimeBuilder(pointInTime);
+        if (searchAfter != null)
+            searchSource.searchAfter(searchAfter);
+        return new SearchRequest().source(searchSource);
+    }
+
     private static SearchSourceBuilder searchSource(QueryFilter queryFilter) {
         BoolQueryBuilder boolQuery = boolQuery();
         if (queryFilter.timeRange() != null)
@@ -2,8 +2,12 @@ package no.difi.statistics.elasticsearch.commands;
 
 import no.difi.statistics.model.TimeSeriesPoint;
 
+import java.util.concurrent.CompletableFuture;
+
 public abstract class SinglePointQuery extends Query {
 
     public abstract TimeSeriesPoint execute();
 
+    public abstract CompletableFuture<TimeSeriesPoint> executeAsync();
+
 }
@@ -1,9 +1,15 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.model.MeasurementDistance;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.aggregations.Aggregation;
@@ -16,40 +22,106 @@ import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static org.elasticsearch.search.aggregations.AggregationBuilders.sum;
 
-public class SumHistogramQuery extends HistogramQuery {
+public class SumHistogramQuery extends HistogramQuery implements MultiSearchable<List<TimeSeriesPoint>> {
 
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private MeasurementDistance targetDistance;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private List<TimeSeriesPoint> rolledUp = emptyList();
 
     @Override
     public List<TimeSeriesPoint> execute() {
-        return sumPerDistance(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                targetDistance,
-                queryFilter
-        );
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return executed(start, points(search(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)));
+    }
+
+    /**
+     * Hands each point to the consumer as soon as it is converted from its bucket, searching the indices one year at a
+     * time so that only the response of one year is held in memory.
+     */
+    public void execute(Consumer<TimeSeriesPoint> consumer) {
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        AtomicInteger count = new AtomicInteger();
+        Consumer<TimeSeriesPoint> countingConsumer = point -> {
+            count.incrementAndGet();
+            consumer.accept(point);
+        };
+        rolledUp.forEach(countingConsumer);
+        searchPerIndex(indexNames, getMeasurementIdentifiersCommand, this::searchRequest, response -> {
+            if (response.getAggregations() != null)
+                points(response.getAggregations().get(targetDistance.name()), queryFilter.categories()).forEach(countingConsumer);
+        });
+        executed(start, count.get());
+    }
+
+    @Override
+    public CompletableFuture<List<TimeSeriesPoint>> executeAsync() {
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return searchAsync(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)
+                .thenApplyAsync(this::points, converter)
+                .thenApply(points -> executed(start, points));
+    }
+
+    @Override
+    Tags tags() {
+        return QueryMetrics.tags("sumHistogram", seriesDefinition.getDistance());
+    }
+
+    @Override
+    ElasticsearchGuard.Pool pool() {
+        return ElasticsearchGuard.Pool.expensive;
     }
 
-    private List<TimeSeriesPoint> sumPerDistance(List<String> indexNames, MeasurementDistance targetDistance, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+    @Override
+    public List<String> indexNames() {
+        return existing(resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list());
+    }
+
+    @Override
+    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommand() {
+        return getMeasurementIdentifiersCommand;
+    }
+
+    @Override
+    public List<TimeSeriesPoint> result(SearchResponse response) {
+        return points(response);
+    }
+
+    @Override
+    public SearchRequest searchRequest(List<String> indexNames, List<String> measurementIds) {
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                sumPerDistanceAggregation(targetDistance, getMeasurementIdentifiersCommand.indexNames(indexNames).execute())
-        ));
+                sumPerDistanceAggregation(targetDistance, measurementIds)
+        );
+    }
+
+    private List<TimeSeriesPoint> points(SearchResponse response) {
+        return pointStream(response).collect(toList());
+    }
+
+    private Stream<TimeSeriesPoint> pointStream(SearchResponse response) {
         if (response.getAggregations() != null)
-            return points(response.getAggregations().get(targetDistance.name()), queryFilter.categories());
+            return Stream.concat(rolledUp.stream(), points(response.getAggregations().get(targetDistance.name()), queryFilter.categories()));
         else
-            return emptyList();
+            return rolledUp.stream();
     }
 
     private DateHistogramAggregationBuilder sumPerDistanceAggregation(MeasurementDistance targetDistance, List<String> measurementIds) {
@@ -59,11 +131,10 @@ public class SumHistogramQuery extends HistogramQuery {
         return dateHistogram;
     }
 
-    private List<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, Map<String, String> categories) {
+    private Stream<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, Map<String, String> categories) {
         return aggregation.getBuckets().stream()
                 .map(this::point)
-                .map(p -> p.categories(categories).build())
-                .collect(toList());
+                .map(p -> p.categories(categories).build());
     }
 
     private TimeSeriesPoint.Builder point(MultiBucketsAggregation.Bucket bucket) {
@@ -115,6 +186,43 @@ public class SumHistogramQuery extends HistogramQuery {
             return this;
         }
 
+        /**
+         * Sums of the periods before the range of the query filter, already rolled up. They are put before the
+         * points searched for.
+         */
+        public Builder rolledUp(List<TimeSeriesPoint> points) {
+            instance.rolledUp = points;
+            return this;
+        }
+
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder indexCatalog(SeriesCatalog indexCatalog) {
+            instance.indexCatalog = indexCatalog;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder hedging(SearchHedging hedging) {
+            instance.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * @param converter the executor converting responses of asynchronous searches to points
+         */
+        public Builder converter(Executor converter) {
+            instance.converter = converter;
+            return this;
+        }
+
         public SumHistogramQuery build() {
             return instance;
         }
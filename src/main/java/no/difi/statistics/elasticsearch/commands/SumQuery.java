@@ -1,10 +1,16 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeRange;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.SearchHit;
@@ -20,6 +26,8 @@ import org.elasticsearch.search.sort.SortOrder;
 
 import java.time.ZonedDateTime;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
@@ -27,7 +35,7 @@ import static no.difi.statistics.elasticsearch.QueryBuilders.sumPerTimestampAggr
 import static org.elasticsearch.search.aggregations.AggregationBuilders.*;
 import static org.elasticsearch.search.aggregations.BucketOrder.key;
 
-public class SumQuery extends SinglePointQuery {
+public class SumQuery extends SinglePointQuery implements MultiSearchable<TimeSeriesPoint> {
 
     private static final String timestampField = "timestamp";
     private TimeSeriesDefinition seriesDefinition;
@@ -36,26 +44,60 @@ public class SumQuery extends SinglePointQuery {
 
     @Override
     public TimeSeriesPoint execute() {
-        return sumAggregate(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return executed(start, point(search(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)));
+    }
+
+    @Override
+    public CompletableFuture<TimeSeriesPoint> executeAsync() {
+        long start = System.nanoTime();
+        List<String> indexNames = indexNames();
+        return searchAsync(indexNames, getMeasurementIdentifiersCommand, this::searchRequest)
+                .thenApplyAsync(this::point, converter)
+                .thenApply(point -> executed(start, point));
+    }
+
+    @Override
+    Tags tags() {
+        return QueryMetrics.tags("sum", seriesDefinition.getDistance());
+    }
+
+    @Override
+    public List<String> indexNames() {
+        return existing(resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list());
     }
 
-    private TimeSeriesPoint sumAggregate(List<String> indexNames, QueryFilter queryFilter) {
+    @Override
+    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommand() {
+        return getMeasurementIdentifiersCommand;
+    }
+
+    @Override
+    public TimeSeriesPoint result(SearchResponse response) {
+        return point(response);
+    }
+
+    @Override
+    public SearchRequest searchRequest(List<String> indexNames, List<String> measurementIds) {
         if (queryFilter.timeRange() == null)
-            return sumAggregateUnbounded(indexNames, queryFilter);
-        SearchResponse response = search(searchRequest(
+            return searchRequestUnbounded(indexNames, measurementIds);
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                sumAggregation("a", queryFilter.timeRange(), measurementIds(indexNames))
+                sumAggregation("a", queryFilter.timeRange(), measurementIds)
+        );
+    }
 
-        ));
-        if (response.getAggregations() == null)
+    private TimeSeriesPoint point(SearchResponse response) {
+        TimeSeriesPoint.Builder point = queryFilter.timeRange() == null
+                ? sumPoint(response.getAggregations())
+                : sumPointFromRangeBucket(response.getAggregations() != null ? response.getAggregations().<Range>get("a") : null);
+        if (point == null)
             return null;
-        return sumPointFromRangeBucket(response.getAggregations().get("a")).categories(queryFilter.categories()).build();
+        return point.categories(queryFilter.categories()).build();
     }
 
     private static DateRangeAggregationBuilder sumAggregation(String name, TimeRange timeRange, List<String> measurementIds) {
@@ -72,18 +114,16 @@ public class SumQuery extends SinglePointQuery {
         return builder;
     }
 
-    private TimeSeriesPoint sumAggregateUnbounded(List<String> indexNames, QueryFilter queryFilter) {
-        List<String> measurementIds = measurementIds(indexNames);
+    private SearchRequest searchRequestUnbounded(List<String> indexNames, List<String> measurementIds) {
         List<AggregationBuilder> aggregations = measurementIds.stream().map(mid -> AggregationBuilders.sum(mid).field(mid)).collect(toList());
         aggregations.add(sumPerTimestampAggregation("last", measurementIds).order(key(false)).size(1));
-        SearchResponse response = search(searchRequest(
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
                 aggregations.toArray(new AggregationBuilder[0])
-        ));
-        return sumPoint(response.getAggregations()).categories(queryFilter.categories()).build();
+        );
     }
 
     private TimeSeriesPoint.Builder sumPointFromRangeBucket(Range range) {
@@ -102,10 +142,6 @@ public class SumQuery extends SinglePointQuery {
         return TimeSeriesPoint.builder().timestamp(timestamp).measurements(measurementsFromSumAggregations(aggregations));
     }
 
-    private List<String> measurementIds(List<String> indexNames) {
-        return getMeasurementIdentifiersCommand.indexNames(indexNames).execute();
-    }
-
     private static ZonedDateTime timestamp(MultiBucketsAggregation.Bucket bucket) {
         return Timestamp.parse(bucket.getKeyAsString());
     }
@@ -142,6 +178,34 @@ public class SumQuery extends SinglePointQuery {
             return this;
         }
 
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder indexCatalog(SeriesCatalog indexCatalog) {
+            instance.indexCatalog = indexCatalog;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder hedging(SearchHedging hedging) {
+            instance.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * @param converter the executor converting responses of asynchronous searches to points
+         */
+        public Builder converter(Executor converter) {
+            instance.converter = converter;
+            return this;
+        }
+
         public SumQuery build() {
             return instance;
         }
@@ -1,9 +1,16 @@
 package no.difi.statistics.elasticsearch.commands;
 
+import io.micrometer.core.instrument.Tags;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.RollupStore;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.elasticsearch.Timestamp;
 import no.difi.statistics.model.TimeSeriesDefinition;
 import no.difi.statistics.model.TimeSeriesPoint;
 import no.difi.statistics.model.QueryFilter;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
@@ -11,83 +18,282 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.ZonedDateTime;
-import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
-import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 import static no.difi.statistics.elasticsearch.IndexNameResolver.resolveIndexName;
 import static no.difi.statistics.elasticsearch.QueryBuilders.summarizeMeasurements;
 import static no.difi.statistics.model.MeasurementDistance.*;
 
-public class TimeSeriesQuery extends Query {
+public class TimeSeriesQuery extends Query implements MultiSearchable<List<TimeSeriesPoint>> {
 
+    private static final String catalogStrategy = "catalog";
+    private static final String speculativeStrategy = "speculative";
+    private static final String sequentialStrategy = "sequential";
+    private static final String nativePath = "native";
+    private static final String derivedPath = "derived";
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private TimeSeriesDefinition seriesDefinition;
     private QueryFilter queryFilter;
     private SumHistogramQuery.Builder getSumHistogramCommand;
     private GetMeasurementIdentifiers.Builder getMeasurementIdentifiersCommand;
+    private RollupStore rollups;
+    private SeriesCatalog seriesCatalog;
 
+    /**
+     * Day and month series without data of their own are derived from their minute series. If the series catalog
+     * knows whether the series has data of its own, only the path it points to is searched (with the derived path as
+     * fallback should the native one come up empty). Otherwise both paths are searched concurrently, and the derived
+     * search is cancelled if the native one has a result.
+     */
     public List<TimeSeriesPoint> execute() {
-        List<TimeSeriesPoint> result = search(
-                resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list(),
-                queryFilter
-        );
-        if (result.isEmpty() && seriesDefinition.getDistance().equals(days)) {
-            logger.info("Empty result for day series search. Attempting to aggregate minute series...");
-            seriesDefinition = TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
-            result = getSumHistogramCommand
-                    .seriesDefinition(seriesDefinition).targetDistance(days).queryFilter(queryFilter)
-                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().execute();
-        } else if (result.isEmpty() && seriesDefinition.getDistance().equals(months)) {
-            logger.info("Empty result for month series search. Attempting to aggregate minute series...");
-            seriesDefinition = TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
-            result = getSumHistogramCommand
-                    .seriesDefinition(seriesDefinition).targetDistance(months).queryFilter(queryFilter)
-                    .measurementIdentifiersCommand(getMeasurementIdentifiersCommand).build().execute();
-        }
-        return result;
-    }
-
-    private List<TimeSeriesPoint> search(List<String> indexNames, QueryFilter queryFilter) {
-        SearchResponse response = search(searchRequest(
+        long start = System.nanoTime();
+        Boolean hasOwnData = hasOwnData();
+        if (Boolean.FALSE.equals(hasOwnData))
+            return executed(start, derived(catalogStrategy).execute());
+        if (hasOwnData == null)
+            return executed(start, join(speculativeAsync()));
+        List<TimeSeriesPoint> result = points(search(indexNames(), getMeasurementIdentifiersCommand, this::searchRequest));
+        if (result.isEmpty() && isDerivable())
+            return executed(start, derived(catalogStrategy).execute());
+        return executed(start, nativeResult(result, catalogStrategy));
+    }
+
+    /**
+     * Hands each point to the consumer as soon as it is converted from its bucket, without collecting the result. The
+     * indices are searched one year at a time, so that only the response of one year is held in memory. Without the
+     * series catalog to choose a path, the paths are searched one after the other, as a derived result
+     * cannot be held back while the native one is streamed.
+     */
+    public void execute(Consumer<TimeSeriesPoint> consumer) {
+        long start = System.nanoTime();
+        AtomicInteger count = new AtomicInteger();
+        Consumer<TimeSeriesPoint> countingConsumer = point -> {
+            count.incrementAndGet();
+            consumer.accept(point);
+        };
+        Boolean hasOwnData = hasOwnData();
+        String strategy = hasOwnData != null ? catalogStrategy : sequentialStrategy;
+        if (Boolean.FALSE.equals(hasOwnData)) {
+            derived(strategy).execute(countingConsumer);
+        } else {
+            searchPerIndex(indexNames(), getMeasurementIdentifiersCommand, this::searchRequest, response -> pointStream(response).forEach(countingConsumer));
+            if (count.get() == 0 && isDerivable())
+                derived(strategy).execute(countingConsumer);
+            else if (isDerivable())
+                metrics.path(tags(), strategy, nativePath);
+        }
+        executed(start, count.get());
+    }
+
+    public CompletableFuture<List<TimeSeriesPoint>> executeAsync() {
+        long start = System.nanoTime();
+        Boolean hasOwnData = hasOwnData();
+        CompletableFuture<List<TimeSeriesPoint>> result;
+        if (Boolean.FALSE.equals(hasOwnData))
+            result = derived(catalogStrategy).executeAsync();
+        else if (hasOwnData == null)
+            result = speculativeAsync();
+        else
+            result = searchAsync(indexNames(), getMeasurementIdentifiersCommand, this::searchRequest)
+                    .thenApplyAsync(this::points, converter)
+                    .thenCompose(points -> {
+                        if (points.isEmpty() && isDerivable())
+                            return derived(catalogStrategy).executeAsync();
+                        return CompletableFuture.completedFuture(nativeResult(points, catalogStrategy));
+                    });
+        return result.thenApply(points -> executed(start, points));
+    }
+
+    /**
+     * The derived search does not ask the rollup store for a rollup, as that would register it for refresh even when
+     * the native result is used. It is asked for only once the derived result is used, and the search uses it if it
+     * has already been built.
+     */
+    private CompletableFuture<List<TimeSeriesPoint>> speculativeAsync() {
+        SumHistogramQuery derived = derivedFromMinutes(false);
+        CompletableFuture<List<TimeSeriesPoint>> derivedResult = derived.executeAsync();
+        return searchAsync(indexNames(), getMeasurementIdentifiersCommand, this::searchRequest)
+                .thenApplyAsync(this::points, converter)
+                .whenComplete((points, e) -> {
+                    if (e != null || !points.isEmpty())
+                        derived.cancel();
+                })
+                .thenCompose(points -> {
+                    if (!points.isEmpty())
+                        return CompletableFuture.completedFuture(nativeResult(points, speculativeStrategy));
+                    metrics.path(tags(), speculativeStrategy, derivedPath);
+                    if (usesRollups())
+                        rollups.rollup(minuteSeries(), seriesDefinition.getDistance());
+                    return derivedResult;
+                });
+    }
+
+    /**
+     * @return <code>true</code> if the series is not derivable or is known to have data of its own, <code>false</code>
+     * if it is known not to, and <code>null</code> if that is not known
+     */
+    private Boolean hasOwnData() {
+        if (!isDerivable())
+            return true;
+        if (seriesCatalog == null)
+            return null;
+        return seriesCatalog.contains(seriesDefinition);
+    }
+
+    private List<TimeSeriesPoint> nativeResult(List<TimeSeriesPoint> points, String strategy) {
+        if (isDerivable())
+            metrics.path(tags(), strategy, nativePath);
+        return points;
+    }
+
+    private SumHistogramQuery derived(String strategy) {
+        logger.info("Deriving {} series from minute series (strategy {})", seriesDefinition.getDistance(), strategy);
+        metrics.path(tags(), strategy, derivedPath);
+        return derivedFromMinutes(true);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (unwrap(e) instanceof RuntimeException)
+                throw (RuntimeException) unwrap(e);
+            throw e;
+        }
+    }
+
+    @Override
+    Tags tags() {
+        return QueryMetrics.tags("query", seriesDefinition.getDistance());
+    }
+
+    @Override
+    ElasticsearchGuard.Pool pool() {
+        return ElasticsearchGuard.Pool.expensive;
+    }
+
+    private boolean isDerivable() {
+        return seriesDefinition.getDistance().equals(days) || seriesDefinition.getDistance().equals(months);
+    }
+
+    private boolean usesRollups() {
+        return rollups != null && queryFilter.categories().isEmpty();
+    }
+
+    private TimeSeriesDefinition minuteSeries() {
+        return TimeSeriesDefinition.builder().name(seriesDefinition.getName()).distance(minutes).owner(seriesDefinition.getOwner());
+    }
+
+    /**
+     * Sums the minute series per day or month. Closed periods are taken from the rollup store if it has them, and only
+     * the minutes of the rest of the range are aggregated.
+     *
+     * @param used whether the result is sure to be used. Only then is the rollup asked for, and registered to be built
+     *             if it is not.
+     */
+    private SumHistogramQuery derivedFromMinutes(boolean used) {
+        TimeSeriesDefinition minuteSeries = minuteSeries();
+        SumHistogramQuery.Builder command = getSumHistogramCommand
+                .seriesDefinition(minuteSeries).targetDistance(seriesDefinition.getDistance())
+                .measurementIdentifiersCommand(getMeasurementIdentifiersCommand);
+        RollupStore.Rollup rollup = null;
+        if (usesRollups())
+            rollup = used
+                    ? rollups.rollup(minuteSeries, seriesDefinition.getDistance())
+                    : rollups.built(minuteSeries, seriesDefinition.getDistance());
+        ZonedDateTime from = queryFilter.timeRange() != null ? queryFilter.timeRange().from() : null;
+        ZonedDateTime to = queryFilter.timeRange() != null ? queryFilter.timeRange().to() : null;
+        ZonedDateTime rolledUpUntil = rollup != null ? rollup.end(from, to) : null;
+        SumHistogramQuery derived;
+        if (rolledUpUntil == null) {
+            derived = command.queryFilter(queryFilter).build();
+        } else {
+            logger.debug("Using rollups of {} until {}", minuteSeries, rolledUpUntil);
+            derived = command
+                    .queryFilter(QueryFilter.queryFilter().range(rolledUpUntil, to).perCategory(queryFilter.perCategory()).build())
+                    .rolledUp(rollup.points(from, rolledUpUntil))
+                    .build();
+        }
+        // Its execution is recorded as that of this query
+        derived.nested = true;
+        return derived;
+    }
+
+    @Override
+    public List<String> indexNames() {
+        return existing(resolveIndexName().seriesDefinition(seriesDefinition).range(queryFilter.timeRange()).list());
+    }
+
+    @Override
+    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommand() {
+        return getMeasurementIdentifiersCommand;
+    }
+
+    @Override
+    public List<TimeSeriesPoint> result(SearchResponse response) {
+        return points(response);
+    }
+
+    @Override
+    public MultiSearchable<List<TimeSeriesPoint>> fallback(List<TimeSeriesPoint> result) {
+        if (!isDerivable())
+            return null;
+        if (result.isEmpty())
+            return derived(sequentialStrategy);
+        nativeResult(result, sequentialStrategy);
+        return null;
+    }
+
+    @Override
+    public SearchRequest searchRequest(List<String> indexNames, List<String> measurementIds) {
+        return searchRequest(
                 indexNames,
                 queryFilter,
                 null,
                 0,
-                summarizeMeasurements("categoryAggregation", getMeasurementIdentifiersCommand.indexNames(indexNames).execute(), queryFilter.perCategory())
-        ));
+                summarizeMeasurements("categoryAggregation", measurementIds, queryFilter.perCategory())
+        );
+    }
+
+    private List<TimeSeriesPoint> points(SearchResponse response) {
+        return pointStream(response).collect(toList());
+    }
+
+    private Stream<TimeSeriesPoint> pointStream(SearchResponse response) {
         if (response.getAggregations() != null)
             return points(response.getAggregations().get("categoryAggregation"), queryFilter);
         else
-            return emptyList();
+            return Stream.empty();
     }
 
-    private List<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, QueryFilter queryFilter) {
+    private Stream<TimeSeriesPoint> points(MultiBucketsAggregation aggregation, QueryFilter queryFilter) {
         return points(aggregation.getBuckets().stream(), queryFilter.perCategory())
-                .map(p -> p.categories(queryFilter.categories()).build())
-                .collect(toList());
+                .map(p -> p.categories(queryFilter.categories()).build());
     }
 
     private Stream<TimeSeriesPoint.Builder> points(Stream<? extends MultiBucketsAggregation.Bucket> bucketStream, String categoryKey) {
         if (categoryKey != null)
             return bucketStream
-                    .map(bucket -> pointPerCategoryValue(categoryAggregation(bucket), Timestamp.parse(bucket.getKeyAsString()), categoryKey))
-                    .flatMap(Collection::stream);
+                    .flatMap(bucket -> pointPerCategoryValue(categoryAggregation(bucket), Timestamp.parse(bucket.getKeyAsString()), categoryKey));
         else
             return bucketStream
                     .map(bucket -> point(bucket, Timestamp.parse(bucket.getKeyAsString())));
     }
 
-    private List<TimeSeriesPoint.Builder> pointPerCategoryValue(
+    private Stream<TimeSeriesPoint.Builder> pointPerCategoryValue(
             MultiBucketsAggregation aggregation,
             ZonedDateTime timestamp,
             String categoryKey
     ) {
         return aggregation.getBuckets().stream()
-                .map(bucket -> point(bucket, timestamp).category(categoryKey, bucket.getKeyAsString()))
-                .collect(toList());
+                .map(bucket -> point(bucket, timestamp).category(categoryKey, bucket.getKeyAsString()));
     }
 
     private TimeSeriesPoint.Builder point(MultiBucketsAggregation.Bucket bucket, ZonedDateTime timestamp) {
@@ -131,6 +337,48 @@ public class TimeSeriesQuery extends Query {
             return this;
         }
 
+        /**
+         * @param seriesCatalog the catalog telling whether day and month series have data of their own, or
+         *                      <code>null</code> to search both the series and its minute series
+         */
+        public Builder seriesCatalog(SeriesCatalog seriesCatalog) {
+            instance.seriesCatalog = seriesCatalog;
+            return this;
+        }
+
+        public Builder rollups(RollupStore rollups) {
+            instance.rollups = rollups;
+            return this;
+        }
+
+        public Builder metrics(QueryMetrics metrics) {
+            instance.metrics = metrics;
+            return this;
+        }
+
+        public Builder indexCatalog(SeriesCatalog indexCatalog) {
+            instance.indexCatalog = indexCatalog;
+            return this;
+        }
+
+        public Builder guard(ElasticsearchGuard guard) {
+            instance.guard = guard;
+            return this;
+        }
+
+        public Builder hedging(SearchHedging hedging) {
+            instance.hedging = hedging;
+            return this;
+        }
+
+        /**
+         * @param converter the executor converting responses of asynchronous searches to points
+         */
+        public Builder converter(Executor converter) {
+            instance.converter = converter;
+            return this;
+        }
+
         public TimeSeriesQuery build() {
             return instance;
         }
@@ -1,23 +1,47 @@
 package no.difi.statistics.elasticsearch.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import no.difi.statistics.CachingQueryService;
+import no.difi.statistics.CoalescingQueryService;
+import no.difi.statistics.DiskResultStore;
+import no.difi.statistics.LastPointQueryService;
 import no.difi.statistics.QueryService;
 import no.difi.statistics.config.BackendConfig;
+import no.difi.statistics.elasticsearch.CategoriesCache;
 import no.difi.statistics.elasticsearch.Client;
 import no.difi.statistics.elasticsearch.CommandFactory;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
 import no.difi.statistics.elasticsearch.ElasticsearchQueryService;
+import no.difi.statistics.elasticsearch.MeasurementIdentifiersCache;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.RollupStore;
+import no.difi.statistics.elasticsearch.SearchHedging;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
 import no.difi.statistics.elasticsearch.commands.*;
+import no.difi.statistics.model.QueryFilter;
 import org.apache.http.Header;
 import org.apache.http.HttpHost;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicHeader;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.RestHighLevelClientBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.Scope;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Configuration
 @Profile({"!unittest"})
@@ -26,21 +50,266 @@ public class ElasticsearchConfig implements BackendConfig {
     private final String elasticSearchHost;
     private final int elasticSearchPort;
     private final String elasticSearchApiKey;
+    private final int maxConnectionsPerRoute;
+    private final int maxConnectionsTotal;
+    private final Duration keepAlive;
+    private final Duration connectTimeout;
+    private final Duration socketTimeout;
+    private final boolean compression;
+    private final int ioThreadCount;
+    private final boolean resultCacheEnabled;
+    private final Duration resultCacheIngestionHorizon;
+    private final DataSize resultCacheMaximumSize;
+    private final Duration resultCacheTimeToLive;
+    private final boolean diskStoreEnabled;
+    private final String diskStoreDirectory;
+    private final DataSize diskStoreMaximumSize;
+    private final Duration diskStoreTimeToLive;
+    private final boolean lastPointStoreEnabled;
+    private final Duration lastPointStoreRefreshInterval;
+    private final Duration lastPointStoreMaximumStaleness;
+    private final Duration lastPointStoreIdleTimeout;
+    private final int lastPointStoreMaximumSize;
+    private final int lastPointStoreRefreshConcurrency;
+    private final boolean categoriesCacheEnabled;
+    private final Duration categoriesCacheRefreshInterval;
+    private final boolean seriesCatalogEnabled;
+    private final Duration seriesCatalogRefreshInterval;
+    private final boolean indexPruningEnabled;
+    private final boolean hedgingEnabled;
+    private final double hedgingPercentile;
+    private final Duration hedgingMinimumDelay;
+    private final double hedgingBudget;
+    private final boolean rollupStoreEnabled;
+    private final Duration rollupStoreIngestionHorizon;
+    private final Duration rollupStoreRefreshInterval;
+    private final Duration rollupStoreIdleTimeout;
+    private final int rollupStoreMaximumSize;
+    private final MeterRegistry meterRegistry;
+    private final ElasticsearchGuard elasticsearchGuard;
 
     @Autowired
     public ElasticsearchConfig(
             @Value("${no.difi.statistics.elasticsearch.host}") String elasticSearchHost,
             @Value("${no.difi.statistics.elasticsearch.port}") int elasticSearchPort,
-            @Value("${no.difi.statistics.elasticsearch.apikey}") String elasticSearchApiKey) {
+            @Value("${no.difi.statistics.elasticsearch.apikey}") String elasticSearchApiKey,
+            @Value("${no.difi.statistics.elasticsearch.max-connections-per-route}") int maxConnectionsPerRoute,
+            @Value("${no.difi.statistics.elasticsearch.max-connections-total}") int maxConnectionsTotal,
+            @Value("${no.difi.statistics.elasticsearch.keep-alive}") Duration keepAlive,
+            @Value("${no.difi.statistics.elasticsearch.connect-timeout}") Duration connectTimeout,
+            @Value("${no.difi.statistics.elasticsearch.socket-timeout}") Duration socketTimeout,
+            @Value("${no.difi.statistics.elasticsearch.compression}") boolean compression,
+            @Value("${no.difi.statistics.elasticsearch.io-thread-count}") int ioThreadCount,
+            @Value("${no.difi.statistics.result-cache.enabled}") boolean resultCacheEnabled,
+            @Value("${no.difi.statistics.result-cache.ingestion-horizon}") Duration resultCacheIngestionHorizon,
+            @Value("${no.difi.statistics.result-cache.maximum-size}") DataSize resultCacheMaximumSize,
+            @Value("${no.difi.statistics.result-cache.time-to-live}") Duration resultCacheTimeToLive,
+            @Value("${no.difi.statistics.result-cache.disk.enabled}") boolean diskStoreEnabled,
+            @Value("${no.difi.statistics.result-cache.disk.directory}") String diskStoreDirectory,
+            @Value("${no.difi.statistics.result-cache.disk.maximum-size}") DataSize diskStoreMaximumSize,
+            @Value("${no.difi.statistics.result-cache.disk.time-to-live}") Duration diskStoreTimeToLive,
+            @Value("${no.difi.statistics.last-point-store.enabled}") boolean lastPointStoreEnabled,
+            @Value("${no.difi.statistics.last-point-store.refresh-interval}") Duration lastPointStoreRefreshInterval,
+            @Value("${no.difi.statistics.last-point-store.maximum-staleness}") Duration lastPointStoreMaximumStaleness,
+            @Value("${no.difi.statistics.last-point-store.idle-timeout}") Duration lastPointStoreIdleTimeout,
+            @Value("${no.difi.statistics.last-point-store.maximum-size}") int lastPointStoreMaximumSize,
+            @Value("${no.difi.statistics.last-point-store.refresh-concurrency}") int lastPointStoreRefreshConcurrency,
+            @Value("${no.difi.statistics.categories-cache.enabled}") boolean categoriesCacheEnabled,
+            @Value("${no.difi.statistics.categories-cache.refresh-interval}") Duration categoriesCacheRefreshInterval,
+            @Value("${no.difi.statistics.series-catalog.enabled}") boolean seriesCatalogEnabled,
+            @Value("${no.difi.statistics.series-catalog.refresh-interval}") Duration seriesCatalogRefreshInterval,
+            @Value("${no.difi.statistics.index-pruning.enabled}") boolean indexPruningEnabled,
+            @Value("${no.difi.statistics.elasticsearch.hedging.enabled}") boolean hedgingEnabled,
+            @Value("${no.difi.statistics.elasticsearch.hedging.percentile}") double hedgingPercentile,
+            @Value("${no.difi.statistics.elasticsearch.hedging.minimum-delay}") Duration hedgingMinimumDelay,
+            @Value("${no.difi.statistics.elasticsearch.hedging.budget}") double hedgingBudget,
+            @Value("${no.difi.statistics.rollup-store.enabled}") boolean rollupStoreEnabled,
+            @Value("${no.difi.statistics.rollup-store.ingestion-horizon}") Duration rollupStoreIngestionHorizon,
+            @Value("${no.difi.statistics.rollup-store.refresh-interval}") Duration rollupStoreRefreshInterval,
+            @Value("${no.difi.statistics.rollup-store.idle-timeout}") Duration rollupStoreIdleTimeout,
+            @Value("${no.difi.statistics.rollup-store.maximum-size}") int rollupStoreMaximumSize,
+            MeterRegistry meterRegistry,
+            ElasticsearchGuard elasticsearchGuard) {
         this.elasticSearchHost = elasticSearchHost;
         this.elasticSearchPort = elasticSearchPort;
         this.elasticSearchApiKey = elasticSearchApiKey;
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.maxConnectionsTotal = maxConnectionsTotal;
+        this.keepAlive = keepAlive;
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+        this.compression = compression;
+        this.ioThreadCount = ioThreadCount;
+        this.resultCacheEnabled = resultCacheEnabled;
+        this.resultCacheIngestionHorizon = resultCacheIngestionHorizon;
+        this.resultCacheMaximumSize = resultCacheMaximumSize;
+        this.resultCacheTimeToLive = resultCacheTimeToLive;
+        this.diskStoreEnabled = diskStoreEnabled;
+        this.diskStoreDirectory = diskStoreDirectory;
+        this.diskStoreMaximumSize = diskStoreMaximumSize;
+        this.diskStoreTimeToLive = diskStoreTimeToLive;
+        this.lastPointStoreEnabled = lastPointStoreEnabled;
+        this.lastPointStoreRefreshInterval = lastPointStoreRefreshInterval;
+        this.lastPointStoreMaximumStaleness = lastPointStoreMaximumStaleness;
+        this.lastPointStoreIdleTimeout = lastPointStoreIdleTimeout;
+        this.lastPointStoreMaximumSize = lastPointStoreMaximumSize;
+        this.lastPointStoreRefreshConcurrency = lastPointStoreRefreshConcurrency;
+        this.categoriesCacheEnabled = categoriesCacheEnabled;
+        this.categoriesCacheRefreshInterval = categoriesCacheRefreshInterval;
+        this.seriesCatalogEnabled = seriesCatalogEnabled;
+        this.seriesCatalogRefreshInterval = seriesCatalogRefreshInterval;
+        this.indexPruningEnabled = indexPruningEnabled;
+        this.hedgingEnabled = hedgingEnabled;
+        this.hedgingPercentile = hedgingPercentile;
+        this.hedgingMinimumDelay = hedgingMinimumDelay;
+        this.hedgingBudget = hedgingBudget;
+        this.rollupStoreEnabled = rollupStoreEnabled;
+        this.rollupStoreIngestionHorizon = rollupStoreIngestionHorizon;
+        this.rollupStoreRefreshInterval = rollupStoreRefreshInterval;
+        this.rollupStoreIdleTimeout = rollupStoreIdleTimeout;
+        this.rollupStoreMaximumSize = rollupStoreMaximumSize;
+        this.meterRegistry = meterRegistry;
+        this.elasticsearchGuard = elasticsearchGuard;
     }
 
     @Override
     @Bean
     public QueryService queryService() {
-        return new ElasticsearchQueryService(commandFactory());
+        CategoriesCache categoriesCache = categoriesCacheEnabled
+                ? new CategoriesCache(() -> commandFactory().categories().build().execute(), categoriesCacheRefreshInterval, queryTaskScheduler())
+                : null;
+        SeriesCatalog seriesCatalog = seriesCatalogEnabled ? seriesCatalog() : null;
+        QueryService queryService = new CoalescingQueryService(new ElasticsearchQueryService(commandFactory(), categoriesCache, seriesCatalog), meterRegistry);
+        if (resultCacheEnabled)
+            queryService = new CachingQueryService(
+                    queryService,
+                    resultCacheIngestionHorizon,
+                    resultCacheMaximumSize.toBytes(),
+                    resultCacheTimeToLive,
+                    diskStoreEnabled ? diskResultStore() : null,
+                    Clock.systemUTC(),
+                    meterRegistry
+            );
+        if (lastPointStoreEnabled)
+            queryService = new LastPointQueryService(
+                    queryService,
+                    lastPointStoreRefreshInterval,
+                    lastPointStoreMaximumStaleness,
+                    lastPointStoreIdleTimeout,
+                    lastPointStoreMaximumSize,
+                    lastPointStoreRefreshConcurrency,
+                    Clock.systemUTC(),
+                    queryTaskScheduler(),
+                    meterRegistry
+            );
+        return queryService;
+    }
+
+    /**
+     * Created only if used, i.e. if the series catalog or index pruning is enabled.
+     */
+    @Bean
+    @Lazy
+    public SeriesCatalog seriesCatalog() {
+        return new SeriesCatalog(
+                () -> commandFactory().availableTimeSeries().build().indexNames(),
+                seriesCatalogRefreshInterval,
+                Clock.systemUTC(),
+                queryTaskScheduler()
+        );
+    }
+
+    /**
+     * Created only if used, i.e. if the rollup store is enabled. The periods are summed with the same command as the
+     * day and month series derived from minute series, without a deadline as they are rolled up in the background.
+     */
+    @Bean
+    @Lazy
+    public RollupStore rollupStore() {
+        return new RollupStore(
+                (minuteSeries, targetDistance, from, to) -> commandFactory().sumHistogram()
+                        .seriesDefinition(minuteSeries).targetDistance(targetDistance)
+                        .queryFilter(QueryFilter.queryFilter().range(from, to).build())
+                        .measurementIdentifiersCommand(commandFactory().measurementIdentifiers()).build().execute(),
+                rollupStoreIngestionHorizon,
+                rollupStoreRefreshInterval,
+                rollupStoreIdleTimeout,
+                rollupStoreMaximumSize,
+                Clock.systemUTC(),
+                queryTaskScheduler(),
+                meterRegistry
+        );
+    }
+
+    /**
+     * Created only if used, i.e. if the result cache and its disk tier are enabled.
+     */
+    @Bean
+    @Lazy
+    public DiskResultStore diskResultStore() {
+        return new DiskResultStore(
+                Path.of(diskStoreDirectory),
+                diskStoreMaximumSize.toBytes(),
+                diskStoreTimeToLive,
+                Clock.systemUTC(),
+                resultWriter(),
+                meterRegistry
+        );
+    }
+
+    /**
+     * Writes results to the disk tier of the result cache. Results arriving faster than they can be written are not
+     * stored, rather than held in memory.
+     */
+    @Bean
+    @Lazy
+    public ThreadPoolTaskExecutor resultWriter() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("result-writer-");
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setQueueCapacity(1000);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+        return executor;
+    }
+
+    /**
+     * Converts responses of asynchronous searches to points, off the I/O reactor of the Elasticsearch client. When all
+     * threads are busy and the queue is full, the response is converted on the thread completing the search.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor responseConverter() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("response-converter-");
+        executor.setCorePoolSize(Runtime.getRuntime().availableProcessors());
+        executor.setMaxPoolSize(Runtime.getRuntime().availableProcessors());
+        executor.setQueueCapacity(1000);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    /**
+     * Runs the background refreshes of the query service: of last points, categories, the series catalog and rollups.
+     * There is a thread for each, as they block while waiting for their searches.
+     */
+    @Bean
+    public ThreadPoolTaskScheduler queryTaskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setThreadNamePrefix("query-scheduler-");
+        scheduler.setPoolSize(4);
+        return scheduler;
+    }
+
+    /**
+     * Sends the hedges of slow searches. Kept apart from the refreshes, so that a hedge is never held up by them. A
+     * single thread is enough, as sending a hedge does not wait for its response.
+     */
+    @Bean
+    public ThreadPoolTaskScheduler hedgingTaskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setThreadNamePrefix("hedging-scheduler-");
+        scheduler.setPoolSize(1);
+        return scheduler;
     }
 
     @Bean
@@ -51,55 +320,96 @@ public class ElasticsearchConfig implements BackendConfig {
     @Bean
     @Scope("prototype")
     public TimeSeriesQuery.Builder queryCommandBuilder() {
-        return TimeSeriesQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).sumHistogramCommand(sumHistogramCommandBuilder());
+        return TimeSeriesQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).sumHistogramCommand(sumHistogramCommandBuilder())
+                .seriesCatalog(seriesCatalogEnabled ? seriesCatalog() : null).rollups(rollupStoreEnabled ? rollupStore() : null)
+                .metrics(queryMetrics())
+                .indexCatalog(indexCatalog()).guard(elasticsearchGuard).hedging(searchHedging()).converter(responseConverter());
     }
 
     @Bean
     @Scope("prototype")
     public AvailableSeriesQuery.Builder listAvailableTimeSeriesCommandBuilder() {
-        return AvailableSeriesQuery.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+        return AvailableSeriesQuery.builder().elasticsearchClient(elasticsearchLowLevelClient()).metrics(queryMetrics())
+                .guard(elasticsearchGuard);
     }
 
     @Bean
     @Scope("prototype")
     public CategoriesQuery.Builder listCategoriesCommandBuilder() {
-        return CategoriesQuery.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+        return CategoriesQuery.builder().elasticsearchClient(elasticsearchLowLevelClient()).metrics(queryMetrics())
+                .guard(elasticsearchGuard);
     }
 
     @Bean
     @Scope("prototype")
     public LastHistogramQuery.Builder lastHistogramCommandBuilder() {
-        return LastHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return LastHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).metrics(queryMetrics())
+                .indexCatalog(indexCatalog()).guard(elasticsearchGuard).hedging(searchHedging()).converter(responseConverter());
     }
 
     @Bean
     @Scope("prototype")
     public LastQuery.Builder lastCommandBuilder() {
-        return LastQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return LastQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).metrics(queryMetrics())
+                .indexCatalog(indexCatalog()).guard(elasticsearchGuard).hedging(searchHedging()).converter(responseConverter());
     }
 
     @Bean
     @Scope("prototype")
     public SumHistogramQuery.Builder sumHistogramCommandBuilder() {
-        return SumHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return SumHistogramQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).metrics(queryMetrics())
+                .indexCatalog(indexCatalog()).guard(elasticsearchGuard).hedging(searchHedging()).converter(responseConverter());
     }
 
     @Bean
     @Scope("prototype")
     public SumQuery.Builder sumCommandBuilder() {
-        return SumQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+        return SumQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).metrics(queryMetrics())
+                .indexCatalog(indexCatalog()).guard(elasticsearchGuard).hedging(searchHedging()).converter(responseConverter());
     }
 
     @Bean
     @Scope("prototype")
-    public PercentileQuery.Builder percentileCommandBuilder() {
-        return PercentileQuery.builder().elasticsearchClient(elasticsearchHighLevelClient());
+    public PercentileQuery.Builder percentileCommandBuilder(
+            @Value("${no.difi.statistics.elasticsearch.percentile.page-size}") int pageSize,
+            @Value("${no.difi.statistics.elasticsearch.percentile.point-in-time-keep-alive}") Duration pointInTimeKeepAlive) {
+        return PercentileQuery.builder().elasticsearchClient(elasticsearchHighLevelClient())
+                .pageSize(pageSize).pointInTimeKeepAlive(pointInTimeKeepAlive).metrics(queryMetrics())
+                .indexCatalog(indexCatalog()).guard(elasticsearchGuard).hedging(searchHedging()).converter(responseConverter());
     }
 
     @Bean
     @Scope("prototype")
-    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommandBuilder() {
-        return GetMeasurementIdentifiers.builder().elasticsearchClient(elasticsearchLowLevelClient().build());
+    public MultiSearchQuery.Builder multiSearchCommandBuilder(
+            @Value("${no.difi.statistics.elasticsearch.batch-lookup-concurrency}") int lookupConcurrency) {
+        return MultiSearchQuery.builder().elasticsearchClient(elasticsearchHighLevelClient()).guard(elasticsearchGuard)
+                .metrics(queryMetrics()).lookupConcurrency(lookupConcurrency);
+    }
+
+    @Bean
+    @Scope("prototype")
+    public GetMeasurementIdentifiers.Builder measurementIdentifiersCommandBuilder(MeasurementIdentifiersCache cache) {
+        return GetMeasurementIdentifiers.builder().elasticsearchClient(elasticsearchLowLevelClient()).cache(cache)
+                .metrics(queryMetrics()).guard(elasticsearchGuard);
+    }
+
+    @Bean
+    public MeasurementIdentifiersCache measurementIdentifiersCache(
+            @Value("${no.difi.statistics.elasticsearch.measurement-identifiers-cache.time-to-live}") Duration timeToLive,
+            @Value("${no.difi.statistics.elasticsearch.measurement-identifiers-cache.maximum-size}") long maximumSize) {
+        return new MeasurementIdentifiersCache(timeToLive, maximumSize, meterRegistry);
+    }
+
+    @Bean
+    public SearchHedging searchHedging() {
+        if (!hedgingEnabled)
+            return SearchHedging.disabled();
+        return new SearchHedging(hedgingPercentile, hedgingMinimumDelay, hedgingBudget, hedgingTaskScheduler(), queryMetrics());
+    }
+
+    @Bean
+    public QueryMetrics queryMetrics() {
+        return new QueryMetrics(meterRegistry);
     }
 
     @Bean
@@ -110,16 +420,44 @@ public class ElasticsearchConfig implements BackendConfig {
         );
     }
 
-    @Bean(destroyMethod = "close")
+    /**
+     * Shares the connection pool and I/O reactor of the low-level client. The low-level client bean owns the
+     * underlying connections and closes them, hence no destroy method here.
+     */
+    @Bean(destroyMethod = "")
     public RestHighLevelClient elasticsearchHighLevelClient() {
-        return new RestHighLevelClient(elasticsearchLowLevelClient());
+        return new RestHighLevelClientBuilder(elasticsearchLowLevelClient()).build();
     }
 
-    private RestClientBuilder elasticsearchLowLevelClient() {
+    @Bean(destroyMethod = "close")
+    public RestClient elasticsearchLowLevelClient() {
         RestClientBuilder builder = RestClient.builder(new HttpHost(elasticSearchHost, elasticSearchPort, getScheme()));
         Header[] headers = new Header[]{new BasicHeader("Authorization","ApiKey " + elasticSearchApiKey)};
         builder.setDefaultHeaders(headers);
-        return  builder;
+        builder.setCompressionEnabled(compression);
+        builder.setRequestConfigCallback(requestConfig -> requestConfig
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setSocketTimeout((int) socketTimeout.toMillis()));
+        builder.setHttpClientConfigCallback(httpClient -> httpClient
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .setMaxConnTotal(maxConnectionsTotal)
+                .setKeepAliveStrategy((response, context) -> keepAlive.toMillis())
+                .setDefaultIOReactorConfig(ioReactorConfig()));
+        return builder.build();
+    }
+
+    /**
+     * @return the catalog to prune searched indices against, or <code>null</code> if pruning is disabled
+     */
+    private SeriesCatalog indexCatalog() {
+        return indexPruningEnabled ? seriesCatalog() : null;
+    }
+
+    private IOReactorConfig ioReactorConfig() {
+        IOReactorConfig.Builder builder = IOReactorConfig.custom().setSoKeepAlive(true);
+        if (ioThreadCount > 0)
+            builder.setIoThreadCount(ioThreadCount);
+        return builder.build();
     }
 
     private String getScheme() {
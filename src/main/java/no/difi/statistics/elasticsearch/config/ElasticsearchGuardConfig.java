@@ -0,0 +1,140 @@
+package no.difi.statistics.elasticsearch.config;
+
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.client.ResponseException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+
+import static no.difi.statistics.elasticsearch.ElasticsearchGuard.Pool.cheap;
+import static no.difi.statistics.elasticsearch.ElasticsearchGuard.Pool.expensive;
+
+/**
+ * Circuit breaker and bulkheads around the calls to Elasticsearch, see {@link ElasticsearchGuard}. Their state is
+ * exposed as metrics and as the health component <code>elasticsearchCircuitBreaker</code>.
+ */
+@Configuration
+@Profile({"!unittest"})
+public class ElasticsearchGuardConfig {
+
+    private final CircuitBreakerRegistry circuitBreakerRegistry;
+    private final BulkheadRegistry bulkheadRegistry;
+    private final boolean enabled;
+    private final Duration maxWaitDuration;
+
+    public ElasticsearchGuardConfig(
+            @Value("${no.difi.statistics.elasticsearch.guard.enabled}") boolean enabled,
+            @Value("${no.difi.statistics.elasticsearch.guard.failure-rate-threshold}") float failureRateThreshold,
+            @Value("${no.difi.statistics.elasticsearch.guard.slow-call-rate-threshold}") float slowCallRateThreshold,
+            @Value("${no.difi.statistics.elasticsearch.guard.slow-call-duration-threshold}") Duration slowCallDurationThreshold,
+            @Value("${no.difi.statistics.elasticsearch.guard.sliding-window-size}") int slidingWindowSize,
+            @Value("${no.difi.statistics.elasticsearch.guard.minimum-number-of-calls}") int minimumNumberOfCalls,
+            @Value("${no.difi.statistics.elasticsearch.guard.wait-duration-in-open-state}") Duration waitDurationInOpenState,
+            @Value("${no.difi.statistics.elasticsearch.guard.cheap-concurrent-calls}") int cheapConcurrentCalls,
+            @Value("${no.difi.statistics.elasticsearch.guard.expensive-concurrent-calls}") int expensiveConcurrentCalls,
+            @Value("${no.difi.statistics.elasticsearch.guard.max-wait-duration}") Duration maxWaitDuration) {
+        this.enabled = enabled;
+        this.circuitBreakerRegistry = CircuitBreakerRegistry.of(CircuitBreakerConfig.custom()
+                .failureRateThreshold(failureRateThreshold)
+                .slowCallRateThreshold(slowCallRateThreshold)
+                .slowCallDurationThreshold(slowCallDurationThreshold)
+                .slidingWindowSize(slidingWindowSize)
+                .minimumNumberOfCalls(minimumNumberOfCalls)
+                .waitDurationInOpenState(waitDurationInOpenState)
+                .automaticTransitionFromOpenToHalfOpenEnabled(true)
+                .recordException(ElasticsearchGuardConfig::isFailure)
+                .build());
+        this.bulkheadRegistry = BulkheadRegistry.ofDefaults();
+        // Shared by blocking and asynchronous calls. The latter must not block waiting for a free slot, so the guard
+        // does the waiting of blocking calls
+        bulkheadRegistry.bulkhead(cheap.name(), bulkheadConfig(cheapConcurrentCalls));
+        bulkheadRegistry.bulkhead(expensive.name(), bulkheadConfig(expensiveConcurrentCalls));
+        this.maxWaitDuration = maxWaitDuration;
+    }
+
+    @Bean
+    public ElasticsearchGuard elasticsearchGuard() {
+        if (!enabled)
+            return ElasticsearchGuard.disabled();
+        return new ElasticsearchGuard(
+                circuitBreakerRegistry.circuitBreaker("elasticsearch"),
+                bulkheadRegistry.bulkhead(cheap.name()),
+                bulkheadRegistry.bulkhead(expensive.name()),
+                maxWaitDuration
+        );
+    }
+
+    @Bean
+    public MeterBinder elasticsearchCircuitBreakerMetrics() {
+        return TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(circuitBreakerRegistry);
+    }
+
+    @Bean
+    public MeterBinder elasticsearchBulkheadMetrics() {
+        return TaggedBulkheadMetrics.ofBulkheadRegistry(bulkheadRegistry);
+    }
+
+    /**
+     * Down while the breaker is open, unknown while it lets trial calls through.
+     */
+    @Bean
+    public HealthIndicator elasticsearchCircuitBreakerHealthIndicator() {
+        return () -> {
+            CircuitBreaker circuitBreaker = elasticsearchGuard().circuitBreaker();
+            if (circuitBreaker == null)
+                return Health.unknown().withDetail("state", "DISABLED").build();
+            CircuitBreaker.Metrics metrics = circuitBreaker.getMetrics();
+            Health.Builder health;
+            switch (circuitBreaker.getState()) {
+                case CLOSED: health = Health.up(); break;
+                case OPEN:
+                case FORCED_OPEN: health = Health.down(); break;
+                default: health = Health.unknown();
+            }
+            return health
+                    .withDetail("state", circuitBreaker.getState())
+                    .withDetail("failureRate", metrics.getFailureRate())
+                    .withDetail("slowCallRate", metrics.getSlowCallRate())
+                    .withDetail("notPermittedCalls", metrics.getNumberOfNotPermittedCalls())
+                    .withDetail("cheapAvailableCalls", elasticsearchGuard().bulkhead(cheap).getMetrics().getAvailableConcurrentCalls())
+                    .withDetail("expensiveAvailableCalls", elasticsearchGuard().bulkhead(expensive).getMetrics().getAvailableConcurrentCalls())
+                    .build();
+        };
+    }
+
+    private static BulkheadConfig bulkheadConfig(int maxConcurrentCalls) {
+        return BulkheadConfig.custom().maxConcurrentCalls(maxConcurrentCalls).maxWaitDuration(Duration.ZERO).build();
+    }
+
+    /**
+     * Client errors, such as a malformed query, say nothing about the health of the cluster. Neither do searches
+     * cancelled because their result was no longer needed.
+     */
+    static boolean isFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CancellationException)
+                return false;
+            if (cause instanceof ElasticsearchStatusException)
+                return ((ElasticsearchStatusException) cause).status().getStatus() >= 500;
+            if (cause instanceof ResponseException)
+                return ((ResponseException) cause).getResponse().getStatusLine().getStatusCode() >= 500;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,110 @@
+package no.difi.statistics.model;
+
+import java.time.ZonedDateTime;
+
+/**
+ * One query in a batch. The id is chosen by the client and keys the result of the query in the batch response.
+ * Categories are given as for the single query endpoints, e.g. <code>key1=value1,key2=value2</code>.
+ */
+public class BatchQueryItem {
+
+    private String id;
+    private String owner;
+    private String seriesName;
+    private MeasurementDistance distance;
+    private QueryOperation operation = QueryOperation.query;
+    private MeasurementDistance targetDistance;
+    private ZonedDateTime from;
+    private ZonedDateTime to;
+    private String categories;
+    private String perCategory;
+
+    public TimeSeriesDefinition seriesDefinition() {
+        return TimeSeriesDefinition.builder().name(seriesName).distance(distance).owner(owner);
+    }
+
+    public QueryFilter queryFilter() {
+        return QueryFilter.queryFilter().range(from, to).categories(categories).perCategory(perCategory).build();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public String getSeriesName() {
+        return seriesName;
+    }
+
+    public void setSeriesName(String seriesName) {
+        this.seriesName = seriesName;
+    }
+
+    public MeasurementDistance getDistance() {
+        return distance;
+    }
+
+    public void setDistance(MeasurementDistance distance) {
+        this.distance = distance;
+    }
+
+    public QueryOperation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(QueryOperation operation) {
+        this.operation = operation;
+    }
+
+    public MeasurementDistance getTargetDistance() {
+        return targetDistance;
+    }
+
+    public void setTargetDistance(MeasurementDistance targetDistance) {
+        this.targetDistance = targetDistance;
+    }
+
+    public ZonedDateTime getFrom() {
+        return from;
+    }
+
+    public void setFrom(ZonedDateTime from) {
+        this.from = from;
+    }
+
+    public ZonedDateTime getTo() {
+        return to;
+    }
+
+    public void setTo(ZonedDateTime to) {
+        this.to = to;
+    }
+
+    public String getCategories() {
+        return categories;
+    }
+
+    public void setCategories(String categories) {
+        this.categories = categories;
+    }
+
+    public String getPerCategory() {
+        return perCategory;
+    }
+
+    public void setPerCategory(String perCategory) {
+        this.perCategory = perCategory;
+    }
+
+}
@@ -0,0 +1,52 @@
+package no.difi.statistics.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * Result of one query in a batch: points for histogram queries, a single point for <code>last</code> and
+ * <code>sum</code>, or an error message if that query failed. A failing query does not fail the rest of the batch.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BatchQueryResult {
+
+    private List<TimeSeriesPoint> points;
+    private TimeSeriesPoint point;
+    private String error;
+
+    private BatchQueryResult() {
+        // Use factory methods
+    }
+
+    public static BatchQueryResult points(List<TimeSeriesPoint> points) {
+        BatchQueryResult result = new BatchQueryResult();
+        result.points = points;
+        return result;
+    }
+
+    public static BatchQueryResult point(TimeSeriesPoint point) {
+        BatchQueryResult result = new BatchQueryResult();
+        result.point = point;
+        return result;
+    }
+
+    public static BatchQueryResult error(String error) {
+        BatchQueryResult result = new BatchQueryResult();
+        result.error = error;
+        return result;
+    }
+
+    public List<TimeSeriesPoint> getPoints() {
+        return points;
+    }
+
+    public TimeSeriesPoint getPoint() {
+        return point;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+}
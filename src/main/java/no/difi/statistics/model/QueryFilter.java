@@ -84,12 +84,13 @@ public class QueryFilter {
         if (o == null || getClass() != o.getClass()) return false;
         QueryFilter that = (QueryFilter) o;
         return Objects.equals(categories, that.categories) &&
-                Objects.equals(timeRange, that.timeRange);
+                Objects.equals(timeRange, that.timeRange) &&
+                Objects.equals(perCategory, that.perCategory);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(categories, timeRange);
+        return Objects.hash(categories, timeRange, perCategory);
     }
 
     @Override
@@ -97,6 +98,7 @@ public class QueryFilter {
         return "QueryFilter{" +
                 "categories=" + categories +
                 ", timeRange=" + timeRange +
+                ", perCategory=" + perCategory +
                 '}';
     }
 
@@ -0,0 +1,12 @@
+package no.difi.statistics.model;
+
+public enum QueryOperation {
+
+    query,
+    percentile,
+    last,
+    lastHistogram,
+    sum,
+    sumHistogram
+
+}
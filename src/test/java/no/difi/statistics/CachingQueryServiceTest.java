@@ -0,0 +1,152 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.model.BatchQueryItem;
+import no.difi.statistics.model.BatchQueryResult;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.QueryFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static no.difi.statistics.model.QueryOperation.query;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class CachingQueryServiceTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2020, 6, 15, 12, 0, 0, 0, ZoneOffset.UTC);
+    private final QueryService delegate = mock(QueryService.class);
+    private final CachingQueryService service = new CachingQueryService(
+            delegate,
+            Duration.ofDays(2),
+            1_000_000,
+            Duration.ofHours(1),
+            null,
+            Clock.fixed(Instant.from(now), ZoneOffset.UTC),
+            new SimpleMeterRegistry()
+    );
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void givenResultOnDiskWhenReadBackThenItIsKeptInHeapNoLongerThanOnDisk() {
+        QueryFilter lastYear = queryFilter().range(now.minusYears(1), now.minusDays(3)).build();
+        QueryKey key = new QueryKey(query, aSeries(), lastYear, null, null);
+        Clock clock = Clock.fixed(Instant.from(now), ZoneOffset.UTC);
+        new DiskResultStore(
+                directory, 1_000_000, Duration.ofDays(7), Clock.offset(clock, Duration.ofMinutes(30).minusDays(7)), Runnable::run, new SimpleMeterRegistry()
+        ).put(key, singletonList(aPoint()));
+        CachingQueryService service = new CachingQueryService(
+                delegate,
+                Duration.ofDays(2),
+                1_000_000,
+                Duration.ofHours(1),
+                new DiskResultStore(directory, 1_000_000, Duration.ofDays(7), clock, Runnable::run, new SimpleMeterRegistry()),
+                clock,
+                new SimpleMeterRegistry()
+        );
+        assertEquals(1, service.query(aSeries(), lastYear).size());
+        verifyNoInteractions(delegate);
+        assertTrue(service.expiresAfter(key).compareTo(Duration.ofMinutes(30)) <= 0);
+    }
+
+    @Test
+    public void givenRangeEndingBeforeIngestionHorizonWhenQueryingTwiceThenResultIsCached() {
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(singletonList(aPoint()));
+        QueryFilter lastYear = queryFilter().range(now.minusYears(1), now.minusDays(3)).build();
+        List<TimeSeriesPoint> first = service.query(aSeries(), lastYear);
+        List<TimeSeriesPoint> second = service.query(aSeries(), lastYear);
+        assertEquals(first, second);
+        verify(delegate, times(1)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenSameRangeWithDifferentOffsetsWhenQueryingThenResultIsShared() {
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(singletonList(aPoint()));
+        ZonedDateTime from = now.minusYears(1);
+        ZonedDateTime to = now.minusDays(3);
+        service.query(aSeries(), queryFilter().range(from, to).build());
+        service.query(aSeries(), queryFilter().range(
+                from.withZoneSameInstant(ZoneOffset.ofHours(2)),
+                to.withZoneSameInstant(ZoneOffset.ofHours(2))
+        ).build());
+        verify(delegate, times(1)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenRecentOrOpenRangeWhenQueryingThenCacheIsBypassed() {
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(singletonList(aPoint()));
+        QueryFilter recent = queryFilter().range(now.minusYears(1), now.minusDays(1)).build();
+        QueryFilter open = queryFilter().range(now.minusYears(1), null).build();
+        service.query(aSeries(), recent);
+        service.query(aSeries(), recent);
+        service.query(aSeries(), open);
+        service.query(aSeries(), open);
+        verify(delegate, times(4)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenEmptyResultWhenQueryingTwiceThenItIsNotCached() {
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(emptyList());
+        QueryFilter lastYear = queryFilter().range(now.minusYears(1), now.minusDays(3)).build();
+        service.query(aSeries(), lastYear);
+        service.query(aSeries(), lastYear);
+        verify(delegate, times(2)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenMalformedQueryInBatchWhenQueryingThenItIsLeftToTheDelegateAndTheRestIsCached() {
+        BatchQueryItem malformed = aBatchQuery("a");
+        malformed.setCategories("foo");
+        BatchQueryItem wellFormed = aBatchQuery("b");
+        when(delegate.batch(any())).thenReturn(Map.of(
+                "a", BatchQueryResult.error("Malformed categories"),
+                "b", BatchQueryResult.points(singletonList(aPoint()))
+        ));
+        Map<String, BatchQueryResult> results = service.batch(List.of(malformed, wellFormed));
+        assertEquals("Malformed categories", results.get("a").getError());
+        assertEquals(1, results.get("b").getPoints().size());
+        verify(delegate).batch(List.of(malformed, wellFormed));
+        when(delegate.batch(any())).thenReturn(Map.of("a", BatchQueryResult.error("Malformed categories")));
+        results = service.batch(List.of(malformed, wellFormed));
+        assertEquals(1, results.get("b").getPoints().size());
+        verify(delegate).batch(List.of(malformed));
+    }
+
+    private BatchQueryItem aBatchQuery(String id) {
+        BatchQueryItem query = new BatchQueryItem();
+        query.setId(id);
+        query.setOwner("anOwner");
+        query.setSeriesName("aSeries");
+        query.setDistance(MeasurementDistance.minutes);
+        query.setFrom(now.minusYears(1));
+        query.setTo(now.minusDays(3));
+        return query;
+    }
+
+    private TimeSeriesDefinition aSeries() {
+        return TimeSeriesDefinition.builder().name("aSeries").minutes().owner("anOwner");
+    }
+
+    private TimeSeriesPoint aPoint() {
+        return TimeSeriesPoint.builder().timestamp(now.minusYears(1)).measurement("m1", 1L).build();
+    }
+
+}
@@ -2,11 +2,14 @@ package no.difi.statistics;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import no.difi.statistics.elasticsearch.commands.CategoriesQuery;
 import no.difi.statistics.model.OwnerCategories;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -115,4 +118,55 @@ public class CategoriesQueryTest {
                 "Kategori 1/3");
         assertEquals(testSet, idportenCategories.getCategories());
     }
+
+    @Test
+    public void testStreamingParserGivesSameResultAsTreeTraversal() throws IOException {
+        Path path = Paths.get("src/test/java/no/difi/statistics/CategoriesMappingInput.json");
+        CategoriesQuery categoriesQuery = new CategoriesQuery();
+
+        Map<String, OwnerCategories> traversed = categoriesQuery.traverseJsonNode(mapper.readTree(path.toFile()));
+        Map<String, OwnerCategories> parsed;
+        try (InputStream mappings = Files.newInputStream(path)) {
+            parsed = categoriesQuery.parseMappings(mappings);
+        }
+
+        assertEquals(traversed, parsed);
+        traversed.forEach((key, ownerCategories) -> assertEquals(ownerCategories.getCategories(), parsed.get(key).getCategories()));
+    }
+
+    @Test
+    public void testMappingsFilteredByElasticsearchGiveSameResult() throws IOException {
+        Path path = Paths.get("src/test/java/no/difi/statistics/CategoriesMappingInput.json");
+        CategoriesQuery categoriesQuery = new CategoriesQuery();
+        JsonNode mappings = mapper.readTree(path.toFile());
+
+        Map<String, OwnerCategories> traversed = categoriesQuery.traverseJsonNode(mappings);
+        Map<String, OwnerCategories> parsed;
+        try (InputStream filtered = new ByteArrayInputStream(mapper.writeValueAsBytes(filtered(mappings)))) {
+            parsed = categoriesQuery.parseMappings(filtered);
+        }
+
+        assertEquals(traversed, parsed);
+        traversed.forEach((key, ownerCategories) -> assertEquals(ownerCategories.getCategories(), parsed.get(key).getCategories()));
+    }
+
+    /**
+     * The mappings as filtered by the <code>filter_path</code> of the query: only the types of the category names and
+     * of the timestamp.
+     */
+    private static ObjectNode filtered(JsonNode mappings) {
+        ObjectNode filtered = mapper.createObjectNode();
+        mappings.fields().forEachRemaining(index -> {
+            JsonNode properties = index.getValue().path("mappings").path("properties");
+            ObjectNode filteredProperties = filtered.putObject(index.getKey()).putObject("mappings").putObject("properties");
+            filteredProperties.putObject("timestamp").put("type", properties.path("timestamp").path("type").asText());
+            JsonNode categories = properties.path("category").path("properties");
+            if (categories.isMissingNode())
+                return;
+            ObjectNode filteredCategories = filteredProperties.putObject("category").putObject("properties");
+            categories.fields().forEachRemaining(category ->
+                    filteredCategories.putObject(category.getKey()).put("type", category.getValue().path("type").asText()));
+        });
+        return filtered;
+    }
 }
@@ -0,0 +1,209 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.model.QueryFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static java.util.Collections.singletonList;
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class CoalescingQueryServiceTest {
+
+    private final QueryService delegate = mock(QueryService.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CoalescingQueryService service = new CoalescingQueryService(delegate, meterRegistry);
+
+    @Test
+    public void givenIdenticalQueryInFlightWhenQueryingThenItsResultIsShared() throws Exception {
+        List<TimeSeriesPoint> points = singletonList(aPoint());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(invocation -> {
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            return points;
+        });
+        CompletableFuture<List<TimeSeriesPoint>> first = CompletableFuture.supplyAsync(() -> service.query(aSeries(), queryFilter().build()));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<List<TimeSeriesPoint>> second = CompletableFuture.supplyAsync(() -> service.query(aSeries(), queryFilter().build()));
+        awaitWaiters(1);
+        release.countDown();
+        assertEquals(points, first.get(5, TimeUnit.SECONDS));
+        assertSame(first.get(), second.get(5, TimeUnit.SECONDS));
+        assertThrows(UnsupportedOperationException.class, () -> first.get().add(aPoint()));
+        verify(delegate, times(1)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+        assertEquals(1.0, meterRegistry.get("query.coalesced").tag("operation", "query").counter().count());
+    }
+
+    @Test
+    public void givenWaiterWithShortDeadlineWhenLeaderIsSlowThenOnlyWaiterFails() throws Exception {
+        List<TimeSeriesPoint> points = singletonList(aPoint());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(invocation -> {
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            return points;
+        });
+        CompletableFuture<List<TimeSeriesPoint>> leader = CompletableFuture.supplyAsync(() -> service.query(aSeries(), queryFilter().build()));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Deadline.bind(Deadline.after(Duration.ofMillis(50)));
+        try {
+            assertThrows(Deadline.DeadlineExceededException.class, () -> service.query(aSeries(), queryFilter().build()));
+        } finally {
+            Deadline.unbind();
+        }
+        release.countDown();
+        assertEquals(points, leader.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void givenAsyncWaiterWithShortDeadlineWhenLeaderIsSlowThenOnlyWaiterFails() throws Exception {
+        CompletableFuture<List<TimeSeriesPoint>> execution = new CompletableFuture<>();
+        when(delegate.queryAsync(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(execution);
+        CompletableFuture<List<TimeSeriesPoint>> leader = service.queryAsync(aSeries(), queryFilter().build());
+        CompletableFuture<List<TimeSeriesPoint>> waiter;
+        Deadline.bind(Deadline.after(Duration.ofMillis(50)));
+        try {
+            waiter = service.queryAsync(aSeries(), queryFilter().build());
+        } finally {
+            Deadline.unbind();
+        }
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof Deadline.DeadlineExceededException);
+        assertFalse(leader.isDone());
+        execution.complete(singletonList(aPoint()));
+        assertEquals(1, leader.get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    public void givenLeaderWithPartialResultWhenWaiterReceivesItThenWaitersDeadlineIsPartial() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(invocation -> {
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            Deadline.current().markPartial();
+            return singletonList(aPoint());
+        });
+        CompletableFuture<List<TimeSeriesPoint>> leader = CompletableFuture.supplyAsync(() -> withDeadline(
+                Deadline.after(Duration.ofSeconds(5)), () -> service.query(aSeries(), queryFilter().build())
+        ));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Deadline waiterDeadline = Deadline.after(Duration.ofSeconds(5));
+        CompletableFuture<List<TimeSeriesPoint>> waiter = CompletableFuture.supplyAsync(() -> withDeadline(
+                waiterDeadline, () -> service.query(aSeries(), queryFilter().build())
+        ));
+        awaitWaiters(1);
+        release.countDown();
+        assertEquals(1, leader.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, waiter.get(5, TimeUnit.SECONDS).size());
+        assertTrue(waiterDeadline.isPartial());
+    }
+
+    @Test
+    public void givenLeaderThatRanOutOfTimeWhenWaiterHasTimeLeftThenWaiterRunsQueryAgain() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<TimeSeriesPoint> points = singletonList(aPoint());
+        when(delegate.query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(invocation -> {
+            started.countDown();
+            assertTrue(release.await(5, TimeUnit.SECONDS));
+            throw new Deadline.DeadlineExceededException();
+        }).thenReturn(points);
+        CompletableFuture<List<TimeSeriesPoint>> leader = CompletableFuture.supplyAsync(() -> withDeadline(
+                Deadline.after(Duration.ofMillis(1)), () -> service.query(aSeries(), queryFilter().build())
+        ));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Deadline waiterDeadline = Deadline.after(Duration.ofSeconds(5));
+        CompletableFuture<List<TimeSeriesPoint>> waiter = CompletableFuture.supplyAsync(() -> withDeadline(
+                waiterDeadline, () -> service.query(aSeries(), queryFilter().build())
+        ));
+        awaitWaiters(1);
+        release.countDown();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof Deadline.DeadlineExceededException);
+        assertEquals(points, waiter.get(5, TimeUnit.SECONDS));
+        assertFalse(waiterDeadline.isPartial());
+        verify(delegate, times(2)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenAsyncLeaderWithPartialResultWhenWaiterReceivesItThenWaitersDeadlineIsPartial() throws Exception {
+        CompletableFuture<List<TimeSeriesPoint>> execution = new CompletableFuture<>();
+        when(delegate.queryAsync(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(execution);
+        Deadline leaderDeadline = Deadline.after(Duration.ofSeconds(5));
+        CompletableFuture<List<TimeSeriesPoint>> leader = withDeadline(leaderDeadline, () -> service.queryAsync(aSeries(), queryFilter().build()));
+        Deadline waiterDeadline = Deadline.after(Duration.ofSeconds(5));
+        CompletableFuture<List<TimeSeriesPoint>> waiter = withDeadline(waiterDeadline, () -> service.queryAsync(aSeries(), queryFilter().build()));
+        leaderDeadline.markPartial();
+        execution.complete(singletonList(aPoint()));
+        assertEquals(1, leader.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1, waiter.get(5, TimeUnit.SECONDS).size());
+        assertTrue(waiterDeadline.isPartial());
+    }
+
+    @Test
+    public void givenAsyncLeaderThatRanOutOfTimeWhenWaiterHasTimeLeftThenWaiterRunsQueryAgain() throws Exception {
+        CompletableFuture<List<TimeSeriesPoint>> timedOut = new CompletableFuture<>();
+        List<TimeSeriesPoint> points = singletonList(aPoint());
+        when(delegate.queryAsync(any(TimeSeriesDefinition.class), any(QueryFilter.class)))
+                .thenReturn(timedOut, CompletableFuture.completedFuture(points));
+        CompletableFuture<List<TimeSeriesPoint>> leader = withDeadline(
+                Deadline.after(Duration.ofMillis(1)), () -> service.queryAsync(aSeries(), queryFilter().build())
+        );
+        CompletableFuture<List<TimeSeriesPoint>> waiter = withDeadline(
+                Deadline.after(Duration.ofSeconds(5)), () -> service.queryAsync(aSeries(), queryFilter().build())
+        );
+        timedOut.completeExceptionally(new Deadline.DeadlineExceededException());
+        assertThrows(ExecutionException.class, () -> leader.get(5, TimeUnit.SECONDS));
+        assertEquals(points, waiter.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void givenQueriesWithDifferentPerCategoryWhenQueryingThenTheyAreNotCoalesced() {
+        service.query(aSeries(), queryFilter().perCategory("a").build());
+        service.query(aSeries(), queryFilter().perCategory("b").build());
+        verify(delegate, times(2)).query(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    private static <T> T withDeadline(Deadline deadline, Supplier<T> query) {
+        Deadline.bind(deadline);
+        try {
+            return query.get();
+        } finally {
+            Deadline.unbind();
+        }
+    }
+
+    private void awaitWaiters(int expected) throws InterruptedException {
+        long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (meterRegistry.get("query.coalescing.waiters").gauge().value() < expected) {
+            assertTrue(System.nanoTime() - timeout < 0, "Timed out waiting for " + expected + " waiter(s)");
+            Thread.sleep(1);
+        }
+    }
+
+    private TimeSeriesDefinition aSeries() {
+        return TimeSeriesDefinition.builder().name("aSeries").minutes().owner("anOwner");
+    }
+
+    private TimeSeriesPoint aPoint() {
+        return TimeSeriesPoint.builder().timestamp(ZonedDateTime.now()).measurement("m1", 1L).build();
+    }
+
+}
@@ -0,0 +1,127 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.model.QueryOperation;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiskResultStoreTest {
+
+    private final ZonedDateTime now = ZonedDateTime.of(2020, 6, 15, 12, 0, 0, 0, ZoneOffset.UTC);
+    private final Clock clock = Clock.fixed(Instant.from(now), ZoneOffset.UTC);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void givenStoredResultWhenRestartedThenResultIsReadBack() {
+        TimeSeriesPoint point = TimeSeriesPoint.builder()
+                .timestamp(now.minusDays(10)).measurement("a", 17).measurement("b", 4).category("TE", "Min side").build();
+        store(1_000_000).put(aKey(1), List.of(point, point));
+        Object result = store(1_000_000).get(aKey(1)).result;
+        assertTrue(result instanceof List);
+        List<?> points = (List<?>) result;
+        assertEquals(2, points.size());
+        TimeSeriesPoint readBack = (TimeSeriesPoint) points.get(1);
+        assertEquals(point.getTimestamp().toInstant(), readBack.getTimestamp().toInstant());
+        assertEquals(17, readBack.getMeasurement("a").orElseThrow());
+        assertEquals(4, readBack.getMeasurement("b").orElseThrow());
+        assertEquals(Map.of("TE", "Min side"), readBack.getCategories().orElseThrow());
+    }
+
+    @Test
+    public void givenSinglePointWhenStoredThenSinglePointIsReadBack() {
+        DiskResultStore store = store(1_000_000);
+        store.put(aKey(1), aPoint());
+        assertTrue(store.get(aKey(1)).result instanceof TimeSeriesPoint);
+        assertNull(store.get(aKey(2)));
+    }
+
+    @Test
+    public void givenStoredResultWhenReadingThenItsExpiryIsGiven() {
+        store(1_000_000).put(aKey(1), List.of(aPoint()));
+        DiskResultStore later = new DiskResultStore(
+                directory, 1_000_000, Duration.ofDays(7), Clock.offset(clock, Duration.ofDays(2)), Runnable::run, new SimpleMeterRegistry()
+        );
+        assertEquals(Instant.from(now).plus(Duration.ofDays(7)), later.get(aKey(1)).expiresAt);
+    }
+
+    @Test
+    public void givenCorruptFileWhenReadingThenItIsDeletedAndMissed() throws Exception {
+        DiskResultStore store = store(1_000_000);
+        store.put(aKey(1), List.of(aPoint()));
+        Path file = storedFiles().get(0);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 20);
+        }
+        assertNull(store.get(aKey(1)));
+        assertTrue(storedFiles().isEmpty());
+    }
+
+    @Test
+    public void givenFullQuotaWhenStoringThenLeastRecentlyUsedResultIsEvicted() throws Exception {
+        DiskResultStore store = store(1_000_000);
+        store.put(aKey(1), List.of(aPoint()));
+        long fileSize = Files.size(storedFiles().get(0));
+        store = store(fileSize * 2);
+        store.put(aKey(2), List.of(aPoint()));
+        assertNotNull(store.get(aKey(1)));
+        store.put(aKey(3), List.of(aPoint()));
+        assertNotNull(store.get(aKey(1)));
+        assertNull(store.get(aKey(2)));
+        assertNotNull(store.get(aKey(3)));
+    }
+
+    @Test
+    public void givenExpiredResultWhenReadingThenItIsMissed() {
+        store(1_000_000).put(aKey(1), List.of(aPoint()));
+        DiskResultStore later = new DiskResultStore(
+                directory, 1_000_000, Duration.ofDays(7), Clock.offset(clock, Duration.ofDays(8)), Runnable::run, new SimpleMeterRegistry()
+        );
+        assertNull(later.get(aKey(1)));
+    }
+
+    private DiskResultStore store(long maximumSize) {
+        return new DiskResultStore(directory, maximumSize, Duration.ofDays(7), clock, Runnable::run, new SimpleMeterRegistry());
+    }
+
+    private List<Path> storedFiles() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+
+    private QueryKey aKey(int month) {
+        return new QueryKey(
+                QueryOperation.query,
+                TimeSeriesDefinition.builder().name("series").minutes().owner("991825827"),
+                queryFilter().range(now.minusYears(1).withMonth(month), now.minusYears(1).withMonth(month).plusMonths(1)).build(),
+                null,
+                null
+        );
+    }
+
+    private TimeSeriesPoint aPoint() {
+        return TimeSeriesPoint.builder().timestamp(now.minusDays(10)).measurement("a", 1).build();
+    }
+
+}
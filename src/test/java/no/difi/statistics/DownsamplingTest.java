@@ -0,0 +1,72 @@
+package no.difi.statistics;
+
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DownsamplingTest {
+
+    private final ZonedDateTime start = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    @Test
+    public void givenMorePointsThanMaximumWhenDownsamplingThenFirstAndLastPointsAndSpikeAreKept() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            points.add(point(i, i == 437 ? 1000 : i % 2, null));
+        List<TimeSeriesPoint> downsampled = Downsampling.downsample(points, 50);
+        assertEquals(50, downsampled.size());
+        assertSame(points.get(0), downsampled.get(0));
+        assertSame(points.get(999), downsampled.get(49));
+        assertTrue(downsampled.contains(points.get(437)));
+        for (int i = 1; i < downsampled.size(); i++)
+            assertTrue(downsampled.get(i - 1).getTimestamp().isBefore(downsampled.get(i).getTimestamp()));
+    }
+
+    @Test
+    public void givenFewerPointsThanMaximumWhenDownsamplingThenAllPointsAreKept() {
+        List<TimeSeriesPoint> points = List.of(point(0, 1, null), point(1, 2, null), point(2, 3, null));
+        assertSame(points, Downsampling.downsample(points, 3));
+        assertSame(points, Downsampling.downsample(points, null));
+    }
+
+    @Test
+    public void givenPointsWithCategoriesWhenDownsamplingThenEachCategoryIsDownsampledSeparately() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            points.add(point(i, i, "a"));
+            points.add(point(i, 100 - i, "b"));
+        }
+        List<TimeSeriesPoint> downsampled = Downsampling.downsample(points, 20);
+        assertEquals(20, downsampled.size());
+        assertEquals(10, downsampled.stream().filter(p -> p.getCategories().orElseThrow().get("c").equals("a")).count());
+    }
+
+    @Test
+    public void givenMoreSeriesThanAThirdOfMaximumWhenDownsamplingThenEachSeriesKeepsMinimumPoints() {
+        List<TimeSeriesPoint> points = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            for (int c = 0; c < 10; c++)
+                points.add(point(i, i * c, "c" + c));
+        List<TimeSeriesPoint> downsampled = Downsampling.downsample(points, 12);
+        assertEquals(10 * Downsampling.minimumPoints, downsampled.size());
+    }
+
+    @Test
+    public void givenTooSmallMaximumWhenDownsamplingThenItIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Downsampling.downsample(List.of(), 2));
+    }
+
+    private TimeSeriesPoint point(int minute, long value, String category) {
+        TimeSeriesPoint.Builder builder = TimeSeriesPoint.builder().timestamp(start.plusMinutes(minute)).measurement("m", value);
+        if (category != null)
+            builder.category("c", category);
+        return builder.build();
+    }
+
+}
@@ -1,6 +1,7 @@
 package no.difi.statistics;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import no.difi.statistics.elasticsearch.Client;
 import no.difi.statistics.elasticsearch.config.ElasticsearchConfig;
@@ -36,6 +37,7 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -77,7 +79,17 @@ public class ElasticsearchQueryServiceTest {
         public void initialize(ConfigurableApplicationContext applicationContext) {
             TestPropertyValues.of(
                     "no.difi.statistics.elasticsearch.host=" + container.getHost(),
-                    "no.difi.statistics.elasticsearch.port=" + container.getFirstMappedPort()
+                    "no.difi.statistics.elasticsearch.port=" + container.getFirstMappedPort(),
+                    // Series are recreated with other data between tests, so caching would give stale results
+                    "no.difi.statistics.elasticsearch.measurement-identifiers-cache.time-to-live=0s",
+                    "no.difi.statistics.result-cache.enabled=false",
+                    "no.difi.statistics.last-point-store.enabled=false",
+                    "no.difi.statistics.rollup-store.enabled=false",
+                    "no.difi.statistics.categories-cache.enabled=false",
+                    "no.difi.statistics.series-catalog.enabled=false",
+                    "no.difi.statistics.index-pruning.enabled=false",
+                    // Small pages, so that percentile results span several of them
+                    "no.difi.statistics.elasticsearch.percentile.page-size=7"
             ).applyTo(applicationContext);
         }
 
@@ -239,6 +251,29 @@ public class ElasticsearchQueryServiceTest {
         assertEquals(1001, measurementValue(measurementId, 1, timeSeries));
     }
 
+    @Test
+    public void givenMinuteSeriesWhenQueryingInBatchThenResultsAreAsForSingleQueriesAndFailuresAreIsolated() throws IOException {
+        helper.indexPointsFrom(now.minusMinutes(1003), minutes, 1003, 1002, 1001, 1000);
+        List<Map<String, Object>> batch = List.of(
+                Map.of("id", "range", "owner", owner, "seriesName", series, "distance", "minutes",
+                        "from", formatTimestamp(now.minusMinutes(1002)), "to", formatTimestamp(now.minusMinutes(1001))),
+                Map.of("id", "last", "owner", owner, "seriesName", series, "distance", "minutes", "operation", "last"),
+                Map.of("id", "unsupported", "owner", owner, "seriesName", series, "distance", "minutes", "operation", "percentile")
+        );
+        ResponseEntity<String> response = restTemplate.postForEntity("/batch", batch, String.class);
+        assertEquals(response.getBody(), 200, response.getStatusCodeValue());
+        JsonNode results = objectMapper.readTree(response.getBody());
+        assertEquals(
+                request(minutes, series, now.minusMinutes(1002), now.minusMinutes(1001)),
+                objectMapper.readerFor(new TypeReference<List<TimeSeriesPoint>>(){}).readValue(results.get("range").get("points"))
+        );
+        assertEquals(
+                requestLast(series, minutes, owner),
+                objectMapper.readerFor(TimeSeriesPoint.class).readValue(results.get("last").get("point"))
+        );
+        assertTrue(results.get("unsupported").has("error"));
+    }
+
     @Test
     public void givenMinuteSeriesLastingTwoDaysWhenQueryingForRangeOverThoseDaysThenAllDataPointsAreReturned() throws IOException {
         helper.indexPoint(minutes, now.minusDays(1), 13);
@@ -0,0 +1,156 @@
+package no.difi.statistics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.model.QueryFilter;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class LastPointQueryServiceTest {
+
+    private final ZonedDateTime start = ZonedDateTime.of(2020, 6, 15, 12, 0, 0, 0, ZoneOffset.UTC);
+    private final QueryService delegate = mock(QueryService.class);
+    private final Clock clock = mock(Clock.class);
+    private Instant now = Instant.from(start);
+    private LastPointQueryService service;
+
+    @BeforeEach
+    public void prepare() {
+        when(clock.instant()).thenAnswer(invocation -> now);
+        service = new LastPointQueryService(
+                delegate,
+                Duration.ofSeconds(10),
+                Duration.ofMinutes(1),
+                Duration.ofHours(1),
+                100,
+                2,
+                clock,
+                mock(TaskScheduler.class),
+                new SimpleMeterRegistry()
+        );
+    }
+
+    @Test
+    public void givenRecentlyRequestedSeriesWhenRequestingLastPointThenItIsServedFromMemory() {
+        TimeSeriesPoint point = aPoint(start.minusMinutes(1));
+        when(delegate.last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(point);
+        service.last(aSeries(), queryFilter().build());
+        now = now.plusSeconds(30);
+        assertSame(point, service.last(aSeries(), queryFilter().build()));
+        verify(delegate, times(1)).last(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenStalePointWhenRequestingLastPointThenItIsQueried() {
+        when(delegate.last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(aPoint(start.minusMinutes(1)));
+        service.last(aSeries(), queryFilter().build());
+        now = now.plus(Duration.ofMinutes(2));
+        service.last(aSeries(), queryFilter().build());
+        verify(delegate, times(2)).last(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    @Test
+    public void givenRangeWhenRequestingLastPointThenStoreIsBypassed() {
+        QueryFilter range = queryFilter().range(start.minusDays(1), start).build();
+        service.last(aSeries(), range);
+        service.last(aSeries(), range);
+        verify(delegate, times(2)).last(aSeries(), range);
+    }
+
+    @Test
+    public void whenRefreshingThenOnlyPointsFromTheOneHeldAreQueried() {
+        TimeSeriesPoint point = aPoint(start.minusMinutes(1));
+        TimeSeriesPoint newer = aPoint(start);
+        when(delegate.last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(point);
+        when(delegate.lastAsync(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(CompletableFuture.completedFuture(newer));
+        service.last(aSeries(), queryFilter().build());
+        service.refresh();
+        ArgumentCaptor<QueryFilter> filter = ArgumentCaptor.forClass(QueryFilter.class);
+        verify(delegate).lastAsync(eq(aSeries()), filter.capture());
+        assertEquals(point.getTimestamp(), filter.getValue().timeRange().from());
+        assertSame(newer, service.last(aSeries(), queryFilter().build()));
+    }
+
+    @Test
+    public void givenFailingRefreshWhenRefreshingThenPointIsKept() {
+        TimeSeriesPoint point = aPoint(start.minusMinutes(1));
+        when(delegate.last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(point);
+        when(delegate.lastAsync(any(TimeSeriesDefinition.class), any(QueryFilter.class)))
+                .thenReturn(CompletableFuture.failedFuture(new RuntimeException("unavailable")));
+        service.last(aSeries(), queryFilter().build());
+        service.refresh();
+        assertSame(point, service.last(aSeries(), queryFilter().build()));
+    }
+
+    @Test
+    public void whenRefreshingManySeriesThenOnlyAFewAreQueriedAtATime() throws Exception {
+        when(delegate.last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(aPoint(start.minusMinutes(1)));
+        for (String name : List.of("a", "b", "c"))
+            service.last(aSeries(name), queryFilter().build());
+        List<CompletableFuture<TimeSeriesPoint>> refreshes = new CopyOnWriteArrayList<>();
+        when(delegate.lastAsync(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenAnswer(invocation -> {
+            CompletableFuture<TimeSeriesPoint> refresh = new CompletableFuture<>();
+            refreshes.add(refresh);
+            return refresh;
+        });
+        CompletableFuture<Void> refreshed = CompletableFuture.runAsync(service::refresh);
+        awaitSize(refreshes, 2);
+        Thread.sleep(50);
+        assertEquals(2, refreshes.size());
+        refreshes.get(0).complete(aPoint(start));
+        awaitSize(refreshes, 3);
+        assertFalse(refreshed.isDone());
+        refreshes.forEach(refresh -> refresh.complete(aPoint(start)));
+        refreshed.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void givenIdleSeriesWhenRefreshingThenItIsDropped() {
+        when(delegate.last(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(aPoint(start.minusMinutes(1)));
+        service.last(aSeries(), queryFilter().build());
+        now = now.plus(Duration.ofHours(2));
+        service.refresh();
+        service.last(aSeries(), queryFilter().build());
+        verify(delegate, times(2)).last(any(TimeSeriesDefinition.class), any(QueryFilter.class));
+    }
+
+    private static void awaitSize(List<?> list, int expected) throws InterruptedException {
+        long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (list.size() < expected) {
+            assertTrue(System.nanoTime() - timeout < 0, "Timed out waiting for " + expected + " element(s)");
+            Thread.sleep(1);
+        }
+    }
+
+    private TimeSeriesDefinition aSeries() {
+        return aSeries("aSeries");
+    }
+
+    private TimeSeriesDefinition aSeries(String name) {
+        return TimeSeriesDefinition.builder().name(name).minutes().owner("anOwner");
+    }
+
+    private TimeSeriesPoint aPoint(ZonedDateTime timestamp) {
+        return TimeSeriesPoint.builder().timestamp(timestamp).measurement("m1", 1L).build();
+    }
+
+}
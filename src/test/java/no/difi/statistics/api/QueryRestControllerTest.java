@@ -1,15 +1,26 @@
 package no.difi.statistics.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import no.difi.statistics.Deadline;
 import no.difi.statistics.QueryService;
 import no.difi.statistics.UtdataAPI;
 import no.difi.statistics.config.BackendConfig;
 import no.difi.statistics.model.*;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.web.servlet.MockMvc;
@@ -18,16 +29,32 @@ import org.springframework.test.web.servlet.ResultActions;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import static java.util.Collections.singletonList;
 import static no.difi.statistics.model.MeasurementDistance.minutes;
 import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static org.hamcrest.Matchers.containsString;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -89,7 +116,7 @@ public class QueryRestControllerTest {
                         .contentType(MediaType.APPLICATION_JSON)
         );
         assertNormalResponse(result);
-        String stringResult = result.andReturn().getResponse().getContentAsString();
+        String stringResult = mockMvc.perform(asyncDispatch(result.andReturn())).andReturn().getResponse().getContentAsString();
         String timestampResult = new JSONObject(stringResult).getString("timestamp");
         ZonedDateTime responseDate = ZonedDateTime.parse(timestampResult, formatter);
         assertEquals(expectedDate, responseDate);
@@ -162,11 +189,312 @@ public class QueryRestControllerTest {
         when(backendConfig.queryService().query(any(TimeSeriesDefinition.class), any(QueryFilter.class))).thenReturn(
                 singletonList(aPointWithoutCategory())
         );
-        mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()))
+        ResultActions result = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()));
+        mockMvc.perform(asyncDispatch(result.andReturn()))
                 .andExpect(jsonPath("$[*].timestamp").exists())
                 .andExpect(jsonPath("$[*].categories").doesNotExist());
     }
 
+    @Test
+    public void whenRequestingNdjsonThenPointsAreStreamedOnePerLine() throws Exception {
+        givenStreamedPoints(aPointWithoutCategory(), aPointWithoutCategory());
+        ResultActions result = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()).accept(MediaType.APPLICATION_NDJSON));
+        String content = mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_NDJSON))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = content.split("\n");
+        assertEquals(2, lines.length);
+        for (String line : lines)
+            assertTrue(new JSONObject(line).has("timestamp"));
+    }
+
+    @Test
+    public void whenRequestingCsvThenPointsAreStreamedWithHeaderFromFirstPoint() throws Exception {
+        givenStreamedPoints(
+                TimeSeriesPoint.builder().timestamp(aTimestamp()).measurement(aMeasurementId(), aMeasurementValue()).category("x", "y").build()
+        );
+        ResultActions result = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()).accept("text/csv"));
+        String content = mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith("text/csv"))
+                .andReturn().getResponse().getContentAsString();
+        String[] lines = content.split("\r\n");
+        assertEquals(2, lines.length);
+        assertEquals("timestamp,x," + aMeasurementId(), lines[0]);
+        assertTrue(lines[1].endsWith(",y," + aMeasurementValue()));
+    }
+
+    @Test
+    public void givenNoPointsWhenRequestingCsvThenOnlyTimestampHeaderIsWritten() throws Exception {
+        givenStreamedPoints();
+        ResultActions result = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()).accept("text/csv"));
+        String content = mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertEquals("timestamp\r\n", content);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void whenSendingBatchThenServiceReceivesItsQueriesAndResultsAreKeyedById() throws Exception {
+        when(queryServiceMock.batch(any())).thenReturn(Map.of(
+                "a", BatchQueryResult.points(singletonList(aPointWithoutCategory())),
+                "b", BatchQueryResult.error("failed")
+        ));
+        mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" +
+                                "{\"id\": \"a\", \"owner\": \"" + anOwner() + "\", \"seriesName\": \"" + aSeries() + "\", \"distance\": \"minutes\"}," +
+                                "{\"id\": \"b\", \"owner\": \"" + anOwner() + "\", \"seriesName\": \"" + aSeries() + "\", \"distance\": \"hours\", \"operation\": \"sumHistogram\", \"targetDistance\": \"days\"}" +
+                                "]")
+        )
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.a.points[0].timestamp").exists())
+                .andExpect(jsonPath("$.a.error").doesNotExist())
+                .andExpect(jsonPath("$.b.error").value("failed"));
+        ArgumentCaptor<List<BatchQueryItem>> queries = ArgumentCaptor.forClass(List.class);
+        verify(queryServiceMock).batch(queries.capture());
+        assertEquals(2, queries.getValue().size());
+        assertEquals(QueryOperation.query, queries.getValue().get(0).getOperation());
+        assertEquals(TimeSeriesDefinition.builder().name(aSeries()).minutes().owner(anOwner()), queries.getValue().get(0).seriesDefinition());
+        assertEquals(QueryOperation.sumHistogram, queries.getValue().get(1).getOperation());
+        assertEquals(MeasurementDistance.days, queries.getValue().get(1).getTargetDistance());
+    }
+
+    @Test
+    public void givenDuplicateIdsWhenSendingBatchThenBatchIsRejected() throws Exception {
+        mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[" +
+                                "{\"id\": \"a\", \"owner\": \"" + anOwner() + "\", \"seriesName\": \"" + aSeries() + "\", \"distance\": \"minutes\"}," +
+                                "{\"id\": \"a\", \"owner\": \"" + anOwner() + "\", \"seriesName\": \"" + aSeries() + "\", \"distance\": \"hours\"}" +
+                                "]")
+        )
+                .andExpect(status().isBadRequest());
+        verify(queryServiceMock, never()).batch(any());
+    }
+
+    @Test
+    public void givenTooSmallMaximumNumberOfPointsWhenQueryingThenRequestIsRejected() throws Exception {
+        mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").param("maxPoints", "2"))
+                .andExpect(status().isBadRequest());
+        verify(queryServiceMock, never()).query(any(), any());
+        verify(queryServiceMock, never()).queryAsync(any(), any());
+    }
+
+    @Test
+    public void givenQueryWithoutIdWhenSendingBatchThenBatchIsRejected() throws Exception {
+        mockMvc.perform(
+                post("/batch")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[{\"owner\": \"" + anOwner() + "\", \"seriesName\": \"" + aSeries() + "\", \"distance\": \"minutes\"}]")
+        )
+                .andExpect(status().isBadRequest());
+        verify(queryServiceMock, never()).batch(any());
+    }
+
+    @Test
+    public void whenRequestingMetaWithFilterAndPageThenMatchingSeriesArePagedAndCounted() throws Exception {
+        when(queryServiceMock.availableTimeSeries()).thenReturn(List.of(
+                TimeSeriesDefinition.builder().name("a").minutes().owner(anOwner()),
+                TimeSeriesDefinition.builder().name("b").hours().owner(anOwner()),
+                TimeSeriesDefinition.builder().name("c").minutes().owner(anOwner()),
+                TimeSeriesDefinition.builder().name("d").minutes().owner("anotherOwner")
+        ));
+        mockMvc.perform(get("/meta").param("owner", anOwner()).param("distance", "minutes").param("page", "1").param("size", "1"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Total-Count", "2"))
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].name").value("c"));
+        mockMvc.perform(get("/meta"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Total-Count", "4"))
+                .andExpect(jsonPath("$.length()").value(4));
+    }
+
+    @Test
+    public void givenOpenCircuitBreakerWhenQueryingThenServiceIsUnavailable() throws Exception {
+        when(queryServiceMock.categories())
+                .thenThrow(CallNotPermittedException.createCallNotPermittedException(CircuitBreaker.ofDefaults("elasticsearch")));
+        mockMvc.perform(get("/categories")).andExpect(status().isServiceUnavailable());
+    }
+
+    @Test
+    public void givenExceededDeadlineWhenQueryingThenGatewayTimesOut() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenThrow(new Deadline.DeadlineExceededException());
+        mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").header(DeadlineFilter.REQUEST_TIMEOUT, "1s"))
+                .andExpect(status().isGatewayTimeout());
+    }
+
+    @Test
+    public void givenPartialResultWhenQueryingThenResponseIsFlagged() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenAnswer(invocation -> {
+            Deadline.current().markPartial();
+            return singletonList(aPointWithoutCategory());
+        });
+        ResultActions result = mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series"));
+        mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(header().string(PartialResultsAdvice.PARTIAL_RESULTS, "true"));
+    }
+
+    @Test
+    public void givenInvalidRequestTimeoutWhenQueryingThenRequestIsRejected() throws Exception {
+        mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").header(DeadlineFilter.REQUEST_TIMEOUT, "soon"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void givenColumnarAcceptHeaderWhenQueryingThenPointsAreReturnedColumnByColumn() throws Exception {
+        TimeSeriesPoint point = aPointWithoutCategory();
+        when(queryServiceMock.query(any(), any())).thenReturn(List.of(point, point));
+        ResultActions result = mockMvc.perform(
+                get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").accept(ColumnarPointConverter.APPLICATION_COLUMNAR)
+        );
+        mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(ColumnarPointConverter.APPLICATION_COLUMNAR))
+                .andExpect(jsonPath("$.series[0].timestamps.start").value(point.getTimestamp().toInstant().toEpochMilli()))
+                .andExpect(jsonPath("$.series[0].timestamps.step").value(0))
+                .andExpect(jsonPath("$.series[0].measurements." + aMeasurementId() + "[1]").value(aMeasurementValue()));
+    }
+
+    @Test
+    public void givenColumnarFormatParameterWhenQueryingThenPointsAreReturnedColumnByColumn() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenReturn(singletonList(aPointWithoutCategory()));
+        ResultActions result = mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").param("format", "columnar"));
+        mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(ColumnarPointConverter.APPLICATION_COLUMNAR))
+                .andExpect(jsonPath("$.series[0].measurements." + aMeasurementId() + "[0]").value(aMeasurementValue()));
+    }
+
+    @Test
+    public void givenNoAcceptHeaderWhenQueryingThenPointsAreReturnedAsJson() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenReturn(singletonList(aPointWithoutCategory()));
+        ResultActions result = mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series"));
+        mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void whenRequestingSmileThenPointsAreEncodedAsSmile() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenReturn(singletonList(aPointWithoutCategory()));
+        ResultActions result = mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").accept("application/x-jackson-smile"));
+        byte[] content = mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-jackson-smile"))
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode points = new ObjectMapper(new SmileFactory()).readTree(content);
+        assertEquals(1, points.size());
+        assertTrue(points.get(0).has("timestamp"));
+    }
+
+    @Test
+    public void whenRequestingProtobufThenPointsAreStreamedAsTimeSeriesPointsMessage() throws Exception {
+        TimeSeriesPoint point = TimeSeriesPoint.builder()
+                .timestamp(aTimestamp()).measurement(aMeasurementId(), aMeasurementValue()).category("x", "y").build();
+        givenStreamedPoints(point, point);
+        ResultActions result = mockMvc.perform(get("/{owner}/{series}/minutes", anOwner(), aSeries()).param("format", "protobuf"));
+        byte[] content = mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(ProtobufPointConverter.APPLICATION_PROTOBUF))
+                .andReturn().getResponse().getContentAsByteArray();
+        CodedInputStream points = CodedInputStream.newInstance(content);
+        int count = 0;
+        for (int tag = points.readTag(); tag != 0; tag = points.readTag()) {
+            assertEquals(1, WireFormat.getTagFieldNumber(tag));
+            CodedInputStream fields = points.readBytes().newCodedInput();
+            Map<Integer, List<Object>> values = new HashMap<>();
+            for (int fieldTag = fields.readTag(); fieldTag != 0; fieldTag = fields.readTag()) {
+                int field = WireFormat.getTagFieldNumber(fieldTag);
+                values.computeIfAbsent(field, f -> new ArrayList<>())
+                        .add(field == 1 ? (Object) fields.readInt64() : fields.readBytes());
+            }
+            assertEquals(point.getTimestamp().toInstant().toEpochMilli(), values.get(1).get(0));
+            CodedInputStream measurement = ((ByteString) values.get(2).get(0)).newCodedInput();
+            measurement.readTag();
+            assertEquals(aMeasurementId(), measurement.readString());
+            measurement.readTag();
+            assertEquals(aMeasurementValue(), measurement.readInt64());
+            CodedInputStream category = ((ByteString) values.get(3).get(0)).newCodedInput();
+            category.readTag();
+            assertEquals("x", category.readString());
+            category.readTag();
+            assertEquals("y", category.readString());
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    @Test
+    public void givenClosedRangeWhenQueryingThenResponseMayBeCachedAndCarriesLastModified() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenReturn(singletonList(aPointWithoutCategory()));
+        ResultActions result = mockMvc.perform(
+                get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").param("to", "2020-01-01T00:00:00Z")
+        );
+        mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, containsString("public")))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, containsString("max-age")))
+                .andExpect(header().exists(HttpHeaders.LAST_MODIFIED));
+    }
+
+    @Test
+    public void givenClosedRangeWhenQueryFailsThenErrorIsNotCached() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenThrow(new Deadline.DeadlineExceededException());
+        mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series").param("to", "2020-01-01T00:00:00Z"))
+                .andExpect(status().isGatewayTimeout())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-store"));
+    }
+
+    @Test
+    public void givenClosedRangeAndCurrentCopyWhenQueryingThenNotModifiedWithoutSearching() throws Exception {
+        mockMvc.perform(
+                get("/{owner}/{seriesName}/minutes", anOwner(), "a_series")
+                        .param("to", "2020-01-01T00:00:00Z")
+                        .header(HttpHeaders.IF_MODIFIED_SINCE, "Tue, 01 Jan 2030 00:00:00 GMT")
+        )
+                .andExpect(status().isNotModified());
+        verify(queryServiceMock, never()).query(any(), any());
+    }
+
+    @Test
+    public void givenOpenRangeWhenQueryingThenResponseMustBeRevalidated() throws Exception {
+        when(queryServiceMock.query(any(), any())).thenReturn(singletonList(aPointWithoutCategory()));
+        ResultActions result = mockMvc.perform(get("/{owner}/{seriesName}/minutes", anOwner(), "a_series"));
+        mockMvc.perform(asyncDispatch(result.andReturn()))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"))
+                .andExpect(header().doesNotExist(HttpHeaders.LAST_MODIFIED));
+    }
+
+    @Test
+    public void givenMatchingEtagWhenRequestingCategoriesThenNotModified() throws Exception {
+        when(queryServiceMock.categories()).thenReturn(Set.of(new OwnerCategories(anOwner(), aSeries(), "minutes")));
+        String etag = mockMvc.perform(get("/categories"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(etag);
+        assertFalse(etag.startsWith("W/"));
+        mockMvc.perform(get("/categories").header(HttpHeaders.IF_NONE_MATCH, etag))
+                .andExpect(status().isNotModified());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void givenStreamedPoints(TimeSeriesPoint...points) {
+        doAnswer(invocation -> {
+            Consumer<TimeSeriesPoint> consumer = invocation.getArgument(2);
+            for (TimeSeriesPoint point : points)
+                consumer.accept(point);
+            return null;
+        }).when(queryServiceMock).stream(any(TimeSeriesDefinition.class), any(QueryFilter.class), any(Consumer.class));
+    }
+
     private TimeSeriesPoint aPointWithoutCategory() {
         return TimeSeriesPoint.builder().timestamp(aTimestamp()).measurement(aMeasurementId(), aMeasurementValue()).build();
     }
@@ -0,0 +1,93 @@
+package no.difi.statistics.elasticsearch;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.statistics.elasticsearch.ElasticsearchGuard.Pool.cheap;
+import static no.difi.statistics.elasticsearch.ElasticsearchGuard.Pool.expensive;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ElasticsearchGuardTest {
+
+    private final CircuitBreaker circuitBreaker = CircuitBreaker.of("test", CircuitBreakerConfig.custom()
+            .slidingWindowSize(2)
+            .minimumNumberOfCalls(2)
+            .failureRateThreshold(50)
+            .build());
+    private final ElasticsearchGuard guard = new ElasticsearchGuard(circuitBreaker, bulkhead(), bulkhead(), Duration.ZERO);
+
+    @Test
+    public void givenFailingCallsWhenCallingThenBreakerOpensAndCallsFailFast() {
+        for (int i = 0; i < 2; i++)
+            assertThrows(IOException.class, () -> guard.call(cheap, () -> {
+                throw new IOException("unavailable");
+            }));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertThrows(CallNotPermittedException.class, () -> guard.call(cheap, () -> "result"));
+        ExecutionException e = assertThrows(
+                ExecutionException.class,
+                () -> guard.callAsync(cheap, () -> CompletableFuture.completedFuture("result")).get()
+        );
+        assertTrue(e.getCause() instanceof CallNotPermittedException);
+    }
+
+    @Test
+    public void givenFullPoolWhenCallingThenCallIsRejectedWhileOtherPoolIsAvailable() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        CompletableFuture<String> first = guard.callAsync(expensive, () -> pending);
+        ExecutionException e = assertThrows(
+                ExecutionException.class,
+                () -> guard.callAsync(expensive, () -> CompletableFuture.completedFuture("result")).get()
+        );
+        assertTrue(e.getCause() instanceof BulkheadFullException);
+        assertEquals("result", guard.call(cheap, () -> "result"));
+        pending.complete("first");
+        assertEquals("first", first.get());
+        assertEquals("result", guard.callAsync(expensive, () -> CompletableFuture.completedFuture("result")).get());
+    }
+
+    @Test
+    public void givenFullPoolWhenCallingAsynchronouslyThenCallIsRejectedWithoutWaiting() {
+        ElasticsearchGuard guard = new ElasticsearchGuard(circuitBreaker, bulkhead(), bulkhead(), Duration.ofSeconds(5));
+        guard.callAsync(cheap, CompletableFuture::new);
+        long start = System.nanoTime();
+        CompletableFuture<String> rejected = guard.callAsync(cheap, () -> CompletableFuture.completedFuture("result"));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(1)) < 0);
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(e.getCause() instanceof BulkheadFullException);
+    }
+
+    @Test
+    public void givenPoolFullOfAsynchronousCallsWhenCallingThenCallWaitsForTheirPermit() throws Exception {
+        ElasticsearchGuard guard = new ElasticsearchGuard(circuitBreaker, bulkhead(), bulkhead(), Duration.ofSeconds(5));
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        guard.callAsync(cheap, () -> pending);
+        CompletableFuture<String> blocking = CompletableFuture.supplyAsync(() -> {
+            try {
+                return guard.call(cheap, () -> "result");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertFalse(blocking.isDone());
+        pending.complete("first");
+        assertEquals("result", blocking.get(5, TimeUnit.SECONDS));
+    }
+
+    private static Bulkhead bulkhead() {
+        return Bulkhead.of("test", BulkheadConfig.custom().maxConcurrentCalls(1).maxWaitDuration(Duration.ZERO).build());
+    }
+
+}
@@ -0,0 +1,83 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MeasurementIdentifiersCacheTest {
+
+    private final MeasurementIdentifiersCache cache =
+            new MeasurementIdentifiersCache(Duration.ofMinutes(5), 100, new SimpleMeterRegistry());
+
+    @Test
+    public void givenLoadedIdentifiersWhenGettingAgainThenLoaderIsNotCalled() {
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, List<String>> loader = name -> {
+            loads.incrementAndGet();
+            return new ArrayList<>(List.of("a", "b"));
+        };
+        assertEquals(List.of("a", "b"), cache.get("owner@series@hour*", loader));
+        assertEquals(List.of("a", "b"), cache.get("owner@series@hour*", loader));
+        assertEquals(1, loads.get());
+        assertEquals(List.of("a", "b"), cache.cached("owner@series@hour*"));
+    }
+
+    @Test
+    public void givenNoIdentifiersWhenGettingThenEmptyResultIsNotCached() {
+        AtomicInteger loads = new AtomicInteger();
+        Function<String, List<String>> loader = name -> {
+            loads.incrementAndGet();
+            return List.of();
+        };
+        assertEquals(List.of(), cache.get("owner@series@hour*", loader));
+        assertEquals(List.of(), cache.get("owner@series@hour*", loader));
+        assertEquals(2, loads.get());
+        assertNull(cache.cached("owner@series@hour*"));
+        assertEquals(List.of(), cache.store("owner@series@hour*", List.of()));
+        assertNull(cache.cached("owner@series@hour*"));
+    }
+
+    @Test
+    public void givenStoredIdentifiersThenTheyAreACopy() {
+        List<String> measurementIds = new ArrayList<>(List.of("a"));
+        cache.store("owner@series@hour*", measurementIds);
+        measurementIds.add("b");
+        assertEquals(List.of("a"), cache.cached("owner@series@hour*"));
+        assertThrows(UnsupportedOperationException.class, () -> cache.cached("owner@series@hour*").add("c"));
+    }
+
+    @Test
+    public void givenConcurrentGetsForSameSeriesThenTheyShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Function<String, List<String>> loader = name -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of("a");
+        };
+        CompletableFuture<List<String>> first = CompletableFuture.supplyAsync(() -> cache.get("owner@series@hour*", loader));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        CompletableFuture<List<String>> second = CompletableFuture.supplyAsync(() -> cache.get("owner@series@hour*", loader));
+        release.countDown();
+        assertEquals(List.of("a"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("a"), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+    }
+
+}
@@ -0,0 +1,191 @@
+package no.difi.statistics.elasticsearch;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import no.difi.statistics.UtdataAPI;
+import no.difi.statistics.elasticsearch.config.ElasticsearchConfig;
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesPoint;
+import no.difi.statistics.test.utils.ElasticsearchHelper;
+import org.junit.ClassRule;
+import org.junit.jupiter.api.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.boot.test.web.client.LocalHostUriTemplateHandler;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.web.util.DefaultUriBuilderFactory;
+import org.testcontainers.elasticsearch.ElasticsearchContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+import static no.difi.statistics.model.MeasurementDistance.*;
+import static no.difi.statistics.test.utils.DataGenerator.createRandomTimeSeries;
+import static no.difi.statistics.test.utils.DataOperations.measurementValue;
+import static no.difi.statistics.test.utils.DataOperations.size;
+import static no.difi.statistics.test.utils.DataOperations.sum;
+import static org.junit.Assert.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+/**
+ * Queries with the series catalog, index pruning and the rollup store enabled, which {@link
+ * no.difi.statistics.ElasticsearchQueryServiceTest} turns off. They are refreshed explicitly after indexing, and the
+ * results must be those of queries without them.
+ */
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@ContextConfiguration(classes = {UtdataAPI.class, ElasticsearchConfig.class}, initializers = OptimizedQueryServiceTest.Initializer.class)
+public class OptimizedQueryServiceTest {
+
+    private static final String ELASTICSEARCH_VERSION = "7.17.2";
+    @ClassRule
+    public static ElasticsearchContainer container = new ElasticsearchContainer(
+            DockerImageName
+                    .parse("docker.elastic.co/elasticsearch/elasticsearch")
+                    .withTag(ELASTICSEARCH_VERSION));
+
+    public static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(ConfigurableApplicationContext applicationContext) {
+            TestPropertyValues.of(
+                    "no.difi.statistics.elasticsearch.host=" + container.getHost(),
+                    "no.difi.statistics.elasticsearch.port=" + container.getFirstMappedPort(),
+                    "no.difi.statistics.elasticsearch.measurement-identifiers-cache.time-to-live=0s",
+                    "no.difi.statistics.result-cache.enabled=false",
+                    "no.difi.statistics.last-point-store.enabled=false",
+                    "no.difi.statistics.categories-cache.enabled=false",
+                    // Refreshed by the tests only
+                    "no.difi.statistics.series-catalog.enabled=true",
+                    "no.difi.statistics.series-catalog.refresh-interval=1h",
+                    "no.difi.statistics.index-pruning.enabled=true",
+                    "no.difi.statistics.rollup-store.enabled=true",
+                    "no.difi.statistics.rollup-store.refresh-interval=1h"
+            ).applyTo(applicationContext);
+        }
+
+    }
+
+    @BeforeAll
+    static void setUp() {
+        container.start();
+        assertTrue(container.isRunning());
+    }
+
+    @AfterAll
+    static void tearDown() {
+        container.stop();
+    }
+
+    private final static ZoneId UTC = ZoneId.of("UTC");
+    private final ZonedDateTime now = ZonedDateTime.of(2016, 3, 3, 0, 0, 0, 0, UTC);
+    private final static String measurementId = "count";
+    private final static String series = "test";
+    private final static String owner = "test_owner"; // Index names must be lowercase in Elasticsearch
+
+    @Autowired
+    private Client client;
+    @Autowired
+    private TestRestTemplate restTemplate;
+    private ElasticsearchHelper helper;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private Environment environment;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private SeriesCatalog seriesCatalog;
+    @Autowired
+    private RollupStore rollupStore;
+
+    @BeforeEach
+    public void prepare() {
+        helper = new ElasticsearchHelper(client);
+        helper.waitForGreenStatus();
+        // See ElasticsearchQueryServiceTest
+        DefaultUriBuilderFactory f = new DefaultUriBuilderFactory();
+        f.setEncodingMode(DefaultUriBuilderFactory.EncodingMode.VALUES_ONLY);
+        restTemplate.getRestTemplate().setUriTemplateHandler(new LocalHostUriTemplateHandler(environment, "http", f));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        helper.clear();
+    }
+
+    @Test
+    public void givenHourSeriesInOneYearWhenQueryingOverSeveralYearsThenOtherYearsArePrunedAndPointsAreReturned() throws IOException {
+        helper.indexPointsFrom(now.minusHours(3), hours, 1003, 1002, 1001, 1000);
+        seriesCatalog.refresh();
+        double prunedBefore = pruned();
+        List<TimeSeriesPoint> timeSeries = request(hours, now.minusYears(2), now.plusHours(1));
+        assertEquals(4, size(timeSeries));
+        for (int i = 0; i < 4; i++)
+            assertEquals(1003 - i, measurementValue(measurementId, i, timeSeries));
+        assertEquals(2.0, pruned() - prunedBefore, 0.0);
+    }
+
+    @Test
+    public void givenMinuteSeriesWhenQueryingForDayPointsFromRollupThenSummarizedMinutesAreReturned() throws IOException {
+        List<TimeSeriesPoint> points = createRandomTimeSeries(now.truncatedTo(DAYS), minutes, 2000, "measurementA", "measurementB");
+        helper.indexPoints(minutes, points);
+        seriesCatalog.refresh();
+        ZonedDateTime from = now.truncatedTo(DAYS).minusYears(1);
+        ZonedDateTime to = now.truncatedTo(DAYS).plusDays(3);
+        // Aggregated from the minutes, and registers the rollup
+        List<TimeSeriesPoint> aggregated = request(days, from, to);
+        rollupStore.refresh();
+        double hitsBefore = rollupHits();
+        List<TimeSeriesPoint> rolledUp = request(days, from, to);
+        assertEquals(1.0, rollupHits() - hitsBefore, 0.0);
+
+        List<TimeSeriesPoint> pointsDayOne = points.subList(0, 1440);
+        List<TimeSeriesPoint> pointsDayTwo = points.subList(1440, points.size());
+        assertEquals(2, size(aggregated));
+        assertEquals(sum("measurementA", pointsDayOne), aggregated.get(0).getMeasurement("measurementA").orElse(-1L).longValue());
+        assertEquals(sum("measurementA", pointsDayTwo), aggregated.get(1).getMeasurement("measurementA").orElse(-1L).longValue());
+        assertEquals(sum("measurementB", pointsDayOne), aggregated.get(0).getMeasurement("measurementB").orElse(-1L).longValue());
+        assertEquals(sum("measurementB", pointsDayTwo), aggregated.get(1).getMeasurement("measurementB").orElse(-1L).longValue());
+        assertEquals(aggregated, rolledUp);
+    }
+
+    private double rollupHits() {
+        return meterRegistry.get("query.rollups.requests").tag("result", "hit").counter().count();
+    }
+
+    private double pruned() {
+        return meterRegistry.find("elasticsearch.search.indices.pruned").counters().stream().mapToDouble(Counter::count).sum();
+    }
+
+    private List<TimeSeriesPoint> request(MeasurementDistance distance, ZonedDateTime from, ZonedDateTime to) throws IOException {
+        ResponseEntity<String> response = restTemplate.exchange(
+                "/{owner}/{seriesName}/{distance}?from={from}&to={to}",
+                HttpMethod.GET,
+                null,
+                String.class,
+                owner,
+                series,
+                distance,
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(from),
+                DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to)
+        );
+        assertEquals(200, response.getStatusCodeValue());
+        return objectMapper.readerFor(new TypeReference<List<TimeSeriesPoint>>(){}).readValue(response.getBody());
+    }
+
+}
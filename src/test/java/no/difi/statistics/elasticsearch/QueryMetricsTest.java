@@ -0,0 +1,64 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.model.MeasurementDistance;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.core.TimeValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class QueryMetricsTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final QueryMetrics metrics = new QueryMetrics(meterRegistry);
+    private final Tags tags = QueryMetrics.tags("query", MeasurementDistance.days);
+
+    @Test
+    public void whenExecutedThenTimeAndPointsAreRecordedWithOperationAndDistance() {
+        metrics.executed(tags, TimeUnit.MILLISECONDS.toNanos(30), 12);
+        metrics.executed(tags, TimeUnit.MILLISECONDS.toNanos(10), 4);
+        Timer timer = meterRegistry.get("elasticsearch.query").tags("operation", "query", "distance", "days").timer();
+        assertEquals(2, timer.count());
+        assertEquals(40, timer.totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(16, meterRegistry.get("elasticsearch.query.points").tags(tags).summary().totalAmount());
+    }
+
+    @Test
+    public void whenSearchedThenRoundTripTookAndIndicesAreRecorded() {
+        SearchResponse response = mock(SearchResponse.class);
+        when(response.getTook()).thenReturn(TimeValue.timeValueMillis(7));
+        metrics.searched(tags, 3, TimeUnit.MILLISECONDS.toNanos(20), response);
+        assertEquals(20, meterRegistry.get("elasticsearch.search.round.trip").tags(tags).timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(7, meterRegistry.get("elasticsearch.search.took").tags(tags).timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(3, meterRegistry.get("elasticsearch.search.indices").tags(tags).summary().totalAmount());
+        assertTrue(meterRegistry.find("elasticsearch.search.buckets").meters().isEmpty());
+    }
+
+    @Test
+    public void whenRecordingRepeatedlyThenMetersAreRegisteredOnce() {
+        metrics.retried(tags);
+        int meterCount = meterRegistry.getMeters().size();
+        metrics.retried(tags);
+        metrics.retried(QueryMetrics.tags("query", MeasurementDistance.days));
+        assertEquals(meterCount, meterRegistry.getMeters().size());
+        assertEquals(3, meterRegistry.get("elasticsearch.search.retries").tags(tags).counter().count());
+    }
+
+    @Test
+    public void givenDistinctTagsThenMetersAreKeptApart() {
+        metrics.path(tags, "catalog", "native");
+        metrics.path(tags, "speculative", "derived");
+        metrics.path(QueryMetrics.tags("query", MeasurementDistance.months), "catalog", "native");
+        assertEquals(1, meterRegistry.get("elasticsearch.query.path").tags(tags).tags("strategy", "catalog", "path", "native").counter().count());
+        assertEquals(1, meterRegistry.get("elasticsearch.query.path").tags(tags).tags("strategy", "speculative", "path", "derived").counter().count());
+        assertEquals(3, meterRegistry.get("elasticsearch.query.path").counters().size());
+    }
+
+}
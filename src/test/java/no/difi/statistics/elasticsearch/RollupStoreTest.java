@@ -0,0 +1,135 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class RollupStoreTest {
+
+    private final RollupStore.Roller roller = mock(RollupStore.Roller.class);
+    private final TestClock clock = new TestClock(Instant.parse("2023-06-10T12:00:00Z"));
+    private final RollupStore store = new RollupStore(
+            roller,
+            Duration.ofDays(2),
+            Duration.ofHours(1),
+            Duration.ofDays(7),
+            10,
+            clock,
+            mock(TaskScheduler.class),
+            new SimpleMeterRegistry()
+    );
+    private final TimeSeriesDefinition minuteSeries = TimeSeriesDefinition.builder().name("a").minutes().owner("anOwner");
+
+    @Test
+    public void givenUnbuiltRollupWhenAskingThenItIsRegisteredAndBuiltByRefresh() {
+        when(roller.roll(eq(minuteSeries), eq(days), isNull(), any())).thenReturn(List.of(point("2023-06-06"), point("2023-06-07"), point("2023-06-08")));
+        assertNull(store.rollup(minuteSeries, days));
+        store.refresh();
+        verify(roller).roll(minuteSeries, days, null, day("2023-06-08"));
+        RollupStore.Rollup rollup = store.rollup(minuteSeries, days);
+        assertNotNull(rollup);
+        assertEquals(day("2023-06-08"), rollup.end(day("2023-06-07"), null));
+        assertEquals(List.of(day("2023-06-07")), timestamps(rollup.points(day("2023-06-07"), day("2023-06-08"))));
+        assertEquals(day("2023-06-07"), rollup.end(null, day("2023-06-07").plusHours(5)));
+    }
+
+    @Test
+    public void givenUnbuiltRollupWhenLookingUpBuiltRollupThenItIsNotRegistered() {
+        assertNull(store.built(minuteSeries, days));
+        store.refresh();
+        verifyNoInteractions(roller);
+        when(roller.roll(any(), any(), any(), any())).thenReturn(List.of(point("2023-06-06")));
+        store.rollup(minuteSeries, days);
+        store.refresh();
+        assertNotNull(store.built(minuteSeries, days));
+    }
+
+    @Test
+    public void givenRangeNotStartingAtPeriodWhenAskingForEndThenRollupCannotBeUsed() {
+        when(roller.roll(any(), any(), any(), any())).thenReturn(List.of(point("2023-06-06"), point("2023-06-07")));
+        store.rollup(minuteSeries, days);
+        store.refresh();
+        RollupStore.Rollup rollup = store.rollup(minuteSeries, days);
+        assertNull(rollup.end(day("2023-06-07").plusHours(12), null));
+        assertNull(rollup.end(day("2023-06-09"), null));
+    }
+
+    @Test
+    public void whenPeriodsCloseThenOnlyTheyAreRolledUp() {
+        when(roller.roll(eq(minuteSeries), eq(days), isNull(), any())).thenReturn(List.of(point("2023-06-06"), point("2023-06-07")));
+        when(roller.roll(minuteSeries, days, day("2023-06-08"), day("2023-06-09"))).thenReturn(List.of(point("2023-06-08")));
+        store.rollup(minuteSeries, days);
+        store.refresh();
+        clock.instant = Instant.parse("2023-06-11T12:00:00Z");
+        store.refresh();
+        RollupStore.Rollup rollup = store.rollup(minuteSeries, days);
+        assertEquals(day("2023-06-09"), rollup.end(null, null));
+        assertEquals(List.of(day("2023-06-06"), day("2023-06-07"), day("2023-06-08")), timestamps(rollup.points(null, day("2023-06-09"))));
+    }
+
+    @Test
+    public void givenIdleRollupWhenRefreshingThenItIsDropped() {
+        when(roller.roll(any(), any(), any(), any())).thenReturn(List.of(point("2023-06-06")));
+        store.rollup(minuteSeries, days);
+        clock.instant = clock.instant.plus(Duration.ofDays(8));
+        store.refresh();
+        assertNull(store.rollup(minuteSeries, days));
+        verifyNoInteractions(roller);
+    }
+
+    private static ZonedDateTime day(String date) {
+        return ZonedDateTime.parse(date + "T00:00:00Z");
+    }
+
+    private static List<ZonedDateTime> timestamps(List<TimeSeriesPoint> points) {
+        return points.stream().map(TimeSeriesPoint::getTimestamp).collect(toList());
+    }
+
+    private static TimeSeriesPoint point(String date) {
+        return TimeSeriesPoint.builder().timestamp(day(date)).measurement("m", 1).build();
+    }
+
+    private static class TestClock extends Clock {
+
+        private Instant instant;
+
+        private TestClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+package no.difi.statistics.elasticsearch;
+
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class SearchHedgingTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+    private final Tags tags = QueryMetrics.tags("query");
+    private SearchHedging hedging;
+
+    @BeforeEach
+    public void prepare() {
+        scheduler.initialize();
+        hedging = new SearchHedging(95, Duration.ofMillis(10), 1.0, scheduler, new QueryMetrics(meterRegistry));
+    }
+
+    @AfterEach
+    public void cleanup() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void givenSlowSearchWhenHedgeReturnsFirstThenHedgeWinsAndSlowSearchIsCancelled() throws Exception {
+        givenRecentFastSearches();
+        SearchResponse hedgeResponse = mock(SearchResponse.class);
+        CompletableFuture<SearchResponse> slow = new CompletableFuture<>();
+        List<SearchRequest> sent = new ArrayList<>();
+        CompletableFuture<SearchResponse> result = hedging.search(tags, new SearchRequest("index"), request -> {
+            sent.add(request);
+            return sent.size() == 1 ? slow : CompletableFuture.completedFuture(hedgeResponse);
+        });
+        assertSame(hedgeResponse, result.get(5, TimeUnit.SECONDS));
+        assertTrue(slow.isCancelled());
+        assertNull(sent.get(0).preference());
+        assertNotNull(sent.get(1).preference());
+        assertEquals(1.0, meterRegistry.get("elasticsearch.search.hedges").tag("outcome", "fired").counter().count());
+        assertEquals(1.0, meterRegistry.get("elasticsearch.search.hedges").tag("outcome", "won").counter().count());
+    }
+
+    @Test
+    public void givenHedgeWinsThenCancelledSearchIsStillRecorded() throws Exception {
+        SearchResponse response = mock(SearchResponse.class);
+        for (int i = 0; i < 100; i++)
+            hedging.search(tags, new SearchRequest("index"), request -> CompletableFuture.completedFuture(response));
+        assertEquals(100, hedging.recordedRoundTrips(tags));
+        CompletableFuture<SearchResponse> slow = new CompletableFuture<>();
+        List<SearchRequest> sent = new ArrayList<>();
+        hedging.search(tags, new SearchRequest("index"), request -> {
+            sent.add(request);
+            return sent.size() == 1 ? slow : CompletableFuture.completedFuture(response);
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(slow.isCancelled());
+        assertEquals(101, hedging.recordedRoundTrips(tags));
+    }
+
+    @Test
+    public void givenNoRecentSearchesWhenSearchingThenSearchIsNotHedged() throws Exception {
+        CompletableFuture<SearchResponse> slow = new CompletableFuture<>();
+        CompletableFuture<SearchResponse> result = hedging.search(tags, new SearchRequest("index"), request -> slow);
+        Thread.sleep(50);
+        assertFalse(result.isDone());
+        assertTrue(meterRegistry.find("elasticsearch.search.hedges").counters().isEmpty());
+    }
+
+    @Test
+    public void givenHedgeRefusedWhenSearchIsSlowThenSearchAnswersAndNoHedgeIsCounted() throws Exception {
+        givenRecentFastSearches();
+        SearchResponse response = mock(SearchResponse.class);
+        CompletableFuture<SearchResponse> slow = new CompletableFuture<>();
+        CountDownLatch hedgeRefused = new CountDownLatch(1);
+        CompletableFuture<SearchResponse> result = hedging.search(tags, new SearchRequest("index"), request -> {
+            if (request.preference() == null)
+                return slow;
+            hedgeRefused.countDown();
+            return CompletableFuture.failedFuture(new IllegalStateException("No free connection"));
+        });
+        assertTrue(hedgeRefused.await(5, TimeUnit.SECONDS));
+        assertFalse(result.isDone());
+        slow.complete(response);
+        assertSame(response, result.get(5, TimeUnit.SECONDS));
+        assertNull(meterRegistry.find("elasticsearch.search.hedges").tag("outcome", "fired").counter());
+    }
+
+    private void givenRecentFastSearches() {
+        SearchResponse response = mock(SearchResponse.class);
+        for (int i = 0; i < 1000; i++)
+            hedging.search(tags, new SearchRequest("index"), request -> CompletableFuture.completedFuture(response));
+    }
+
+}
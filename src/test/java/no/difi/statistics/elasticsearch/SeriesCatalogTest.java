@@ -0,0 +1,88 @@
+package no.difi.statistics.elasticsearch;
+
+import no.difi.statistics.model.MeasurementDistance;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.junit.jupiter.api.Test;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+public class SeriesCatalogTest {
+
+    private final SeriesCatalog.Loader loader = mock(SeriesCatalog.Loader.class);
+    private final Clock clock = Clock.fixed(Instant.parse("2023-06-01T00:00:00Z"), ZoneOffset.UTC);
+    private final SeriesCatalog catalog = new SeriesCatalog(loader, Duration.ofMinutes(1), clock, mock(TaskScheduler.class));
+
+    @Test
+    public void whenIndicesAreAddedAndRemovedThenCatalogReflectsThem() {
+        when(loader.load()).thenReturn(List.of("anOwner@a@minute2022", "anOwner@a@minute2023", ".kibana"));
+        assertEquals(List.of(series("a")), catalog.seriesDefinitions());
+        when(loader.load()).thenReturn(List.of("anOwner@a@minute2023", "anOwner@b@minute2023", ".kibana"));
+        catalog.refresh();
+        assertEquals(List.of(series("a"), series("b")), catalog.seriesDefinitions());
+        assertEquals(Set.of("anOwner@a@minute2023", "anOwner@b@minute2023", ".kibana"), catalog.indexNames());
+    }
+
+    @Test
+    public void givenUnchangedIndicesWhenRefreshingThenCatalogIsKept() {
+        when(loader.load()).thenReturn(List.of("anOwner@a@minute2023"));
+        List<TimeSeriesDefinition> before = catalog.seriesDefinitions();
+        catalog.refresh();
+        assertSame(before, catalog.seriesDefinitions());
+    }
+
+    @Test
+    public void givenFailingRefreshThenPreviousCatalogIsKept() {
+        when(loader.load()).thenReturn(List.of("anOwner@a@minute2023")).thenThrow(new RuntimeException("unavailable"));
+        List<TimeSeriesDefinition> before = catalog.seriesDefinitions();
+        catalog.refresh();
+        assertSame(before, catalog.seriesDefinitions());
+    }
+
+    @Test
+    public void whenPruningThenOnlyMissingIndicesOfPastYearsAreLeftOut() {
+        when(loader.load()).thenReturn(List.of("anOwner@a@minute2021", "anOwner@a@minute2023"));
+        catalog.refresh();
+        assertEquals(
+                List.of("anOwner@a@minute2021", "anOwner@a@minute2023", "anOwner@a@minute2024", "anOwner@a@minute*"),
+                catalog.existing(List.of(
+                        "anOwner@a@minute2020",
+                        "anOwner@a@minute2021",
+                        "anOwner@a@minute2022",
+                        "anOwner@a@minute2023",
+                        "anOwner@a@minute2024",
+                        "anOwner@a@minute*"
+                ))
+        );
+    }
+
+    @Test
+    public void givenCatalogNotLoadedWhenPruningThenNothingIsLeftOut() {
+        List<String> indexNames = List.of("anOwner@a@minute2020");
+        assertEquals(indexNames, catalog.existing(indexNames));
+        verifyNoInteractions(loader);
+    }
+
+    @Test
+    public void whenAskingWhetherSeriesExistsThenAnswerIsKnownOnlyAfterLoading() {
+        when(loader.load()).thenReturn(List.of("anOwner@a@minute2023"));
+        assertNull(catalog.contains(series("a")));
+        verifyNoInteractions(loader);
+        catalog.refresh();
+        assertTrue(catalog.contains(series("a")));
+        assertFalse(catalog.contains(TimeSeriesDefinition.builder().name("a").distance(MeasurementDistance.days).owner("anOwner")));
+    }
+
+    private TimeSeriesDefinition series(String name) {
+        return TimeSeriesDefinition.builder().name(name).minutes().owner("anOwner");
+    }
+
+}
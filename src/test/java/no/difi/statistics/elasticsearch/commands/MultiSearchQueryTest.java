@@ -0,0 +1,89 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import no.difi.statistics.elasticsearch.ElasticsearchGuard;
+import no.difi.statistics.model.BatchQueryResult;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static no.difi.statistics.elasticsearch.ElasticsearchGuard.Pool.cheap;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class MultiSearchQueryTest {
+
+    private static final int cheapConcurrentCalls = 2;
+    private final ZonedDateTime from = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition series = TimeSeriesDefinition.builder().name("series").distance(days).owner("991825827");
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+    private final GetMeasurementIdentifiers.Builder measurementIdentifiers = mock(GetMeasurementIdentifiers.Builder.class);
+    private final ElasticsearchGuard guard = new ElasticsearchGuard(
+            CircuitBreaker.ofDefaults("test"), bulkhead(cheapConcurrentCalls), bulkhead(1), Duration.ZERO
+    );
+
+    @BeforeEach
+    public void prepare() throws Exception {
+        when(measurementIdentifiers.indexNames(any())).thenReturn(measurementIdentifiers);
+        // Lookups missing the cache, which take a permit of the cheap pool while they run
+        when(measurementIdentifiers.executeAsync()).thenAnswer(invocation -> guard.callAsync(cheap, () -> CompletableFuture.supplyAsync(
+                () -> List.of("m"),
+                CompletableFuture.delayedExecutor(10, TimeUnit.MILLISECONDS)
+        )));
+        when(client.msearch(any(MultiSearchRequest.class), any(RequestOptions.class))).thenAnswer(invocation -> {
+            MultiSearchRequest request = invocation.getArgument(0);
+            MultiSearchResponse.Item[] items = new MultiSearchResponse.Item[request.requests().size()];
+            for (int i = 0; i < items.length; i++)
+                items[i] = new MultiSearchResponse.Item(mock(SearchResponse.class), null);
+            return new MultiSearchResponse(items, 1);
+        });
+    }
+
+    @Test
+    public void givenMoreLookupsThanCheapPoolAllowsWhenSearchingThenNoQueryIsRejected() {
+        int queryCount = 5 * cheapConcurrentCalls;
+        MultiSearchQuery.Builder command = MultiSearchQuery.builder()
+                .elasticsearchClient(client)
+                .guard(guard)
+                .lookupConcurrency(cheapConcurrentCalls);
+        for (int i = 0; i < queryCount; i++)
+            command.sum("q" + i, sumQuery());
+        Map<String, BatchQueryResult> results = command.build().execute();
+        assertEquals(queryCount, results.size());
+        results.forEach((id, result) -> assertNull(result.getError(), id));
+        verify(measurementIdentifiers, times(queryCount)).executeAsync();
+        verify(client).msearch(any(MultiSearchRequest.class), any(RequestOptions.class));
+    }
+
+    private SumQuery sumQuery() {
+        return SumQuery.builder()
+                .elasticsearchClient(client)
+                .seriesDefinition(series)
+                .queryFilter(queryFilter().range(from, from.plusMonths(1)).build())
+                .measurementIdentifiersCommand(measurementIdentifiers)
+                .build();
+    }
+
+    private static Bulkhead bulkhead(int maxConcurrentCalls) {
+        return Bulkhead.of("test", BulkheadConfig.custom().maxConcurrentCalls(maxConcurrentCalls).maxWaitDuration(Duration.ZERO).build());
+    }
+
+}
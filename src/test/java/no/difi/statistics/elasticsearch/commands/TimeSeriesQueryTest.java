@@ -0,0 +1,223 @@
+package no.difi.statistics.elasticsearch.commands;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.difi.statistics.elasticsearch.QueryMetrics;
+import no.difi.statistics.elasticsearch.RollupStore;
+import no.difi.statistics.elasticsearch.SeriesCatalog;
+import no.difi.statistics.elasticsearch.Timestamp;
+import no.difi.statistics.model.TimeSeriesDefinition;
+import no.difi.statistics.model.TimeSeriesPoint;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.metrics.Sum;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+import static no.difi.statistics.model.MeasurementDistance.days;
+import static no.difi.statistics.model.MeasurementDistance.minutes;
+import static no.difi.statistics.model.QueryFilter.queryFilter;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class TimeSeriesQueryTest {
+
+    private static final String nativePath = "native";
+    private static final String derivedPath = "derived";
+    private final ZonedDateTime from = ZonedDateTime.of(2020, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+    private final TimeSeriesDefinition daySeries = TimeSeriesDefinition.builder().name("series").distance(days).owner("991825827");
+    private final TimeSeriesDefinition minuteSeries = TimeSeriesDefinition.builder().name("series").distance(minutes).owner("991825827");
+    private final RestHighLevelClient client = mock(RestHighLevelClient.class);
+    private final GetMeasurementIdentifiers.Builder measurementIdentifiers = mock(GetMeasurementIdentifiers.Builder.class);
+    private final RollupStore rollups = mock(RollupStore.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final QueryMetrics metrics = new QueryMetrics(meterRegistry);
+    // The searches sent, by the path they are for
+    private final Map<String, SentSearch> searches = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    public void prepare() {
+        when(measurementIdentifiers.indexNames(any())).thenReturn(measurementIdentifiers);
+        when(measurementIdentifiers.executeAsync()).thenReturn(CompletableFuture.completedFuture(List.of("m")));
+        when(client.searchAsync(any(SearchRequest.class), any(RequestOptions.class), any())).thenAnswer(invocation -> {
+            SentSearch search = new SentSearch(invocation.getArgument(2));
+            searches.put(path(invocation.getArgument(0)), search);
+            return search.cancellable;
+        });
+    }
+
+    @Test
+    public void givenNativeResultWhenSpeculatingThenDerivedSearchIsCancelled() throws Exception {
+        CompletableFuture<List<TimeSeriesPoint>> result = query(null).executeAsync();
+        searches.get(nativePath).listener.onResponse(response("categoryAggregation", Timestamp.format(from)));
+        assertEquals(1, result.get(5, TimeUnit.SECONDS).size());
+        verify(searches.get(derivedPath).cancellable).cancel();
+        assertEquals(1.0, pathCount("speculative", nativePath));
+        verify(rollups, never()).rollup(any(), any());
+    }
+
+    @Test
+    public void givenEmptyNativeResultWhenSpeculatingThenDerivedResultIsUsed() throws Exception {
+        CompletableFuture<List<TimeSeriesPoint>> result = query(null).executeAsync();
+        searches.get(nativePath).listener.onResponse(Query.emptyResponse());
+        assertFalse(result.isDone());
+        searches.get(derivedPath).listener.onResponse(response(days.name(), from.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
+        List<TimeSeriesPoint> points = result.get(5, TimeUnit.SECONDS);
+        assertEquals(1, points.size());
+        assertEquals(5, points.get(0).getMeasurement("m").orElseThrow());
+        verify(searches.get(derivedPath).cancellable, never()).cancel();
+        assertEquals(1.0, pathCount("speculative", derivedPath));
+        verify(rollups).rollup(minuteSeries, days);
+    }
+
+    @Test
+    public void givenFailingNativeSearchWhenSpeculatingThenQueryFailsAndDerivedSearchIsCancelled() {
+        CompletableFuture<List<TimeSeriesPoint>> result = query(null).executeAsync();
+        searches.get(nativePath).listener.onFailure(new IllegalStateException("failed"));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        verify(searches.get(derivedPath).cancellable).cancel();
+        assertNull(meterRegistry.find("elasticsearch.query.path").counter());
+    }
+
+    @Test
+    public void givenSeriesWithoutOwnDataInCatalogWhenQueryingThenOnlyDerivedPathIsSearched() throws Exception {
+        SeriesCatalog seriesCatalog = mock(SeriesCatalog.class);
+        when(seriesCatalog.contains(daySeries)).thenReturn(false);
+        CompletableFuture<List<TimeSeriesPoint>> result = query(seriesCatalog).executeAsync();
+        assertFalse(searches.containsKey(nativePath));
+        searches.get(derivedPath).listener.onResponse(response(days.name(), from.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
+        assertEquals(1, result.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1.0, pathCount("catalog", derivedPath));
+        verify(rollups).rollup(minuteSeries, days);
+    }
+
+    @Test
+    public void givenSeriesWithOwnDataInCatalogWhenQueryingThenOnlyNativePathIsSearched() throws Exception {
+        SeriesCatalog seriesCatalog = mock(SeriesCatalog.class);
+        when(seriesCatalog.contains(daySeries)).thenReturn(true);
+        CompletableFuture<List<TimeSeriesPoint>> result = query(seriesCatalog).executeAsync();
+        assertFalse(searches.containsKey(derivedPath));
+        searches.get(nativePath).listener.onResponse(response("categoryAggregation", Timestamp.format(from)));
+        assertEquals(1, result.get(5, TimeUnit.SECONDS).size());
+        assertEquals(1.0, pathCount("catalog", nativePath));
+        verifyNoInteractions(rollups);
+    }
+
+    @Test
+    public void givenCancelledQueryWhenSearchingThenSearchIsNotSent() throws Exception {
+        SumHistogramQuery query = SumHistogramQuery.builder()
+                .elasticsearchClient(client)
+                .seriesDefinition(minuteSeries)
+                .targetDistance(days)
+                .queryFilter(queryFilter().range(from, from.plusMonths(1)).build())
+                .measurementIdentifiersCommand(measurementIdentifiers)
+                .build();
+        query.cancel();
+        Throwable e = query.executeAsync().handle((points, t) -> Query.unwrap(t)).get(5, TimeUnit.SECONDS);
+        assertTrue(e instanceof CancellationException);
+        assertTrue(searches.isEmpty());
+    }
+
+    @Test
+    public void givenRangeOverTwoYearsWhenStreamingThenEachYearIsHandedOnBeforeTheNextIsSearched() throws Exception {
+        when(measurementIdentifiers.execute()).thenReturn(List.of("m"));
+        List<TimeSeriesPoint> streamed = new ArrayList<>();
+        List<Integer> streamedBeforeSearch = new ArrayList<>();
+        when(client.search(any(SearchRequest.class), any(RequestOptions.class))).thenAnswer(invocation -> {
+            SearchRequest request = invocation.getArgument(0);
+            assertEquals(1, request.indices().length);
+            streamedBeforeSearch.add(streamed.size());
+            return response("categoryAggregation", Timestamp.format(from.plusYears(streamedBeforeSearch.size() - 1)));
+        });
+        TimeSeriesQuery.builder()
+                .elasticsearchClient(client)
+                .seriesDefinition(daySeries)
+                .queryFilter(queryFilter().range(from, from.plusYears(1).plusMonths(1)).build())
+                .measurementIdentifiersCommand(measurementIdentifiers)
+                .sumHistogramCommand(SumHistogramQuery.builder().elasticsearchClient(client).metrics(metrics))
+                .metrics(metrics)
+                .build()
+                .execute(streamed::add);
+        assertEquals(List.of(0, 1), streamedBeforeSearch);
+        assertEquals(
+                List.of(from.toInstant(), from.plusYears(1).toInstant()),
+                streamed.stream().map(point -> point.getTimestamp().toInstant()).collect(toList())
+        );
+        assertEquals(1.0, pathCount("sequential", nativePath));
+    }
+
+    private TimeSeriesQuery query(SeriesCatalog seriesCatalog) {
+        return TimeSeriesQuery.builder()
+                .elasticsearchClient(client)
+                .seriesDefinition(daySeries)
+                .queryFilter(queryFilter().range(from, from.plusMonths(1)).build())
+                .measurementIdentifiersCommand(measurementIdentifiers)
+                .sumHistogramCommand(SumHistogramQuery.builder().elasticsearchClient(client).metrics(metrics))
+                .seriesCatalog(seriesCatalog)
+                .rollups(rollups)
+                .metrics(metrics)
+                .build();
+    }
+
+    private double pathCount(String strategy, String path) {
+        return meterRegistry.get("elasticsearch.query.path").tags("strategy", strategy, "path", path).counter().count();
+    }
+
+    /**
+     * The native search aggregates per category, the derived one per day.
+     */
+    private static String path(SearchRequest request) {
+        return request.source().aggregations().getAggregatorFactories().stream()
+                .anyMatch(a -> a.getName().equals("categoryAggregation")) ? nativePath : derivedPath;
+    }
+
+    /**
+     * A response with a single bucket with the sum 5 of measurement <code>m</code>.
+     */
+    private static SearchResponse response(String aggregationName, String key) {
+        Sum sum = mock(Sum.class);
+        when(sum.getName()).thenReturn("m");
+        when(sum.getValue()).thenReturn(5.0);
+        MultiBucketsAggregation.Bucket bucket = mock(MultiBucketsAggregation.Bucket.class);
+        when(bucket.getKeyAsString()).thenReturn(key);
+        when(bucket.getAggregations()).thenReturn(new Aggregations(List.of(sum)));
+        MultiBucketsAggregation aggregation = mock(MultiBucketsAggregation.class);
+        when(aggregation.getName()).thenReturn(aggregationName);
+        doReturn(List.of(bucket)).when(aggregation).getBuckets();
+        SearchResponse response = mock(SearchResponse.class);
+        when(response.getAggregations()).thenReturn(new Aggregations(List.of(aggregation)));
+        return response;
+    }
+
+    private static class SentSearch {
+
+        private final ActionListener<SearchResponse> listener;
+        private final Cancellable cancellable = mock(Cancellable.class);
+
+        private SentSearch(ActionListener<SearchResponse> listener) {
+            this.listener = listener;
+        }
+
+    }
+
+}
@@ -0,0 +1,32 @@
+package no.difi.statistics.elasticsearch.config;
+
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ElasticsearchGuardConfigTest {
+
+    @Test
+    public void givenCancelledSearchThenItIsNotRecordedAsFailure() {
+        assertFalse(ElasticsearchGuardConfig.isFailure(new CancellationException()));
+        assertFalse(ElasticsearchGuardConfig.isFailure(new CompletionException(new CancellationException())));
+    }
+
+    @Test
+    public void givenClientErrorThenItIsNotRecordedAsFailure() {
+        assertFalse(ElasticsearchGuardConfig.isFailure(new ElasticsearchStatusException("malformed", RestStatus.BAD_REQUEST)));
+        assertTrue(ElasticsearchGuardConfig.isFailure(new ElasticsearchStatusException("unavailable", RestStatus.SERVICE_UNAVAILABLE)));
+    }
+
+    @Test
+    public void givenIOExceptionThenItIsRecordedAsFailure() {
+        assertTrue(ElasticsearchGuardConfig.isFailure(new CompletionException(new IOException("unavailable"))));
+    }
+
+}
@@ -0,0 +1,94 @@
+package no.difi.statistics.load;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+
+/**
+ * Serves recorded Elasticsearch responses for one minute series, <code>991825827@load@minute2023</code>, enough for
+ * every query endpoint to work. Searches are told apart by the aggregations in their bodies. Each response is
+ * delayed by a log-normally distributed latency with the given median, to mimic a real cluster.
+ */
+class ElasticsearchStandIn {
+
+    static final String owner = "991825827";
+    static final String seriesName = "load";
+    private final WireMockServer server;
+
+    ElasticsearchStandIn(Duration medianLatency, int threads) {
+        server = new WireMockServer(wireMockConfig().dynamicPort().containerThreads(threads).disableRequestJournal());
+        double median = medianLatency.toMillis();
+        server.stubFor(get(urlPathMatching("/.*/_mappings?")).willReturn(json("mappings.json", median)));
+        server.stubFor(get(urlPathEqualTo("/_cat/indices")).willReturn(aResponse()
+                .withHeader("Content-Type", "text/plain; charset=UTF-8")
+                .withBody(recorded("cat-indices.txt"))
+                .withLogNormalRandomDelay(median, 0.1)));
+        server.stubFor(search(1, "\"categoryAggregation\"").withRequestBody(containing("\"category.region\""))
+                .willReturn(json("time-series-per-category.json", median)));
+        server.stubFor(search(2, "\"pit\"").willReturn(json("percentile-page.json", median)));
+        server.stubFor(search(2, "\"percentiles\"").willReturn(json("percentile-value.json", median)));
+        server.stubFor(search(2, "\"categoryAggregation\"").willReturn(json("time-series.json", median)));
+        server.stubFor(search(2, "\"sumPerTimestamp\"").willReturn(json("last-histogram.json", median)));
+        server.stubFor(search(3, "\"last\"").willReturn(json("last.json", median)));
+        server.stubFor(search(4, "\"date_histogram\"").willReturn(json("sum-histogram.json", median)));
+        server.stubFor(post(urlPathMatching("/.*/_pit")).willReturn(json("open-point-in-time.json", median)));
+        server.stubFor(delete(urlPathEqualTo("/_pit")).willReturn(json("close-point-in-time.json", median)));
+        server.stubFor(post(urlPathMatching("(/.*)?/_msearch")).willReturn(aResponse()
+                .withHeader("Content-Type", "application/json")
+                .withBody(multiSearchResponse(LoadTest.batchSize))
+                .withLogNormalRandomDelay(median, 0.1)));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop();
+    }
+
+    int port() {
+        return server.port();
+    }
+
+    private static MappingBuilder search(int priority, String bodyPart) {
+        return post(urlPathMatching("(/.*)?/_search")).withRequestBody(containing(bodyPart)).atPriority(priority);
+    }
+
+    private static ResponseDefinitionBuilder json(String name, double medianLatency) {
+        return aResponse()
+                .withHeader("Content-Type", "application/json")
+                .withBody(recorded(name))
+                .withLogNormalRandomDelay(medianLatency, 0.1);
+    }
+
+    /**
+     * The batches of the load test consist of time series queries only, so every item gets the time series response.
+     */
+    private static String multiSearchResponse(int items) {
+        String item = recorded("time-series.json").trim();
+        item = item.substring(0, item.lastIndexOf('}')) + ", \"status\": 200}";
+        return "{\"took\": 3, \"responses\": [" + String.join(",", Collections.nCopies(items, item)) + "]}";
+    }
+
+    private static String recorded(String name) {
+        try (InputStream in = ElasticsearchStandIn.class.getResourceAsStream("/loadtest/" + name)) {
+            if (in == null)
+                throw new IllegalArgumentException("No recorded response " + name);
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package no.difi.statistics.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static java.lang.String.format;
+
+/**
+ * Sends requests at a fixed arrival rate, regardless of how fast responses come back, picking scenarios in
+ * proportion to their weights. Latency is measured from when a request was due to be sent, not from when it was
+ * actually sent, so that a stalled service shows up in the percentiles instead of just slowing the load down
+ * (coordinated omission).
+ */
+class LoadGenerator {
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final URI baseUri;
+    private final List<Scenario> sequence = new ArrayList<>();
+    private final Map<String, Result> results = new LinkedHashMap<>();
+
+    LoadGenerator(URI baseUri, int threads) {
+        this.baseUri = baseUri;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.client = HttpClient.newBuilder().executor(executor).connectTimeout(Duration.ofSeconds(5)).build();
+    }
+
+    LoadGenerator scenario(String name, int weight, Function<URI, HttpRequest.Builder> request) {
+        Scenario scenario = new Scenario(name, request);
+        for (int i = 0; i < weight; i++)
+            sequence.add(scenario);
+        results.put(name, new Result());
+        return this;
+    }
+
+    /**
+     * Runs a warmup (whose results are discarded) followed by the measured run.
+     */
+    Map<String, Result> run(double requestsPerSecond, Duration warmup, Duration duration) throws InterruptedException {
+        Collections.shuffle(sequence, new Random(0));
+        drive(requestsPerSecond, warmup);
+        results.values().forEach(Result::reset);
+        long start = System.nanoTime();
+        drive(requestsPerSecond, duration);
+        results.values().forEach(result -> result.elapsedNanos = System.nanoTime() - start);
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return results;
+    }
+
+    private void drive(double requestsPerSecond, Duration duration) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        for (long i = 0; ; i++) {
+            long due = start + i * interval;
+            if (due >= end)
+                break;
+            LockSupport.parkNanos(due - System.nanoTime());
+            Scenario scenario = sequence.get((int) (i % sequence.size()));
+            Result result = results.get(scenario.name);
+            pending.add(client.sendAsync(scenario.request.apply(baseUri).timeout(Duration.ofSeconds(30)).build(), HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, e) -> result.record(due, e == null && response.statusCode() < 400)));
+        }
+        for (CompletableFuture<?> request : pending) {
+            try {
+                request.join();
+            } catch (RuntimeException e) {
+                // Recorded as error
+            }
+        }
+    }
+
+    static String report(Map<String, Result> results) {
+        StringBuilder report = new StringBuilder(format(
+                "%-24s %9s %8s %9s %9s %9s %9s %9s %9s%n",
+                "scenario", "requests", "errors", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"
+        ));
+        Result total = new Result();
+        results.forEach((name, result) -> {
+            report.append(line(name, result));
+            total.add(result);
+        });
+        return report.append(line("total", total)).toString();
+    }
+
+    private static String line(String name, Result result) {
+        Histogram latencies = result.latencies;
+        return format(
+                "%-24s %9d %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                name,
+                latencies.getTotalCount(),
+                result.errors.get(),
+                latencies.getTotalCount() / (result.elapsedNanos / 1e9),
+                millis(latencies.getValueAtPercentile(50)),
+                millis(latencies.getValueAtPercentile(90)),
+                millis(latencies.getValueAtPercentile(99)),
+                millis(latencies.getValueAtPercentile(99.9)),
+                millis(latencies.getMaxValue())
+        );
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static class Scenario {
+
+        private final String name;
+        private final Function<URI, HttpRequest.Builder> request;
+
+        private Scenario(String name, Function<URI, HttpRequest.Builder> request) {
+            this.name = name;
+            this.request = request;
+        }
+
+    }
+
+    static class Result {
+
+        private final Histogram latencies = new ConcurrentHistogram(TimeUnit.MINUTES.toNanos(1), 3);
+        private final AtomicLong errors = new AtomicLong();
+        private long elapsedNanos;
+
+        private void record(long due, boolean success) {
+            latencies.recordValue(Math.min(System.nanoTime() - due, latencies.getHighestTrackableValue()));
+            if (!success)
+                errors.incrementAndGet();
+        }
+
+        private void reset() {
+            latencies.reset();
+            errors.set(0);
+        }
+
+        private void add(Result other) {
+            latencies.add(other.latencies);
+            errors.addAndGet(other.errors.get());
+            elapsedNanos = Math.max(elapsedNanos, other.elapsedNanos);
+        }
+
+        double errorRate() {
+            return latencies.getTotalCount() == 0 ? 0 : (double) errors.get() / latencies.getTotalCount();
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+package no.difi.statistics.load;
+
+import no.difi.statistics.UtdataAPI;
+import no.difi.statistics.elasticsearch.config.ElasticsearchConfig;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.lang.String.format;
+import static no.difi.statistics.load.ElasticsearchStandIn.owner;
+import static no.difi.statistics.load.ElasticsearchStandIn.seriesName;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+/**
+ * Drives mixed traffic over all query endpoints of the full application, backed by {@link ElasticsearchStandIn}, and
+ * prints latency percentiles, throughput and errors per endpoint. Only runs when asked for, e.g.:
+ * <pre>
+ * mvn test -Dtest=LoadTest -Dloadtest=true -Dloadtest.rate=200 -Dloadtest.duration=PT2M -Dloadtest.elasticsearch.latency=PT0.02S
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@ContextConfiguration(classes = {UtdataAPI.class, ElasticsearchConfig.class}, initializers = LoadTest.Initializer.class)
+public class LoadTest {
+
+    static final int batchSize = 5;
+    private static final double rate = Double.parseDouble(System.getProperty("loadtest.rate", "100"));
+    private static final Duration warmup = Duration.parse(System.getProperty("loadtest.warmup", "PT20S"));
+    private static final Duration duration = Duration.parse(System.getProperty("loadtest.duration", "PT1M"));
+    private static final Duration elasticsearchLatency = Duration.parse(System.getProperty("loadtest.elasticsearch.latency", "PT0.02S"));
+    private static final double maxErrorRate = Double.parseDouble(System.getProperty("loadtest.max-error-rate", "0.001"));
+    private static final int clientThreads = Integer.getInteger("loadtest.client-threads", 16);
+    private static ElasticsearchStandIn elasticsearch;
+
+    @LocalServerPort
+    private int port;
+
+    public static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(ConfigurableApplicationContext applicationContext) {
+            elasticsearch = new ElasticsearchStandIn(elasticsearchLatency, 200);
+            elasticsearch.start();
+            TestPropertyValues.of(
+                    "no.difi.statistics.elasticsearch.host=localhost",
+                    "no.difi.statistics.elasticsearch.port=" + elasticsearch.port()
+            ).applyTo(applicationContext);
+        }
+
+    }
+
+    @AfterAll
+    public static void stopElasticsearch() {
+        if (elasticsearch != null)
+            elasticsearch.stop();
+    }
+
+    @Test
+    public void mixedTraffic() throws InterruptedException {
+        String series = "/" + owner + "/" + seriesName + "/minutes";
+        Map<String, LoadGenerator.Result> results = new LoadGenerator(URI.create("http://localhost:" + port), clientThreads)
+                .scenario("last", 30, uri -> get(uri, series + "/last"))
+                .scenario("query", 20, uri -> get(uri, series))
+                .scenario("query per category", 5, uri -> get(uri, series + "?perCategory=region"))
+                .scenario("query ndjson", 5, uri -> get(uri, series).header("Accept", "application/x-ndjson"))
+                .scenario("query csv", 2, uri -> get(uri, series).header("Accept", "text/csv"))
+                .scenario("sum", 10, uri -> get(uri, series + "/sum"))
+                .scenario("sum histogram", 10, uri -> get(uri, series + "/sum/hours"))
+                .scenario("last histogram", 5, uri -> get(uri, series + "/last/hours"))
+                .scenario("percentile", 3, uri -> get(uri, series + "/percentile?percentile=90&measurementId=m1&operator=gt"))
+                .scenario("batch", 5, uri -> post(uri, "/batch", batch()))
+                .scenario("meta", 3, uri -> get(uri, "/meta"))
+                .scenario("categories", 2, uri -> get(uri, "/categories"))
+                .run(rate, warmup, duration);
+        System.out.printf(
+                "%nLoad test: %.0f req/s for %s, Elasticsearch median latency %s ms%n%s%n",
+                rate, duration, elasticsearchLatency.toMillis(), LoadGenerator.report(results)
+        );
+        results.forEach((name, result) -> assertTrue(
+                result.errorRate() <= maxErrorRate,
+                format("Error rate of %s was %.4f", name, result.errorRate())
+        ));
+    }
+
+    private static HttpRequest.Builder get(URI baseUri, String path) {
+        return HttpRequest.newBuilder(baseUri.resolve(path)).GET();
+    }
+
+    private static HttpRequest.Builder post(URI baseUri, String path, String json) {
+        return HttpRequest.newBuilder(baseUri.resolve(path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json));
+    }
+
+    private static String batch() {
+        return IntStream.range(0, batchSize)
+                .mapToObj(i -> format(
+                        "{\"id\":\"q%d\",\"owner\":\"%s\",\"seriesName\":\"%s\",\"distance\":\"minutes\"}",
+                        i, owner, seriesName
+                ))
+                .collect(Collectors.joining(",", "[", "]"));
+    }
+
+}